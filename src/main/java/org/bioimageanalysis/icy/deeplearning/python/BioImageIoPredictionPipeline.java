@@ -0,0 +1,202 @@
+package org.bioimageanalysis.icy.deeplearning.python;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bioimageanalysis.icy.deeplearning.tensor.Tensor;
+import org.bioimageanalysis.icy.jep.install.system.Log;
+
+import jep.Interpreter;
+
+/**
+ * BioImage.io model loaded in the Python interpreter of a {@link BioImageIoPython} instance through
+ * the prediction pipeline of the BioImage.io core. The model stays loaded until the pipeline is closed,
+ * and every call to {@link #predict(Tensor...)} runs the pre-processing, the inference and the
+ * post-processing in Python. All the inputs of a prediction cross the bridge in a single call, which also
+ * returns all the outputs.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class BioImageIoPredictionPipeline implements AutoCloseable {
+	/**
+	 * Counter used to identify the pipelines in the Python scope
+	 */
+	private static final AtomicLong PIPELINE_COUNTER = new AtomicLong();
+	/**
+	 * Instance whose interpreter holds the model
+	 */
+	private final BioImageIoPython bioimageio;
+	/**
+	 * Interpreter where the model is loaded
+	 */
+	private final Interpreter interp;
+	/**
+	 * Source of the rdf.yaml file of the model (path, url or zip)
+	 */
+	private final String rdfSource;
+	/**
+	 * Key of the model and its prediction pipeline in the Python helpers module
+	 */
+	private final String pipelineKey;
+	/**
+	 * Names of the input tensors of the model
+	 */
+	private List<String> inputNames;
+	/**
+	 * Axes of the input tensors of the model
+	 */
+	private List<String> inputAxes;
+	/**
+	 * Names of the output tensors of the model
+	 */
+	private List<String> outputNames;
+	/**
+	 * Whether the model has been unloaded
+	 */
+	private boolean closed = false;
+
+	private BioImageIoPredictionPipeline(BioImageIoPython bioimageio, String rdfSource, String weightFormat) {
+		this.bioimageio = bioimageio;
+		this.interp = bioimageio.getBioImageIoPythonInterpreter();
+		this.rdfSource = rdfSource;
+		this.pipelineKey = "prediction_pipeline_" + PIPELINE_COUNTER.incrementAndGet();
+		load(weightFormat);
+	}
+
+	/**
+	 * Load a BioImage.io model in the interpreter of the given instance
+	 * @param bioimageio
+	 * 	instance whose interpreter will hold the model
+	 * @param rdfSource
+	 * 	path or url to the rdf.yaml file of the model or to its zip file
+	 * @param weightFormat
+	 * 	weight format used to run the model, if null the BioImage.io core chooses one
+	 * @return the pipeline ready to make predictions
+	 */
+	static BioImageIoPredictionPipeline load(BioImageIoPython bioimageio, String rdfSource, String weightFormat) {
+		return new BioImageIoPredictionPipeline(bioimageio, rdfSource, weightFormat);
+	}
+
+	private void load(String weightFormat) {
+		System.out.println(Log.getCurrentTime() + " -- Loading BioImage.io model: " + rdfSource);
+		interp.invoke(BioImageIoPython.BRIDGE + ".load_model", pipelineKey, rdfSource, weightFormat);
+		List<String> names = new ArrayList<String>();
+		List<String> axes = new ArrayList<String>();
+		for (Object input : (List<?>) interp.invoke(BioImageIoPython.BRIDGE + ".model_inputs", pipelineKey)) {
+			names.add(((List<?>) input).get(0).toString());
+			axes.add(((List<?>) input).get(1).toString());
+		}
+		inputNames = Collections.unmodifiableList(names);
+		inputAxes = Collections.unmodifiableList(axes);
+		outputNames = toStringList((List<?>) interp.invoke(BioImageIoPython.BRIDGE + ".model_outputs", pipelineKey));
+	}
+
+	private static List<String> toStringList(List<?> list) {
+		List<String> strings = new ArrayList<String>();
+		for (Object obj : list)
+			strings.add(obj.toString());
+		return Collections.unmodifiableList(strings);
+	}
+
+	/**
+	 * Run the model on the given input tensors. The tensors are matched with the inputs of the model
+	 * in the order given by {@link #getInputNames()} and are transposed in Python to the axes expected
+	 * by the model. Pre-processing, inference and post-processing happen in the same Python call.
+	 * If the instance has a {@link TransferAdmissionController}, the memory of the request is reserved first.
+	 * @param inputs
+	 * 	input tensors, one per model input
+	 * @return the output tensors of the model, in the order given by {@link #getOutputNames()}
+	 */
+	public List<Tensor<?>> predict(Tensor<?>... inputs) {
+		return predict(BioImageIoPython.NO_DEADLINE, inputs);
+	}
+
+	/**
+	 * Run the model on the given input tensors, giving up if the outputs are not ready before the deadline.
+	 * The deadline applies to the wait for memory in the {@link TransferAdmissionController} and to the
+	 * Python work, which is interrupted as in {@link BioImageIoPython#runWithDeadline(long, java.util.function.Supplier)}.
+	 * Like every call to the interpreter, it has to be made from the thread of the interpreter, for example
+	 * in a task submitted to a {@link BioImageIoPythonWorker}.
+	 * @param deadlineMillis
+	 * 	time, as given by {@link System#currentTimeMillis()}, when the prediction stops being useful, 
+	 * 	or {@link BioImageIoPython#NO_DEADLINE}
+	 * @param inputs
+	 * 	input tensors, one per model input
+	 * @return the output tensors of the model, in the order given by {@link #getOutputNames()}
+	 * @throws java.util.concurrent.CancellationException if the deadline is reached before the outputs are ready
+	 */
+	public List<Tensor<?>> predict(long deadlineMillis, Tensor<?>... inputs) {
+		if (closed)
+			throw new IllegalStateException("The model '" + rdfSource + "' has already been unloaded.");
+		if (inputs.length != inputNames.size())
+			throw new IllegalArgumentException("The model expects " + inputNames.size() + " inputs " + inputNames
+					+ " but " + inputs.length + " tensors were provided.");
+		TransferAdmissionController.Reservation reservation = bioimageio.reserveMemory(rdfSource, deadlineMillis, inputs);
+		try {
+			return bioimageio.runWithDeadline(deadlineMillis, () -> runPrediction(inputs));
+		} finally {
+			if (reservation != null)
+				reservation.close();
+		}
+	}
+
+	private List<Tensor<?>> runPrediction(Tensor<?>[] inputs) {
+		PythonSample sample = PythonSample.fromJavaTensors(Arrays.asList(inputs), bioimageio.getBufferPool());
+		List<?> results;
+		try {
+			results = (List<?>) interp.invoke(BioImageIoPython.BRIDGE + ".predict", pipelineKey, sample.getArrays(),
+					sample.getAxes(), sample.getPackedShapes(), outputNames);
+		} finally {
+			sample.release();
+		}
+		return new ArrayList<Tensor<?>>(PythonSample.toJavaTensors(results, bioimageio.getBufferPool()).values());
+	}
+
+	/**
+	 *
+	 * @return names of the input tensors of the model
+	 */
+	public List<String> getInputNames() {
+		return inputNames;
+	}
+
+	/**
+	 *
+	 * @return axes of the input tensors expected by the model
+	 */
+	public List<String> getInputAxes() {
+		return inputAxes;
+	}
+
+	/**
+	 *
+	 * @return names of the output tensors of the model
+	 */
+	public List<String> getOutputNames() {
+		return outputNames;
+	}
+
+	/**
+	 *
+	 * @return source of the rdf.yaml file of the model
+	 */
+	public String getRdfSource() {
+		return rdfSource;
+	}
+
+	/**
+	 * Unload the model and remove it from the Python scope
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		interp.invoke(BioImageIoPython.BRIDGE + ".unload_model", pipelineKey);
+		bioimageio.pipelineClosed(this);
+	}
+}
@@ -1,12 +1,32 @@
 package org.bioimageanalysis.icy.deeplearning.python;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
+import org.bioimageanalysis.icy.deeplearning.python.cache.TransformationResultCache;
+import org.bioimageanalysis.icy.deeplearning.python.tensor.OffHeapImg;
+import org.bioimageanalysis.icy.deeplearning.python.tensor.PrimitiveBufferPool;
 import org.bioimageanalysis.icy.deeplearning.python.tensor.PythonTensor;
+import org.bioimageanalysis.icy.deeplearning.python.tensor.TransportPolicy;
+import org.bioimageanalysis.icy.deeplearning.python.tensor.TransportPrecision;
+import org.bioimageanalysis.icy.deeplearning.python.tensor.TransportReport;
 import org.bioimageanalysis.icy.deeplearning.python.transformations.BioimageioPythonTransformations;
+import org.bioimageanalysis.icy.deeplearning.python.transformations.TransformationRegistry;
+import org.bioimageanalysis.icy.deeplearning.python.transformations.TransformationSpec;
 import org.bioimageanalysis.icy.deeplearning.tensor.Tensor;
 import org.bioimageanalysis.icy.jep.exec.PythonExec;
 import org.bioimageanalysis.icy.jep.install.system.Log;
@@ -14,9 +34,12 @@ import org.bioimageanalysis.icy.jep.utils.JepUtils;
 
 import jep.Interpreter;
 import jep.JepConfig;
+import jep.JepException;
 import jep.NDArray;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
 
 /*
  * @author Carlos Garcia Lopez de Haro
@@ -27,11 +50,83 @@ public class BioImageIoPython implements AutoCloseable {
 	private Interpreter interp;
 	private boolean isInstalled = false;
 	private String version;
-	private List<String> instantiatedTransformations = new ArrayList<String>();
-	private String instantiatedNpArray;
+	private List<BioimageioPythonTransformations> instantiatedTransformations = new ArrayList<BioimageioPythonTransformations>();
 	private String instantiatedTensor;
+	private PrimitiveBufferPool bufferPool;
+	private boolean offHeapResults = false;
+	private TransferAdmissionController admissionController;
+	/**
+	 * Cache of the results of {@link #applyTransformationToTensorInPython(Map, Tensor)}, null if results are not cached
+	 */
+	private TransformationResultCache resultCache;
+	/**
+	 * Precision of the floating point tensors while they cross the bridge
+	 */
+	private TransportPolicy transportPolicy = TransportPolicy.FULL_PRECISION;
+	/**
+	 * Precision and error of the last tensor sent to Python and of the last tensor fetched from it
+	 */
+	private TransportReport lastSendReport;
+	private TransportReport lastReturnReport;
+	/**
+	 * Name of the custom transformations already defined in the interpreter, by hash of their source
+	 */
+	private Map<String, String> definedCustomTransformations = new HashMap<String, String>();
+	/**
+	 * Models currently loaded in the interpreter
+	 */
+	private List<BioImageIoPredictionPipeline> loadedPipelines = new ArrayList<BioImageIoPredictionPipeline>();
+	/**
+	 * Sampling interval used to profile each call to {@link #applyTransformationToTensorInPython(Map, Tensor)},
+	 * 0 if the calls are not profiled
+	 */
+	private long callProfilingIntervalMillis = 0;
+	/**
+	 * Profile of the last call, when the calls are profiled
+	 */
+	private PythonProfile lastCallProfile;
+	/**
+	 * Key of the profiler started with {@link #startProfiling(long)}, null if none is running
+	 */
+	private String windowProfilerKey;
 	private static String BIOIMAGE_IO_PACKAGE_NAME = "bioimageio.core";
 	private static String DEFAULT_BIOIMAGEIO_VERSION = "0.5.6";
+	/**
+	 * File containing the Python helpers called from Java
+	 */
+	private static String BRIDGE_MODULE_FILE = "bioimageio_java_bridge.py";
+	/**
+	 * Name of the Python variable that holds the helpers module in the interpreter
+	 */
+	static String BRIDGE = "_jbridge";
+	/**
+	 * Name of the Numpy data type of the boolean tensors
+	 */
+	private static final String BOOL_DTYPE = "bool";
+	/**
+	 * Deadline of the requests that can run for as long as they need
+	 */
+	public static final long NO_DEADLINE = Long.MAX_VALUE;
+	/**
+	 * Counter used to identify the deadlines armed in Python
+	 */
+	private static final AtomicLong DEADLINE_COUNTER = new AtomicLong();
+	/**
+	 * Deadline armed in Python for the work running now, {@link #NO_DEADLINE} if none
+	 */
+	private long armedDeadlineMillis = NO_DEADLINE;
+	/**
+	 * Counter used to identify the profilers started in Python
+	 */
+	private static final AtomicLong PROFILER_COUNTER = new AtomicLong();
+	/**
+	 * Axes of the dummy tensors used to warm up the interpreter
+	 */
+	private static final String WARM_UP_AXES = "bcyx";
+	/**
+	 * Size of the spatial axes of the dummy tensors used to warm up the interpreter
+	 */
+	private static final int WARM_UP_SIZE = 32;
 	
 	private BioImageIoPython(PythonExec pythonExec) throws IOException, InterruptedException {
 		this.pythonExec = pythonExec;
@@ -40,6 +135,7 @@ public class BioImageIoPython implements AutoCloseable {
 		if (!isInstalled)
 			install();
 		importGenericModules();
+		defineCustomTransformations();
 	}
 
 	public static BioImageIoPython activate(String pythonHome, String jepPath) 
@@ -85,50 +181,831 @@ public class BioImageIoPython implements AutoCloseable {
         interp.exec("import xarray as xr" + System.lineSeparator());
         interp.exec("from bioimageio.core.prediction_pipeline._measure_groups import compute_measures" + System.lineSeparator());
         interp.exec("from bioimageio.core.prediction_pipeline._utils import PER_SAMPLE, FIXED, PER_DATASET" + System.lineSeparator());
+        interp.exec("import sys" + System.lineSeparator());
+        defineBridgeModule();
+	}
+	
+	/**
+	 * Compile the Python helpers called from Java into a module held by the variable {@link #BRIDGE}.
+	 * This is the only Python source compiled for the operations on tensors, afterwards Java calls
+	 * the functions of the module with {@link Interpreter#invoke(String, Object...)}.
+	 */
+	private void defineBridgeModule() {
+		interp.set("_jbridge_source", readBridgeSource());
+		interp.exec("import types" + System.lineSeparator()
+				+ BRIDGE + " = types.ModuleType(\"bioimageio_java_bridge\")" + System.lineSeparator()
+				+ "exec(compile(_jbridge_source, \"" + BRIDGE_MODULE_FILE + "\", \"exec\"), " + BRIDGE + ".__dict__)" + System.lineSeparator()
+				+ "del _jbridge_source" + System.lineSeparator());
+	}
+	
+	private static String readBridgeSource() {
+		InputStream stream = BioImageIoPython.class.getResourceAsStream(BRIDGE_MODULE_FILE);
+		if (stream == null)
+			throw new IllegalArgumentException("Unable to find the Python helpers file: " + BRIDGE_MODULE_FILE);
+		StringBuilder source = new StringBuilder();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null)
+				source.append(line).append("\n");
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Unable to read the Python helpers file: " + BRIDGE_MODULE_FILE, e);
+		}
+		return source.toString();
+	}
+	
+	/**
+	 * Define in the interpreter the Python classes of every custom transformation of the
+	 * {@link TransformationRegistry}, so their source is compiled only once
+	 */
+	public void defineCustomTransformations() {
+		for (TransformationSpec spec : TransformationRegistry.getDefault().getCustomTransformations())
+			defineCustomTransformation(spec);
+	}
+	
+	private void defineCustomTransformation(TransformationSpec spec) {
+		if (definedCustomTransformations.containsKey(spec.getSourceHash()))
+			return;
+		System.out.println(Log.getCurrentTime() + " -- Defining custom transformation '" + spec.getName() + "'");
+		interp.invoke(BRIDGE + ".define_source", spec.getSourceHash(), spec.getPythonSource(), "<" + spec.getName() + ">");
+		definedCustomTransformations.put(spec.getSourceHash(), spec.getName());
+	}
+	
+	/**
+	 * Run once, on small dummy tensors, the code paths used by real requests so the first request
+	 * does not pay for lazy imports, first calls into Numpy and the JIT compilation of the Java side.
+	 * Every data type goes through both converters, the class of every registered transformation is
+	 * loaded and the transformations that provide example arguments
+	 * ({@link TransformationSpec#getExampleKwargs()}) are applied to a float tensor.
+	 * The warm-up calls the Python helpers directly, so it does not reserve memory in the admission
+	 * controller and it is not profiled.
+	 * A step that fails is logged and the warm-up goes on with the next one.
+	 * @return the steps that failed, empty if the warm-up was successful
+	 */
+	public List<String> warmUp() {
+		long start = System.currentTimeMillis();
+		System.out.println(Log.getCurrentTime() + " -- Warming up the BioImage.io Python interpreter");
+		List<String> failedSteps = new ArrayList<String>();
+		long[] dims = new long[] {1, 1, WARM_UP_SIZE, WARM_UP_SIZE};
+		int n = WARM_UP_SIZE * WARM_UP_SIZE;
+		float[] floats = new float[n];
+		for (int i = 0; i < n; i ++)
+			floats[i] = (i % 17) / 16f;
+		Tensor<FloatType> floatTensor = Tensor.build("warm_up", WARM_UP_AXES, ArrayImgs.floats(floats, dims));
+		warmUpStep("conversion of float32 tensors", failedSteps, () -> warmUpConversion(floatTensor));
+		warmUpStep("conversion of float64 tensors", failedSteps, 
+				() -> warmUpConversion(Tensor.build("warm_up", WARM_UP_AXES, ArrayImgs.doubles(dims))));
+		warmUpStep("conversion of int8 tensors", failedSteps, 
+				() -> warmUpConversion(Tensor.build("warm_up", WARM_UP_AXES, ArrayImgs.bytes(dims))));
+		warmUpStep("conversion of int32 tensors", failedSteps, 
+				() -> warmUpConversion(Tensor.build("warm_up", WARM_UP_AXES, ArrayImgs.ints(dims))));
+		warmUpStep("conversion of int64 tensors", failedSteps, 
+				() -> warmUpConversion(Tensor.build("warm_up", WARM_UP_AXES, ArrayImgs.longs(dims))));
+		warmUpStep("conversion of boolean tensors", failedSteps, 
+				() -> warmUpConversion(Tensor.build("warm_up", WARM_UP_AXES, ArrayImgs.bits(dims))));
+		for (TransformationSpec spec : TransformationRegistry.getDefault().getAll()) {
+			warmUpStep("transformation '" + spec.getName() + "'", failedSteps, 
+					() -> warmUpTransformation(spec, floatTensor));
+		}
+		System.out.println(Log.getCurrentTime() + " -- Warm-up finished in " + (System.currentTimeMillis() - start) 
+				+ " ms" + (failedSteps.isEmpty() ? "" : ", failed steps: " + failedSteps));
+		return failedSteps;
+	}
+	
+	private void warmUpStep(String step, List<String> failedSteps, Runnable work) {
+		try {
+			work.run();
+		} catch (Exception e) {
+			System.out.println(Log.getCurrentTime() + " -- Warm-up of the " + step + " failed: " + e.getMessage());
+			failedSteps.add(step);
+		}
+	}
+	
+	private < T extends RealType< T > & NativeType< T > > void warmUpConversion(Tensor<T> javaTensor) {
+		PythonTensor pythonTensor = PythonTensor.fromJavaTensor(javaTensor, bufferPool);
+		String key = pythonTensor.getTensorName();
+		try {
+			sendPythonTensor(pythonTensor, null);
+			PythonTensor result = fetchPythonTensor(key, javaTensor.getName());
+			releaseTensor(result.toJava(bufferPool));
+			if (bufferPool != null)
+				bufferPool.adopt(result.getData().getData());
+		} finally {
+			interp.invoke(BRIDGE + ".release", key);
+		}
+	}
+	
+	private void warmUpTransformation(TransformationSpec spec, Tensor<FloatType> floatTensor) {
+		if (spec.isCustom())
+			defineCustomTransformation(spec);
+		interp.invoke(BRIDGE + ".preload_class", spec.getPythonModule(), spec.getPythonClassName(), spec.getSourceHash());
+		if (spec.getExampleKwargs() == null)
+			return;
+		Map<String, Object> kwargs = new HashMap<String, Object>(spec.getExampleKwargs());
+		kwargs.put("tensor_name", floatTensor.getName());
+		PythonTensor pythonTensor = PythonTensor.fromJavaTensor(floatTensor, bufferPool);
+		String key = pythonTensor.getTensorName();
+		String transformationKey = "warm_up_" + spec.getName();
+		try {
+			sendPythonTensor(pythonTensor, null);
+			interp.invoke(BRIDGE + ".instantiate", transformationKey, spec.getPythonModule(), spec.getPythonClassName(), 
+					kwargs, spec.getSourceHash());
+			interp.invoke(BRIDGE + ".apply_spec", transformationKey, key, floatTensor.getName());
+			PythonTensor result = fetchPythonTensor(key, floatTensor.getName());
+			releaseTensor(result.toJava(bufferPool));
+			if (bufferPool != null)
+				bufferPool.adopt(result.getData().getData());
+		} finally {
+			interp.invoke(BRIDGE + ".release", key, transformationKey);
+		}
 	}
 	
 	public void instantiatePythonTransformationObject(Map<String, Object> transformationMap, String tensorName) {
 		BioimageioPythonTransformations bioimageioPythonTransfomation = BioimageioPythonTransformations.definePythonBioImageIoTransformation(transformationMap);
-		String pythonCommand = bioimageioPythonTransfomation.stringToInstantiatePythonTransformation(tensorName);
-		interp.exec(pythonCommand);
-        instantiatedTransformations.add(bioimageioPythonTransfomation.getTransformationObjectName());
+		if (bioimageioPythonTransfomation.getSpec().isCustom())
+			defineCustomTransformation(bioimageioPythonTransfomation.getSpec());
+		TransformationSpec spec = bioimageioPythonTransfomation.getSpec();
+		interp.invoke(BRIDGE + ".instantiate", bioimageioPythonTransfomation.getTransformationObjectName(),
+				spec.getPythonModule(), spec.getPythonClassName(), bioimageioPythonTransfomation.getKwargs(), spec.getSourceHash());
+        instantiatedTransformations.add(bioimageioPythonTransfomation);
 	}
 	
 	public < T extends RealType< T > & NativeType< T > > void sendTensorToInterpreter(Tensor<T> javaTensor) {
-		PythonTensor pythonTensor = PythonTensor.fromJavaTensor(javaTensor);
-		interp.set(pythonTensor.getNpArrayVarName(), pythonTensor.getData()); 
-		instantiatedNpArray =pythonTensor.getNpArrayVarName();
-		String pythonCommand = pythonTensor.createCommandToBuildPythonBioiamgeIoTensor();
-        interp.exec(pythonCommand);
+		PythonTensor pythonTensor = PythonTensor.fromJavaTensor(javaTensor, bufferPool, transportPolicy);
+		lastSendReport = pythonTensor.getTransportReport();
+		sendPythonTensor(pythonTensor, null);
         instantiatedTensor = pythonTensor.getTensorName();
 	}
+	
+	/**
+	 * Create in Python the xarray tensor of a {@link PythonTensor} and give its data array back to the pool.
+	 * Boolean tensors travel packed 8 pixels per byte and are unpacked in Python into a
+	 * {@code np.bool_} array.
+	 * @param pythonTensor
+	 * 	tensor to send
+	 * @param targetAxes
+	 * 	axes order of the tensor in Python, if null the axes order of the tensor is kept
+	 */
+	void sendPythonTensor(PythonTensor pythonTensor, String targetAxes) {
+		if (pythonTensor.isPackedBits())
+			interp.invoke(BRIDGE + ".bits_to_xarray", pythonTensor.getTensorName(), pythonTensor.getData(),
+					pythonTensor.getShape(), pythonTensor.getAxesOrder(), targetAxes);
+		else
+			interp.invoke(BRIDGE + ".to_xarray", pythonTensor.getTensorName(), pythonTensor.getData(), 
+					pythonTensor.getAxesOrder(), targetAxes, pythonTensor.isFortranOrder(), pythonTensor.isFloat16());
+		// JEP copies the NDArray into the Numpy array, the flat array can be reused straight away
+		pythonTensor.release();
+	}
 
 	public PythonTensor retrieveBioImageIoPythonTensorFromScope(Tensor javaTensor) {
-		interp.exec("tensor_axes_order = " + this.instantiatedTensor +".dims");
-		List<String> tensorDimsArr = (List<String>) interp.getValue("tensor_axes_order");
-		String axesOrder = "";
-		for (String ii : tensorDimsArr)
-			axesOrder += ii;
-		interp.exec("tensor_np_array = " + instantiatedTensor +".data");
-		NDArray<?> jepArray = interp.getValue("tensor_np_array", NDArray.class);
-		return PythonTensor.build(javaTensor.getName(), axesOrder, jepArray);
+		return fetchPythonTensor(instantiatedTensor, javaTensor.getName());
+	}
+	
+	/**
+	 * Bring a tensor from the Python helpers module to Java. The data is fetched transposed, in Fortran order,
+	 * which is the order of the storage of an ArrayImg, so the Java image is filled with one block copy.
+	 * Boolean tensors, such as the masks produced by binarize, are packed 8 pixels per byte before
+	 * crossing the bridge. Floating point tensors are narrowed in Python as the transport policy says,
+	 * unless the error exceeds its bound, and the precision used is given by {@link #getLastReturnReport()}.
+	 * @param key
+	 * 	key of the tensor in the Python helpers module
+	 * @param name
+	 * 	name given to the tensor
+	 * @return the tensor ready to be converted into a Java {@link Tensor}
+	 */
+	PythonTensor fetchPythonTensor(String key, String name) {
+		String axesOrder = (String) interp.invoke(BRIDGE + ".get_axes", key);
+		if (!BOOL_DTYPE.equals(interp.invoke(BRIDGE + ".get_dtype", key))) {
+			if (!transportPolicy.isFullPrecision()) {
+				// Python measures the error first and only builds the narrowed copy if it is within the bound
+				List<?> fetched = (List<?>) interp.invoke(BRIDGE + ".fetch_narrowed", key, 
+						transportPolicy.getPrecision().getPythonName(), transportPolicy.getMaxAbsoluteError());
+				return widenNarrowedTensor(name, axesOrder, (NDArray<?>) fetched.get(0), (String) fetched.get(2), 
+						((Number) fetched.get(1)).doubleValue(), (Boolean) fetched.get(3));
+			}
+			NDArray<?> jepArray = (NDArray<?>) interp.invoke(BRIDGE + ".fetch_result", key);
+			lastReturnReport = TransportReport.build(TransportPrecision.FULL, 0, false, jepArray);
+			// the dimensions of the data in Fortran order are the shape reversed
+			int[] dims = jepArray.getDimensions();
+			int[] shape = new int[dims.length];
+			for (int i = 0; i < dims.length; i ++)
+				shape[i] = dims[dims.length - 1 - i];
+			return PythonTensor.buildFortranOrder(name, axesOrder, jepArray, shape);
+		}
+		List<?> shapeList = (List<?>) interp.invoke(BRIDGE + ".get_shape", key);
+		int[] shape = new int[shapeList.size()];
+		for (int i = 0; i < shape.length; i ++)
+			shape[i] = ((Number) shapeList.get(i)).intValue();
+		NDArray<byte[]> packed = (NDArray<byte[]>) interp.invoke(BRIDGE + ".fetch_packed_bits", key);
+		return PythonTensor.buildPackedBits(name, axesOrder, packed, shape);
+	}
+
+	/**
+	 * Build the tensor fetched under the transport policy. Narrowed data is widened back to its original
+	 * data type, if the transport policy asks for it, while it is copied into the Java image. Java has no
+	 * half precision type, so float16 data is at least widened to float32. Data whose error exceeded the
+	 * bound comes at full precision, which is recorded in {@link #getLastReturnReport()}.
+	 */
+	private PythonTensor widenNarrowedTensor(String name, String axesOrder, NDArray<?> narrowed, String dtype, 
+			double maxError, boolean fellBack) {
+		TransportPrecision precision = TransportPrecision.FULL;
+		if (narrowed.getData() instanceof short[])
+			precision = TransportPrecision.FLOAT16;
+		else if (narrowed.getData() instanceof float[] && !"float32".equals(dtype))
+			precision = TransportPrecision.FLOAT32;
+		lastReturnReport = TransportReport.build(precision, maxError, fellBack, narrowed);
+		// the data comes in Fortran order, its dimensions are the shape reversed
+		int[] dims = narrowed.getDimensions();
+		int[] shape = new int[dims.length];
+		for (int i = 0; i < shape.length; i ++)
+			shape[i] = dims[dims.length - 1 - i];
+		if (precision == TransportPrecision.FULL)
+			return PythonTensor.buildFortranOrder(name, axesOrder, narrowed, shape);
+		String widenedDtype = transportPolicy.isWidenResults() ? dtype : "float32";
+		return PythonTensor.buildNarrowed(name, axesOrder, narrowed, shape, widenedDtype);
+	}
+
+	/**
+	 * Retrieve the tensor resulting from the transformations into an {@link OffHeapImg}.
+	 * Numpy copies the result into the native memory of the image with {@code np.copyto}, which is
+	 * one copy of the data and the only one: the data never goes through the Java heap.
+	 * @param <T>
+	 * 	data type of the tensor
+	 * @param javaTensor
+	 * 	tensor that was sent to Python, used to name the result
+	 * @return a tensor backed by native memory, close its data with {@link #releaseTensor(Tensor)}. Boolean
+	 * 	results are returned as bit-packed images in the Java heap instead
+	 */
+	public < T extends RealType< T > & NativeType< T > > Tensor<T> retrieveOffHeapTensorFromScope(Tensor<T> javaTensor) {
+		if (BOOL_DTYPE.equals(interp.invoke(BRIDGE + ".get_dtype", instantiatedTensor)))
+			return retrieveBioImageIoPythonTensorFromScope(javaTensor).toJava(bufferPool);
+		String axesOrder = (String) interp.invoke(BRIDGE + ".get_axes", instantiatedTensor);
+		List<?> shapeList = (List<?>) interp.invoke(BRIDGE + ".get_shape", instantiatedTensor);
+		long[] shape = new long[shapeList.size()];
+		for (int i = 0; i < shape.length; i ++)
+			shape[i] = ((Number) shapeList.get(i)).longValue();
+		OffHeapImg<T, ?> img = OffHeapImg.allocate((String) interp.invoke(BRIDGE + ".get_dtype", instantiatedTensor), shape);
+		// The Numpy view of the buffer has the axes reversed, its transpose matches the layout of the image
+		interp.invoke(BRIDGE + ".copy_into", instantiatedTensor, img.getDirectNDArray());
+		return Tensor.build(javaTensor.getName(), axesOrder, img);
+	}
+	
+	public < T extends RealType< T > & NativeType< T > > Tensor<T> applyTransformationToTensorInPython(Map<String, Object> transformationMap, 
+																						Tensor<T> javaTensor) {
+		return applyTransformationToTensorInPython(transformationMap, javaTensor, NO_DEADLINE);
 	}
 	
+	/**
+	 * Apply a transformation to a tensor in Python, giving up if the result is not ready before the deadline.
+	 * A request whose deadline has already passed is not started, and a running one is interrupted in
+	 * Python between two bytecodes (long calls into compiled code finish before the interruption).
+	 * Either way the Python objects of the request are removed so the instance can be reused.
+	 * If a {@link TransformationResultCache} is set, the result is taken from it when possible.
+	 * @param <T>
+	 * 	data type of the tensor
+	 * @param transformationMap
+	 * 	transformation with its "name" and "kwargs"
+	 * @param javaTensor
+	 * 	tensor to transform
+	 * @param deadlineMillis
+	 * 	time, as given by {@link System#currentTimeMillis()}, when the request stops being useful, 
+	 * 	or {@link #NO_DEADLINE}
+	 * @return the transformed tensor
+	 * @throws CancellationException if the deadline is reached before the result is ready
+	 */
 	public < T extends RealType< T > & NativeType< T > > Tensor<T> applyTransformationToTensorInPython(Map<String, Object> transformationMap, 
+																						Tensor<T> javaTensor, long deadlineMillis) {
+		if (resultCache != null)
+			return resultCache.getOrCompute(transformationMap, javaTensor, getResultFormat(), deadlineMillis, 
+					() -> computeTransformation(transformationMap, javaTensor, deadlineMillis));
+		return computeTransformation(transformationMap, javaTensor, deadlineMillis);
+	}
+	
+	/**
+	 * Describe the settings of this instance that change the result of a transformation for the same
+	 * input, so that instances with different settings sharing a {@link TransformationResultCache}
+	 * do not get each other's results
+	 * @return the format of the results of this instance
+	 */
+	private String getResultFormat() {
+		String format = offHeapResults ? "off_heap" : "heap";
+		if (transportPolicy.isFullPrecision())
+			return format;
+		return format + "|" + transportPolicy.getPrecision().getPythonName() + "|max_error=" 
+				+ transportPolicy.getMaxAbsoluteError() + (transportPolicy.isWidenResults() ? "|widened" : "");
+	}
+	
+	private < T extends RealType< T > & NativeType< T > > Tensor<T> computeTransformation(Map<String, Object> transformationMap, 
+																						Tensor<T> javaTensor, long deadlineMillis) {
+		checkDeadline(deadlineMillis, javaTensor.getName());
+		TransferAdmissionController.Reservation reservation = reserveMemory(javaTensor.getName(), deadlineMillis, javaTensor);
+		String profilerKey = callProfilingIntervalMillis > 0 ? startProfiler(callProfilingIntervalMillis) : null;
+		try {
+			return runWithDeadline(deadlineMillis, () -> applyTransformation(transformationMap, javaTensor));
+		} finally {
+			if (profilerKey != null)
+				lastCallProfile = stopProfiler(profilerKey);
+			if (reservation != null)
+				reservation.close();
+		}
+	}
+	
+	private < T extends RealType< T > & NativeType< T > > Tensor<T> applyTransformation(Map<String, Object> transformationMap, 
 																						Tensor<T> javaTensor) {
-		sendTensorToInterpreter(javaTensor);		
-		instantiatePythonTransformationObject(transformationMap, instantiatedTensor);
-		executeTransformations();
-		PythonTensor result = retrieveBioImageIoPythonTensorFromScope(javaTensor);
-		return result.toJava();
+		try {
+			sendTensorToInterpreter(javaTensor);		
+			instantiatePythonTransformationObject(transformationMap, instantiatedTensor);
+			executeTransformations();
+			if (offHeapResults)
+				return retrieveOffHeapTensorFromScope(javaTensor);
+			PythonTensor result = retrieveBioImageIoPythonTensorFromScope(javaTensor);
+			Tensor<T> javaResult = result.toJava(bufferPool);
+			// the array created by JEP has been copied into the image, nothing references it anymore
+			if (bufferPool != null)
+				bufferPool.adopt(result.getData().getData());
+			return javaResult;
+		} finally {
+			releasePythonObjects();
+		}
+	}
+	
+	/**
+	 * Apply transformations to the tensors of a sample. Every tensor of the sample crosses the bridge
+	 * in the same call, in both directions, and the measures required by all the transformations are
+	 * computed once over the whole sample. This lets a transformation use the measures of another tensor,
+	 * for example 'scale_range' with a 'reference_tensor'.
+	 * The argument 'tensor_name' of each transformation is the name of the tensor of the sample it is
+	 * applied to, and the transformations are applied in the given order.
+	 * @param sample
+	 * 	tensors of the sample, each one identified by its name
+	 * @param transformationMaps
+	 * 	transformations with their "name" and "kwargs"
+	 * @return every tensor of the sample after the transformations, by name, in the order of the sample
+	 */
+	public Map<String, Tensor<?>> applyTransformationsToSample(List<Tensor<?>> sample, 
+																List<Map<String, Object>> transformationMaps) {
+		return applyTransformationsToSample(sample, transformationMaps, NO_DEADLINE);
+	}
+	
+	/**
+	 * Apply transformations to the tensors of a sample, giving up if the result is not ready before the deadline
+	 * @param sample
+	 * 	tensors of the sample, each one identified by its name
+	 * @param transformationMaps
+	 * 	transformations with their "name" and "kwargs"
+	 * @param deadlineMillis
+	 * 	time, as given by {@link System#currentTimeMillis()}, when the request stops being useful, 
+	 * 	or {@link #NO_DEADLINE}
+	 * @return every tensor of the sample after the transformations, by name, in the order of the sample
+	 * @throws CancellationException if the deadline is reached before the result is ready
+	 * @see #applyTransformationsToSample(List, List)
+	 */
+	public Map<String, Tensor<?>> applyTransformationsToSample(List<Tensor<?>> sample, 
+												List<Map<String, Object>> transformationMaps, long deadlineMillis) {
+		List<String> names = new ArrayList<String>();
+		for (Tensor<?> tensor : sample) {
+			if (names.contains(tensor.getName()))
+				throw new IllegalArgumentException("The sample contains more than one tensor named '" + tensor.getName() + "'.");
+			names.add(tensor.getName());
+		}
+		List<BioimageioPythonTransformations> transformations = new ArrayList<BioimageioPythonTransformations>();
+		for (Map<String, Object> transformationMap : transformationMaps) {
+			BioimageioPythonTransformations transformation = 
+					BioimageioPythonTransformations.definePythonBioImageIoTransformation(transformationMap);
+			checkTensorInSample(transformation, transformation.getSampleName(), names);
+			Object reference = transformation.getKwargs().get("reference_tensor");
+			if (reference instanceof String)
+				checkTensorInSample(transformation, (String) reference, names);
+			transformations.add(transformation);
+		}
+		checkDeadline(deadlineMillis, names.toString());
+		TransferAdmissionController.Reservation reservation = reserveMemory(names.toString(), deadlineMillis, 
+				sample.toArray(new Tensor<?>[sample.size()]));
+		try {
+			return runWithDeadline(deadlineMillis, () -> applySample(sample, transformations));
+		} finally {
+			if (reservation != null)
+				reservation.close();
+		}
+	}
+	
+	private static void checkTensorInSample(BioimageioPythonTransformations transformation, String tensorName, 
+											List<String> names) {
+		if (!names.contains(tensorName))
+			throw new IllegalArgumentException("The transformation '" + transformation.getSpec().getName() 
+					+ "' refers to the tensor '" + tensorName + "', which is not part of the sample " + names + ".");
+	}
+	
+	private Map<String, Tensor<?>> applySample(List<Tensor<?>> sample, List<BioimageioPythonTransformations> transformations) {
+		List<List<Object>> pythonTransformations = toPythonTransformations(transformations);
+		PythonSample pythonSample = PythonSample.fromJavaTensors(sample, bufferPool);
+		List<?> results;
+		try {
+			results = (List<?>) interp.invoke(BRIDGE + ".apply_sample", pythonSample.getNames(), pythonSample.getArrays(), 
+					pythonSample.getAxes(), pythonSample.getPackedShapes(), pythonTransformations);
+		} finally {
+			pythonSample.release();
+		}
+		return PythonSample.toJavaTensors(results, bufferPool);
+	}
+	
+	/**
+	 * Describe transformations as the Python helpers expect them: module, class name, arguments and name
+	 * of the tensor they are applied to, and hash of the source of the custom ones.
+	 * The classes of custom transformations are defined if needed.
+	 */
+	private List<List<Object>> toPythonTransformations(List<BioimageioPythonTransformations> transformations) {
+		List<List<Object>> pythonTransformations = new ArrayList<List<Object>>();
+		for (BioimageioPythonTransformations transformation : transformations) {
+			TransformationSpec spec = transformation.getSpec();
+			if (spec.isCustom())
+				defineCustomTransformation(spec);
+			pythonTransformations.add(Arrays.asList(spec.getPythonModule(), spec.getPythonClassName(), 
+					transformation.getKwargs(), transformation.getSampleName(), spec.getSourceHash()));
+		}
+		return pythonTransformations;
+	}
+	
+	/**
+	 * Create in Python the state of a {@link TimeSeriesSession}
+	 * @param sessionKey
+	 * 	key of the session in the Python helpers module
+	 * @param transformations
+	 * 	transformations applied to every frame
+	 */
+	void openTimeSeriesSession(String sessionKey, List<BioimageioPythonTransformations> transformations) {
+		List<List<Object>> pythonTransformations = toPythonTransformations(transformations);
+		interp.invoke(BRIDGE + ".open_session", sessionKey, pythonTransformations);
+	}
+	
+	/**
+	 * Apply the transformations of a {@link TimeSeriesSession} to its next frame
+	 * @param sessionKey
+	 * 	key of the session in the Python helpers module
+	 * @param frame
+	 * 	frame already converted, its data array goes back to its pool once it has been sent
+	 * @return the transformed frame
+	 */
+	Tensor<?> processTimeSeriesFrame(String sessionKey, PythonTensor frame) {
+		List<?> result;
+		try {
+			result = (List<?>) interp.invoke(BRIDGE + ".session_frame", sessionKey, frame.getName(), frame.getData(), 
+					frame.getAxesOrder(), frame.isPackedBits() ? frame.getShape() : null);
+		} finally {
+			frame.release();
+		}
+		return PythonSample.toJavaTensors(Collections.singletonList(result), bufferPool).get(frame.getName());
+	}
+	
+	/**
+	 * Remove from Python the state of a {@link TimeSeriesSession}
+	 * @param sessionKey
+	 * 	key of the session in the Python helpers module
+	 */
+	void closeTimeSeriesSession(String sessionKey) {
+		interp.invoke(BRIDGE + ".close_session", sessionKey);
+	}
+	
+	/**
+	 * Reserve the estimated peak footprint of a request in the admission controller, if there is one
+	 * @param requestName
+	 * 	name of the request, used in the error messages
+	 * @param deadlineMillis
+	 * 	time, as given by {@link System#currentTimeMillis()}, after which the request stops waiting,
+	 * 	or {@link #NO_DEADLINE}
+	 * @param tensors
+	 * 	tensors sent to Python by the request
+	 * @return the reservation, that has to be closed once the request has finished, or null if there is
+	 * 	no admission controller
+	 */
+	TransferAdmissionController.Reservation reserveMemory(String requestName, long deadlineMillis, Tensor<?>... tensors) {
+		if (admissionController == null)
+			return null;
+		long bytes = 0;
+		for (Tensor<?> tensor : tensors)
+			bytes += TransferAdmissionController.estimatePeakBytes(tensor);
+		try {
+			return admissionController.reserve(bytes, deadlineMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("Interrupted while waiting for memory to process '" 
+					+ requestName + "'.", e);
+		} catch (RejectedExecutionException e) {
+			checkDeadline(deadlineMillis, requestName);
+			throw e;
+		}
+	}
+	
+	private static void checkDeadline(long deadlineMillis, String requestName) {
+		if (deadlineMillis != NO_DEADLINE && System.currentTimeMillis() >= deadlineMillis)
+			throw new CancellationException("The deadline of the request on '" + requestName + "' has passed.");
+	}
+	
+	/**
+	 * Run some work that uses the interpreter of this instance, interrupting the Python code it runs
+	 * once the deadline is reached. After an interruption the Python objects of the current request are
+	 * removed, so the instance is ready for the next request.
+	 * Nested calls, such as a worker running a request that has its own deadline, arm a single timer
+	 * for the outermost call, unless the inner deadline is earlier.
+	 * @param <R>
+	 * 	type of the result of the work
+	 * @param deadlineMillis
+	 * 	time, as given by {@link System#currentTimeMillis()}, when the work stops being useful, 
+	 * 	or {@link #NO_DEADLINE}
+	 * @param work
+	 * 	work to do, it has to run on the thread of the interpreter
+	 * @return the result of the work
+	 * @throws CancellationException if the deadline is reached before the work has finished
+	 */
+	public < R > R runWithDeadline(long deadlineMillis, Supplier<R> work) {
+		if (deadlineMillis == NO_DEADLINE)
+			return work.get();
+		checkDeadline(deadlineMillis, "the interpreter");
+		// the call is already interrupted at this deadline or before by an outer call
+		if (armedDeadlineMillis <= deadlineMillis)
+			return work.get();
+		long outerDeadlineMillis = armedDeadlineMillis;
+		String deadlineKey = "deadline_" + DEADLINE_COUNTER.incrementAndGet();
+		interp.invoke(BRIDGE + ".arm_deadline", deadlineKey, (deadlineMillis - System.currentTimeMillis()) / 1000.0);
+		armedDeadlineMillis = deadlineMillis;
+		try {
+			return work.get();
+		} catch (JepException e) {
+			if (System.currentTimeMillis() < deadlineMillis && !String.valueOf(e.getMessage()).contains("DeadlineExceeded"))
+				throw e;
+			CancellationException ex = new CancellationException("The Python work was interrupted because its deadline passed.");
+			ex.initCause(e);
+			throw ex;
+		} finally {
+			armedDeadlineMillis = outerDeadlineMillis;
+			disarmDeadline(deadlineKey);
+			releasePythonObjects();
+		}
+	}
+	
+	private void disarmDeadline(String deadlineKey) {
+		try {
+			interp.invoke(BRIDGE + ".disarm_deadline", deadlineKey);
+		} catch (JepException e) {
+			// The pending interruption was raised when entering the function, it is consumed now.
+			// Disarming twice is harmless in case the first call got to remove the deadline
+			interp.invoke(BRIDGE + ".disarm_deadline", deadlineKey);
+		}
+	}
+	
+	/**
+	 * Set the controller that limits the memory held by the requests in flight. Every call to
+	 * {@link #applyTransformationToTensorInPython(Map, Tensor)} and every prediction of the models loaded
+	 * by this instance reserves its estimated peak footprint before sending the tensors and gives it back
+	 * once the results have been built.
+	 * @param admissionController
+	 * 	the controller, usually shared by every instance, or null to not limit the memory
+	 */
+	public void setAdmissionController(TransferAdmissionController admissionController) {
+		this.admissionController = admissionController;
+	}
+	
+	/**
+	 * 
+	 * @return the controller that limits the memory held by the requests in flight, null if none
+	 */
+	public TransferAdmissionController getAdmissionController() {
+		return admissionController;
+	}
+	
+	/**
+	 * Remove the tensor and the transformations instantiated for the last request from the Python scope
+	 */
+	public void releasePythonObjects() {
+		List<String> keys = new ArrayList<String>();
+		if (instantiatedTensor != null)
+			keys.add(instantiatedTensor);
+		for (BioimageioPythonTransformations transformation : instantiatedTransformations)
+			keys.add(transformation.getTransformationObjectName());
+		instantiatedTensor = null;
+		instantiatedTransformations.clear();
+		if (keys.size() > 0)
+			interp.invoke(BRIDGE + ".release", keys.toArray());
+	}
+	
+	/**
+	 * Count the objects held by the Python helpers (tensors, transformations, models, sessions...), 
+	 * the objects tracked by the Python garbage collector and the Python objects referenced from Java.
+	 * Values that keep growing while the same requests are repeated reveal a leak.
+	 * @return number of objects of each kind, by name
+	 */
+	public Map<String, Long> getPythonObjectCounts() {
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		for (Object pair : (List<?>) interp.invoke(BRIDGE + ".counts"))
+			counts.put((String) ((List<?>) pair).get(0), ((Number) ((List<?>) pair).get(1)).longValue());
+		counts.put("java_instantiated_transformations", (long) instantiatedTransformations.size());
+		counts.put("java_loaded_pipelines", (long) loadedPipelines.size());
+		counts.put("java_custom_transformations", (long) definedCustomTransformations.size());
+		return counts;
+	}
+	
+	/**
+	 * Give the memory of a tensor returned by {@link #applyTransformationToTensorInPython(Map, Tensor)}
+	 * back. Off-heap results are closed, their native memory is freed once they are garbage collected,
+	 * and results built with a buffer pool give their array back to the pool. Tensors whose storage
+	 * was not borrowed from the pool are left alone, so tensors created by the caller are never recycled.
+	 * The tensor must not be used after calling this method.
+	 * @param javaTensor
+	 * 	tensor that is not needed anymore
+	 */
+	public void releaseTensor(Tensor<?> javaTensor) {
+		if (javaTensor == null)
+			return;
+		if (javaTensor.getData() instanceof OffHeapImg)
+			((OffHeapImg<?, ?>) javaTensor.getData()).close();
+		else if (bufferPool != null)
+			bufferPool.recycle(javaTensor.getData());
+	}
+	
+	/**
+	 * Set the pool from which the flat arrays used to send tensors to Python and the images 
+	 * created for the results are borrowed. A single pool can be shared by several instances.
+	 * @param bufferPool
+	 * 	the pool, or null to allocate new arrays for every conversion
+	 */
+	public void setBufferPool(PrimitiveBufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+	
+	/**
+	 * Choose whether the tensors returned by {@link #applyTransformationToTensorInPython(Map, Tensor)}
+	 * are backed by native memory ({@link OffHeapImg}) instead of the Java heap
+	 * @param offHeapResults
+	 * 	whether the results are stored off-heap
+	 */
+	public void setOffHeapResults(boolean offHeapResults) {
+		this.offHeapResults = offHeapResults;
+	}
+	
+	/**
+	 * 
+	 * @return whether the results are stored off-heap
+	 */
+	public boolean isOffHeapResults() {
+		return offHeapResults;
+	}
+	
+	/**
+	 * 
+	 * @return the pool used by the conversions, null if none
+	 */
+	public PrimitiveBufferPool getBufferPool() {
+		return bufferPool;
+	}
+	
+	/**
+	 * Narrow the floating point tensors sent to Python and fetched from it with
+	 * {@link #applyTransformationToTensorInPython(Map, Tensor)}, to move fewer bytes across the bridge.
+	 * The error of every transfer is given by {@link #getLastSendReport()} and {@link #getLastReturnReport()}.
+	 * Results stored off-heap are copied by Numpy in place and are not narrowed.
+	 * @param transportPolicy
+	 * 	the policy, {@link TransportPolicy#FULL_PRECISION} to send every tensor with its own data type
+	 */
+	public void setTransportPolicy(TransportPolicy transportPolicy) {
+		if (transportPolicy == null)
+			throw new IllegalArgumentException("The transport policy cannot be null, use TransportPolicy.FULL_PRECISION.");
+		this.transportPolicy = transportPolicy;
+	}
+	
+	/**
+	 * 
+	 * @return the precision of the floating point tensors while they cross the bridge
+	 */
+	public TransportPolicy getTransportPolicy() {
+		return transportPolicy;
+	}
+	
+	/**
+	 * 
+	 * @return precision and error of the last tensor sent with {@link #sendTensorToInterpreter(Tensor)}, null
+	 * 	if none has been sent
+	 */
+	public TransportReport getLastSendReport() {
+		return lastSendReport;
+	}
+	
+	/**
+	 * 
+	 * @return precision and error of the last tensor fetched from Python, null if none has been fetched
+	 */
+	public TransportReport getLastReturnReport() {
+		return lastReturnReport;
+	}
+	
+	/**
+	 * Serve repeated calls to {@link #applyTransformationToTensorInPython(Map, Tensor)} with the same
+	 * input content and transformation from a cache. A single cache can be shared by several instances.
+	 * @param resultCache
+	 * 	the cache, or null to compute every result
+	 */
+	public void setResultCache(TransformationResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+	
+	/**
+	 * 
+	 * @return the cache of the results, null if none
+	 */
+	public TransformationResultCache getResultCache() {
+		return resultCache;
+	}
+	
+	/**
+	 * Profile every call to {@link #applyTransformationToTensorInPython(Map, Tensor)} by sampling the
+	 * Python stack of the interpreter. The profile of the last call is given by {@link #getLastCallProfile()}.
+	 * @param intervalMillis
+	 * 	time between two samples in milliseconds, 0 to stop profiling the calls
+	 */
+	public void setCallProfiling(long intervalMillis) {
+		if (intervalMillis < 0)
+			throw new IllegalArgumentException("The sampling interval cannot be negative.");
+		this.callProfilingIntervalMillis = intervalMillis;
+	}
+	
+	/**
+	 * 
+	 * @return the profile of the last call to {@link #applyTransformationToTensorInPython(Map, Tensor)},
+	 * 	null if the calls are not profiled
+	 */
+	public PythonProfile getLastCallProfile() {
+		return lastCallProfile;
+	}
+	
+	/**
+	 * Start sampling the Python stack of the interpreter. Every call made until {@link #stopProfiling()}
+	 * is included in the profile, model predictions too.
+	 * @param intervalMillis
+	 * 	time between two samples in milliseconds
+	 */
+	public void startProfiling(long intervalMillis) {
+		if (windowProfilerKey != null)
+			throw new IllegalStateException("The interpreter is already being profiled.");
+		if (intervalMillis <= 0)
+			throw new IllegalArgumentException("The sampling interval has to be positive.");
+		windowProfilerKey = startProfiler(intervalMillis);
+	}
+	
+	/**
+	 * Stop the profiling started with {@link #startProfiling(long)}
+	 * @return the profile of the Python code run since the profiling started
+	 */
+	public PythonProfile stopProfiling() {
+		if (windowProfilerKey == null)
+			throw new IllegalStateException("The interpreter is not being profiled.");
+		String key = windowProfilerKey;
+		windowProfilerKey = null;
+		return stopProfiler(key);
+	}
+	
+	private String startProfiler(long intervalMillis) {
+		String key = "profiler_" + PROFILER_COUNTER.incrementAndGet();
+		interp.invoke(BRIDGE + ".start_profiler", key, intervalMillis / 1000.0);
+		return key;
+	}
+	
+	private PythonProfile stopProfiler(String key) {
+		return PythonProfile.fromPython((List<?>) interp.invoke(BRIDGE + ".stop_profiler", key));
 	}
 	
 	public void executeTransformations() {
-		String command = "";
-		for (String transformation : instantiatedTransformations) {
-			command = instantiatedTensor + " = " + transformation + ".apply(" + instantiatedTensor + ")" + System.lineSeparator();
+		for (BioimageioPythonTransformations transformation : instantiatedTransformations) {
+			interp.invoke(BRIDGE + ".apply_spec", transformation.getTransformationObjectName(), 
+					instantiatedTensor, transformation.getSampleName());
 		}
-		interp.exec(command);
+	}
+	
+	/**
+	 * Load a BioImage.io model in the interpreter. The model stays loaded until the returned
+	 * pipeline is closed, and predictions run pre-processing, inference and post-processing in Python.
+	 * @param rdfSource
+	 * 	path or url to the rdf.yaml file of the model or to its zip file
+	 * @return the pipeline ready to make predictions
+	 */
+	public BioImageIoPredictionPipeline loadModel(String rdfSource) {
+		return loadModel(rdfSource, null);
+	}
+	
+	/**
+	 * Load a BioImage.io model in the interpreter. The model stays loaded until the returned
+	 * pipeline is closed, and predictions run pre-processing, inference and post-processing in Python.
+	 * @param rdfSource
+	 * 	path or url to the rdf.yaml file of the model or to its zip file
+	 * @param weightFormat
+	 * 	weight format used to run the model, for example "torchscript", if null the BioImage.io core chooses
+	 * @return the pipeline ready to make predictions
+	 */
+	public BioImageIoPredictionPipeline loadModel(String rdfSource, String weightFormat) {
+		BioImageIoPredictionPipeline pipeline = BioImageIoPredictionPipeline.load(this, rdfSource, weightFormat);
+		loadedPipelines.add(pipeline);
+		return pipeline;
+	}
+	
+	void pipelineClosed(BioImageIoPredictionPipeline pipeline) {
+		loadedPipelines.remove(pipeline);
 	}
 	
 	public PythonExec getPythonExecutor() {
@@ -140,6 +1017,11 @@ public class BioImageIoPython implements AutoCloseable {
 	}
 
 	public void close() throws IOException {
+		for (BioImageIoPredictionPipeline pipeline : new ArrayList<BioImageIoPredictionPipeline>(loadedPipelines))
+			pipeline.close();
+		// the sampling thread has to finish before the interpreter is closed
+		if (windowProfilerKey != null)
+			stopProfiling();
 		if (pythonExec != null )
 			pythonExec.close();
 		if (interp != null)
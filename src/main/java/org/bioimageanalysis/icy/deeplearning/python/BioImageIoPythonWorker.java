@@ -0,0 +1,315 @@
+package org.bioimageanalysis.icy.deeplearning.python;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.bioimageanalysis.icy.deeplearning.tensor.Tensor;
+import org.bioimageanalysis.icy.jep.exec.PythonExec;
+import org.bioimageanalysis.icy.jep.install.system.Log;
+
+import jep.JepConfig;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Thread that owns a {@link BioImageIoPython} instance and runs the requests sent to it one after the other.
+ * JEP interpreters can only be used from the thread that created them, so the instance is activated
+ * and used only from the thread of the worker.
+ *
+ * Every request can have a deadline. Requests whose deadline passes while they wait in the queue are
+ * dropped without being run, and running requests are interrupted in Python with
+ * {@link BioImageIoPython#runWithDeadline(long, java.util.function.Supplier)}, leaving the worker ready
+ * for the next request.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class BioImageIoPythonWorker implements AutoCloseable {
+	/**
+	 * Thread where the interpreter lives
+	 */
+	private final ExecutorService executor;
+	/**
+	 * Activation of the {@link BioImageIoPython} instance
+	 */
+	private final CompletableFuture<BioImageIoPython> activation;
+	/**
+	 * Completed once the worker is activated and, if requested, warmed up
+	 */
+	private final CompletableFuture<BioImageIoPythonWorker> readiness = new CompletableFuture<BioImageIoPythonWorker>();
+
+	private BioImageIoPythonWorker(ActivationTask activationTask, boolean warmUp) {
+		this.executor = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "bioimageio-python-worker");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.activation = new CompletableFuture<BioImageIoPython>();
+		executor.execute(() -> {
+			try {
+				activation.complete(activationTask.activate());
+			} catch (Throwable e) {
+				activation.completeExceptionally(e);
+				readiness.completeExceptionally(e);
+			}
+		});
+		// the warm-up is queued right after the activation, so it runs before any request
+		executor.execute(() -> {
+			BioImageIoPython bioimageio = activation.getNow(null);
+			if (bioimageio == null)
+				return;
+			try {
+				if (warmUp)
+					bioimageio.warmUp();
+			} finally {
+				// a failed warm-up only makes the first requests slower
+				readiness.complete(this);
+			}
+		});
+	}
+
+	/**
+	 * Code that activates a {@link BioImageIoPython} instance in the thread of the worker
+	 */
+	public interface ActivationTask {
+		public BioImageIoPython activate() throws IOException, InterruptedException;
+	}
+
+	/**
+	 * Create a worker and wait until its {@link BioImageIoPython} instance is activated
+	 * @param activationTask
+	 * 	code creating the instance, it runs in the thread of the worker
+	 * @return the worker ready to accept requests
+	 * @throws IOException if the activation fails
+	 * @throws InterruptedException if the thread is interrupted while waiting for the activation
+	 */
+	public static BioImageIoPythonWorker activate(ActivationTask activationTask) throws IOException, InterruptedException {
+		BioImageIoPythonWorker worker = new BioImageIoPythonWorker(activationTask, false);
+		try {
+			worker.activation.get();
+		} catch (ExecutionException e) {
+			worker.close();
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Unable to activate " + BioImageIoPython.class.getSimpleName(), e.getCause());
+		}
+		return worker;
+	}
+
+	/**
+	 * Create a worker and wait until its {@link BioImageIoPython} instance is activated
+	 * @param pythonHome
+	 * 	path to the Python environment
+	 * @param jepPath
+	 * 	path to the JEP installation
+	 * @return the worker ready to accept requests
+	 * @throws IOException if the activation fails
+	 * @throws InterruptedException if the thread is interrupted while waiting for the activation
+	 */
+	public static BioImageIoPythonWorker activate(String pythonHome, String jepPath) throws IOException, InterruptedException {
+		return activate(() -> BioImageIoPython.activate(pythonHome, jepPath));
+	}
+
+	/**
+	 * Create a worker and wait until its {@link BioImageIoPython} instance is activated
+	 * @param pythonHome
+	 * 	path to the Python environment
+	 * @param jepPath
+	 * 	path to the JEP installation
+	 * @param jepConfig
+	 * 	configuration of the interpreter
+	 * @return the worker ready to accept requests
+	 * @throws IOException if the activation fails
+	 * @throws InterruptedException if the thread is interrupted while waiting for the activation
+	 */
+	public static BioImageIoPythonWorker activate(String pythonHome, String jepPath, JepConfig jepConfig)
+			throws IOException, InterruptedException {
+		return activate(() -> BioImageIoPython.activate(pythonHome, jepPath, jepConfig));
+	}
+
+	/**
+	 * Create a worker that activates its {@link BioImageIoPython} instance and warms it up in the background,
+	 * see {@link BioImageIoPython#warmUp()}. The method returns straight away, requests can be submitted
+	 * at any time and run once the warm-up has finished. {@link #getReadiness()} tells when that happens.
+	 * @param activationTask
+	 * 	code creating the instance, it runs in the thread of the worker
+	 * @return the worker, that might not be ready yet
+	 */
+	public static BioImageIoPythonWorker activateAsync(ActivationTask activationTask) {
+		return new BioImageIoPythonWorker(activationTask, true);
+	}
+
+	/**
+	 * Create a worker that activates its {@link BioImageIoPython} instance and warms it up in the background
+	 * @param pythonHome
+	 * 	path to the Python environment
+	 * @param jepPath
+	 * 	path to the JEP installation
+	 * @return the worker, that might not be ready yet
+	 * @see #activateAsync(ActivationTask)
+	 */
+	public static BioImageIoPythonWorker activateAsync(String pythonHome, String jepPath) {
+		return activateAsync(() -> BioImageIoPython.activate(pythonHome, jepPath));
+	}
+
+	/**
+	 * Create a worker that activates its {@link BioImageIoPython} instance and warms it up in the background
+	 * @param pythonHome
+	 * 	path to the Python environment
+	 * @param jepPath
+	 * 	path to the JEP installation
+	 * @param jepConfig
+	 * 	configuration of the interpreter
+	 * @return the worker, that might not be ready yet
+	 * @see #activateAsync(ActivationTask)
+	 */
+	public static BioImageIoPythonWorker activateAsync(String pythonHome, String jepPath, JepConfig jepConfig) {
+		return activateAsync(() -> BioImageIoPython.activate(pythonHome, jepPath, jepConfig));
+	}
+
+	/**
+	 *
+	 * @return a future completed with the worker once it is activated and warmed up, or with the
+	 * 	exception that made the activation fail
+	 */
+	public CompletableFuture<BioImageIoPythonWorker> getReadiness() {
+		return readiness;
+	}
+
+	/**
+	 *
+	 * @return whether the worker is activated and warmed up
+	 */
+	public boolean isReady() {
+		return readiness.isDone() && !readiness.isCompletedExceptionally();
+	}
+
+	/**
+	 * Run some work with the {@link BioImageIoPython} instance of the worker
+	 * @param <R>
+	 * 	type of the result
+	 * @param task
+	 * 	work to do with the instance
+	 * @param deadlineMillis
+	 * 	time, as given by {@link System#currentTimeMillis()}, when the work stops being useful,
+	 * 	or {@link BioImageIoPython#NO_DEADLINE}
+	 * @return a future completed with the result, or with a {@link CancellationException} if the
+	 * 	deadline passes before the work is done
+	 */
+	public < R > CompletableFuture<R> submit(Function<BioImageIoPython, R> task, long deadlineMillis) {
+		CompletableFuture<R> future = new CompletableFuture<R>();
+		try {
+			executor.execute(() -> run(task, deadlineMillis, future));
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	private < R > void run(Function<BioImageIoPython, R> task, long deadlineMillis, CompletableFuture<R> future) {
+		if (future.isDone())
+			return;
+		if (deadlineMillis != BioImageIoPython.NO_DEADLINE && System.currentTimeMillis() >= deadlineMillis) {
+			future.completeExceptionally(new CancellationException("The request expired while waiting in the queue."));
+			return;
+		}
+		try {
+			BioImageIoPython bioimageio = activation.getNow(null);
+			if (bioimageio == null)
+				throw new IllegalStateException("The worker could not be activated.");
+			future.complete(bioimageio.runWithDeadline(deadlineMillis, () -> task.apply(bioimageio)));
+		} catch (Throwable e) {
+			future.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Apply a transformation to a tensor in the thread of the worker
+	 * @param <T>
+	 * 	data type of the tensor
+	 * @param transformationMap
+	 * 	transformation with its "name" and "kwargs"
+	 * @param javaTensor
+	 * 	tensor to transform
+	 * @param timeout
+	 * 	maximum time, counted from now, to get the result
+	 * @param unit
+	 * 	unit of the timeout
+	 * @return a future completed with the transformed tensor
+	 */
+	public < T extends RealType< T > & NativeType< T > > CompletableFuture<Tensor<T>> applyTransformation(
+			Map<String, Object> transformationMap, Tensor<T> javaTensor, long timeout, TimeUnit unit) {
+		long deadlineMillis = System.currentTimeMillis() + unit.toMillis(timeout);
+		return submit(bioimageio -> bioimageio.applyTransformationToTensorInPython(transformationMap, javaTensor, deadlineMillis),
+				deadlineMillis);
+	}
+
+	/**
+	 * Apply a transformation to a tensor in the thread of the worker, without deadline
+	 * @param <T>
+	 * 	data type of the tensor
+	 * @param transformationMap
+	 * 	transformation with its "name" and "kwargs"
+	 * @param javaTensor
+	 * 	tensor to transform
+	 * @return a future completed with the transformed tensor
+	 */
+	public < T extends RealType< T > & NativeType< T > > CompletableFuture<Tensor<T>> applyTransformation(
+			Map<String, Object> transformationMap, Tensor<T> javaTensor) {
+		return submit(bioimageio -> bioimageio.applyTransformationToTensorInPython(transformationMap, javaTensor),
+				BioImageIoPython.NO_DEADLINE);
+	}
+
+	/**
+	 * Open a session to process the frames of a time series one at a time, with the measures of the
+	 * "per_dataset" transformations updated incrementally
+	 * @param tensorName
+	 * 	name of the tensor of the frames, the argument 'tensor_name' of every transformation
+	 * @param transformationMaps
+	 * 	transformations with their "name" and "kwargs", applied in order to every frame
+	 * @return the session, ready to receive frames
+	 */
+	public TimeSeriesSession openTimeSeriesSession(String tensorName, List<Map<String, Object>> transformationMaps) {
+		return TimeSeriesSession.open(this, tensorName, transformationMaps);
+	}
+
+	/**
+	 * Stop accepting requests, wait for the queued ones and close the {@link BioImageIoPython} instance
+	 * in the thread of the worker
+	 */
+	@Override
+	public void close() {
+		if (executor.isShutdown())
+			return;
+		executor.execute(() -> {
+			BioImageIoPython bioimageio = activation.getNow(null);
+			if (bioimageio == null)
+				return;
+			try {
+				bioimageio.close();
+			} catch (IOException e) {
+				System.out.println(Log.getCurrentTime() + " -- The worker could not close its interpreter: " 
+						+ e.getMessage());
+			}
+		});
+		executor.shutdown();
+	}
+
+	/**
+	 *
+	 * @return the {@link PythonExec} used by the instance of the worker, null if it is not activated
+	 */
+	public PythonExec getPythonExecutor() {
+		BioImageIoPython bioimageio = activation.getNow(null);
+		return bioimageio == null ? null : bioimageio.getPythonExecutor();
+	}
+}
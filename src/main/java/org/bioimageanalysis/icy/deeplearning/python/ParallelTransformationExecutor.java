@@ -0,0 +1,222 @@
+package org.bioimageanalysis.icy.deeplearning.python;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bioimageanalysis.icy.deeplearning.tensor.Tensor;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Runs transformations on several {@link BioImageIoPythonWorker}s at the same time by splitting the
+ * tensors along the axes where the work is independent. The batch, time and channel axes are split
+ * when the transformation is applied pixel by pixel, or when it computes its measures per sample only
+ * over other axes (the 'axes' argument). Each slice is transformed by a different worker, in its own
+ * interpreter, and the results are put back together with a {@link Views#concatenate(int, List)} view,
+ * without copying them.
+ *
+ * All the JEP interpreters of the JVM share the Python global interpreter lock, so the workers only run
+ * at the same time while Python is inside code that releases it, such as most Numpy kernels on large
+ * arrays. The conversions in Java run in parallel, but the Python bytecode of the transformations does
+ * not, so the speed-up depends on how much of each transformation is spent in those kernels and does not
+ * grow with the number of cores.
+ *
+ * Transformations that need the whole tensor (measures over every axis, 'per_dataset' mode, reference
+ * tensors, arrays of parameters or custom transformations) run on a single worker.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class ParallelTransformationExecutor implements AutoCloseable {
+	/**
+	 * Axes along which tensors can be split, in order of preference
+	 */
+	private static final String INDEPENDENT_AXES = "bct";
+	/**
+	 * Transformations applied pixel by pixel
+	 */
+	private static final List<String> ELEMENTWISE_TRANSFORMATIONS =
+			Arrays.asList("binarize", "clip", "scale_linear", "sigmoid");
+	/**
+	 * Transformations that normalize with measures computed over the 'axes' argument
+	 */
+	private static final List<String> MEASURE_TRANSFORMATIONS =
+			Arrays.asList("scale_range", "zero_mean_unit_variance");
+	/**
+	 * Workers the slices are sent to
+	 */
+	private final List<BioImageIoPythonWorker> workers;
+	/**
+	 * Whether the workers were created by this executor and have to be closed with it
+	 */
+	private final boolean ownsWorkers;
+	/**
+	 * Worker that receives the next request that cannot be split, or the first slice of the next split request
+	 */
+	private final AtomicInteger nextWorker = new AtomicInteger();
+
+	private ParallelTransformationExecutor(List<BioImageIoPythonWorker> workers, boolean ownsWorkers) {
+		if (workers.isEmpty())
+			throw new IllegalArgumentException("At least one worker is needed.");
+		this.workers = Collections.unmodifiableList(new ArrayList<BioImageIoPythonWorker>(workers));
+		this.ownsWorkers = ownsWorkers;
+	}
+
+	/**
+	 * Create an executor that sends the slices to the given workers. The workers are not closed
+	 * with the executor.
+	 * @param workers
+	 * 	workers the slices are sent to
+	 * @return the executor
+	 */
+	public static ParallelTransformationExecutor build(Collection<BioImageIoPythonWorker> workers) {
+		return new ParallelTransformationExecutor(new ArrayList<BioImageIoPythonWorker>(workers), false);
+	}
+
+	/**
+	 * Create an executor with its own workers, activated and warmed up in the background.
+	 * The workers are closed with the executor.
+	 * @param pythonHome
+	 * 	directory of the Python installation
+	 * @param jepPath
+	 * 	path to the JEP native library
+	 * @param nWorkers
+	 * 	number of workers, each one with its own interpreter
+	 * @return the executor
+	 */
+	public static ParallelTransformationExecutor activate(String pythonHome, String jepPath, int nWorkers) {
+		if (nWorkers < 1)
+			throw new IllegalArgumentException("At least one worker is needed.");
+		List<BioImageIoPythonWorker> workers = new ArrayList<BioImageIoPythonWorker>();
+		for (int i = 0; i < nWorkers; i ++)
+			workers.add(BioImageIoPythonWorker.activateAsync(pythonHome, jepPath));
+		return new ParallelTransformationExecutor(workers, true);
+	}
+
+	/**
+	 * Find the axes of a tensor along which a transformation can be applied to each slice separately
+	 * giving the same result as applying it to the whole tensor
+	 * @param transformationMap
+	 * 	transformation with its "name" and "kwargs"
+	 * @param axesOrder
+	 * 	axes order of the tensor
+	 * @return the axes that can be split, among batch, channel and time, empty if the tensor has to be
+	 * 	transformed as a whole
+	 */
+	public static String findSplittableAxes(Map<String, Object> transformationMap, String axesOrder) {
+		String name = (String) transformationMap.get("name");
+		Map<?, ?> kwargs = (Map<?, ?>) transformationMap.get("kwargs");
+		if (kwargs == null)
+			kwargs = Collections.emptyMap();
+		// arrays of parameters change along some axis, slicing would need to slice them too
+		for (Object value : kwargs.values()) {
+			if (value != null && (value.getClass().isArray() || value instanceof Collection))
+				return "";
+		}
+		String excludedAxes;
+		if (ELEMENTWISE_TRANSFORMATIONS.contains(name)) {
+			excludedAxes = "";
+		} else if (MEASURE_TRANSFORMATIONS.contains(name)) {
+			Object mode = kwargs.get("mode");
+			if (kwargs.get("reference_tensor") != null || "per_dataset".equals(mode))
+				return "";
+			if ("fixed".equals(mode))
+				excludedAxes = "";
+			else if (kwargs.get("axes") instanceof String)
+				excludedAxes = (String) kwargs.get("axes");
+			else
+				return "";
+		} else {
+			return "";
+		}
+		String splittable = "";
+		for (char axis : INDEPENDENT_AXES.toCharArray()) {
+			if (axesOrder.indexOf(axis) != -1 && excludedAxes.indexOf(axis) == -1)
+				splittable += axis;
+		}
+		return splittable;
+	}
+
+	/**
+	 * Apply a transformation to a tensor. If the tensor can be split, the slices are transformed at the
+	 * same time by the workers, otherwise the whole tensor goes to one of them.
+	 * The result of a split tensor is a view over the results of the slices, so it cannot be given back
+	 * with {@link BioImageIoPython#releaseTensor(Tensor)}.
+	 * @param <T>
+	 * 	data type of the tensor
+	 * @param transformationMap
+	 * 	transformation with its "name" and "kwargs"
+	 * @param javaTensor
+	 * 	tensor to transform
+	 * @return a future completed with the transformed tensor
+	 */
+	public < T extends RealType< T > & NativeType< T > > CompletableFuture<Tensor<T>> applyTransformation(
+			Map<String, Object> transformationMap, Tensor<T> javaTensor) {
+		RandomAccessibleInterval<T> data = javaTensor.getData();
+		String axesOrder = javaTensor.getAxesOrderString();
+		int splitDim = -1;
+		for (char axis : findSplittableAxes(transformationMap, axesOrder).toCharArray()) {
+			int d = axesOrder.indexOf(axis);
+			if (splitDim == -1 || data.dimension(d) > data.dimension(splitDim))
+				splitDim = d;
+		}
+		int nSlices = splitDim == -1 ? 1 : (int) Math.min(data.dimension(splitDim), workers.size());
+		// every request starts where the previous one ended, so concurrent requests spread over all the workers
+		int firstWorker = nextWorker.getAndAdd(Math.max(nSlices, 1));
+		if (nSlices < 2) {
+			BioImageIoPythonWorker worker = workers.get(Math.floorMod(firstWorker, workers.size()));
+			return worker.applyTransformation(transformationMap, javaTensor);
+		}
+		char splitAxis = axesOrder.charAt(splitDim);
+		List<CompletableFuture<Tensor<T>>> futures = new ArrayList<CompletableFuture<Tensor<T>>>();
+		long size = data.dimension(splitDim);
+		for (int i = 0; i < nSlices; i ++) {
+			long[] min = data.minAsLongArray();
+			long[] max = data.maxAsLongArray();
+			min[splitDim] = data.min(splitDim) + size * i / nSlices;
+			max[splitDim] = data.min(splitDim) + size * (i + 1) / nSlices - 1;
+			Tensor<T> slice = Tensor.build(javaTensor.getName(), axesOrder, Views.interval(data, min, max));
+			BioImageIoPythonWorker worker = workers.get(Math.floorMod(firstWorker + i, workers.size()));
+			futures.add(worker.applyTransformation(transformationMap, slice));
+		}
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).thenApply(v -> {
+			List<RandomAccessibleInterval<T>> results = new ArrayList<RandomAccessibleInterval<T>>();
+			for (CompletableFuture<Tensor<T>> future : futures)
+				results.add(future.join().getData());
+			Tensor<T> first = futures.get(0).join();
+			int resultDim = first.getAxesOrderString().indexOf(splitAxis);
+			if (resultDim == -1)
+				throw new IllegalArgumentException("The result of the transformation does not have the axis '" 
+						+ splitAxis + "' the tensor was split along.");
+			return Tensor.build(first.getName(), first.getAxesOrderString(), Views.concatenate(resultDim, results));
+		});
+	}
+
+	/**
+	 *
+	 * @return the workers the slices are sent to
+	 */
+	public List<BioImageIoPythonWorker> getWorkers() {
+		return workers;
+	}
+
+	/**
+	 * Close the workers if they were created by the executor
+	 */
+	@Override
+	public void close() {
+		if (!ownsWorkers)
+			return;
+		for (BioImageIoPythonWorker worker : workers)
+			worker.close();
+	}
+}
@@ -0,0 +1,210 @@
+package org.bioimageanalysis.icy.deeplearning.python;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Time spent in Python by a {@link BioImageIoPython} instance, measured by sampling the stack of the
+ * interpreter thread at a fixed interval. Each distinct stack is kept with the number of samples in
+ * which it was seen, which is the collapsed format read by flame graph tools, and the samples are
+ * also summarised as the self and total time of every Python function.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class PythonProfile {
+	/**
+	 * Separator of the frames of a stack in the collapsed format
+	 */
+	private static final String FRAME_SEPARATOR = ";";
+	/**
+	 * Number of samples of each stack, frames from the outermost to the innermost
+	 */
+	private final Map<String, Long> collapsedStacks;
+	/**
+	 * Time covered by the profile, in seconds
+	 */
+	private final double elapsedSeconds;
+	/**
+	 * Average time between two samples, in seconds
+	 */
+	private final double secondsPerSample;
+
+	private PythonProfile(Map<String, Long> collapsedStacks, double elapsedSeconds, double secondsPerSample) {
+		this.collapsedStacks = Collections.unmodifiableMap(collapsedStacks);
+		this.elapsedSeconds = elapsedSeconds;
+		this.secondsPerSample = secondsPerSample;
+	}
+
+	/**
+	 * Create a profile from the result of the function stop_profiler of the Python helpers module
+	 * @param result
+	 * 	list with the elapsed seconds, the seconds per sample and the pairs of stack and number of samples
+	 * @return the profile
+	 */
+	static PythonProfile fromPython(List<?> result) {
+		if (result.size() != 3)
+			throw new IllegalArgumentException("Unexpected profile received from Python: " + result);
+		Map<String, Long> stacks = new LinkedHashMap<String, Long>();
+		for (Object pair : (List<?>) result.get(2))
+			stacks.put(((List<?>) pair).get(0).toString(), ((Number) ((List<?>) pair).get(1)).longValue());
+		return new PythonProfile(stacks, ((Number) result.get(0)).doubleValue(), ((Number) result.get(1)).doubleValue());
+	}
+
+	/**
+	 * Combine two profiles, for example the profiles of several calls, into one
+	 * @param other
+	 * 	profile to add to this one
+	 * @return a new profile with the samples of both
+	 */
+	public PythonProfile merge(PythonProfile other) {
+		Map<String, Long> stacks = new LinkedHashMap<String, Long>(collapsedStacks);
+		for (Entry<String, Long> entry : other.collapsedStacks.entrySet())
+			stacks.merge(entry.getKey(), entry.getValue(), Long::sum);
+		long samples = getSamples() + other.getSamples();
+		double seconds = getProfiledSeconds() + other.getProfiledSeconds();
+		return new PythonProfile(stacks, elapsedSeconds + other.elapsedSeconds, samples == 0 ? 0 : seconds / samples);
+	}
+
+	/**
+	 *
+	 * @return number of samples taken while the interpreter was running Python code
+	 */
+	public long getSamples() {
+		long samples = 0;
+		for (long count : collapsedStacks.values())
+			samples += count;
+		return samples;
+	}
+
+	/**
+	 *
+	 * @return time covered by the profile, in seconds, including the time spent in Java
+	 */
+	public double getElapsedSeconds() {
+		return elapsedSeconds;
+	}
+
+	/**
+	 *
+	 * @return estimated time spent running Python code, in seconds
+	 */
+	public double getProfiledSeconds() {
+		return getSamples() * secondsPerSample;
+	}
+
+	/**
+	 *
+	 * @return number of samples of each stack, with the frames from the outermost to the innermost
+	 * 	separated by ';'
+	 */
+	public Map<String, Long> getCollapsedStacks() {
+		return collapsedStacks;
+	}
+
+	/**
+	 * Summarise the samples per Python function
+	 * @return the timings of every function seen in the samples, sorted by decreasing total time
+	 */
+	public List<FunctionTiming> getFunctionTimings() {
+		Map<String, long[]> counts = new HashMap<String, long[]>();
+		for (Entry<String, Long> entry : collapsedStacks.entrySet()) {
+			String[] frames = entry.getKey().split(FRAME_SEPARATOR);
+			Set<String> seen = new HashSet<String>();
+			for (String frame : frames) {
+				long[] count = counts.computeIfAbsent(frame, k -> new long[2]);
+				// recursive functions count once per sample in the total time
+				if (seen.add(frame))
+					count[1] += entry.getValue();
+			}
+			counts.get(frames[frames.length - 1])[0] += entry.getValue();
+		}
+		List<FunctionTiming> timings = new ArrayList<FunctionTiming>();
+		for (Entry<String, long[]> entry : counts.entrySet())
+			timings.add(new FunctionTiming(entry.getKey(), entry.getValue()[0] * secondsPerSample,
+					entry.getValue()[1] * secondsPerSample));
+		timings.sort((a, b) -> Double.compare(b.getTotalSeconds(), a.getTotalSeconds()));
+		return timings;
+	}
+
+	/**
+	 * Write the profile in the collapsed stacks format, one line per stack followed by its number of
+	 * samples, that can be opened with flamegraph.pl, speedscope or similar tools
+	 * @param file
+	 * 	file where the profile is written
+	 * @throws IOException if the file cannot be written
+	 */
+	public void writeCollapsedStacks(Path file) throws IOException {
+		try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			for (Entry<String, Long> entry : collapsedStacks.entrySet()) {
+				writer.write(entry.getKey() + " " + entry.getValue());
+				writer.newLine();
+			}
+		}
+	}
+
+	/**
+	 * Time spent in a Python function
+	 */
+	public static class FunctionTiming {
+		/**
+		 * Name of the function followed by its file and first line
+		 */
+		private final String function;
+		/**
+		 * Time spent in the function itself
+		 */
+		private final double selfSeconds;
+		/**
+		 * Time spent in the function and in the functions it called
+		 */
+		private final double totalSeconds;
+
+		private FunctionTiming(String function, double selfSeconds, double totalSeconds) {
+			this.function = function;
+			this.selfSeconds = selfSeconds;
+			this.totalSeconds = totalSeconds;
+		}
+
+		/**
+		 *
+		 * @return name of the function followed by its file and first line
+		 */
+		public String getFunction() {
+			return function;
+		}
+
+		/**
+		 *
+		 * @return estimated time spent in the function itself, in seconds
+		 */
+		public double getSelfSeconds() {
+			return selfSeconds;
+		}
+
+		/**
+		 *
+		 * @return estimated time spent in the function and in the functions it called, in seconds
+		 */
+		public double getTotalSeconds() {
+			return totalSeconds;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: total %.3f s, self %.3f s", function, totalSeconds, selfSeconds);
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package org.bioimageanalysis.icy.deeplearning.python;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bioimageanalysis.icy.deeplearning.python.tensor.PrimitiveBufferPool;
+import org.bioimageanalysis.icy.deeplearning.python.tensor.PythonTensor;
+import org.bioimageanalysis.icy.deeplearning.tensor.Tensor;
+
+import jep.NDArray;
+
+/**
+ * Several tensors prepared to cross the bridge to Python in a single call. The names, data, axes and
+ * shapes of the tensors are given to the Python helpers as parallel arrays, and the results come back
+ * as one list per tensor with its name, axes, shape (only for bit-packed boolean tensors) and data.
+ * The data of the results is in Fortran order, so it is copied into the Java images with one block copy.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+class PythonSample {
+	/**
+	 * Names of the tensors
+	 */
+	private final String[] names;
+	/**
+	 * Data of the tensors as {@link NDArray}
+	 */
+	private final Object[] arrays;
+	/**
+	 * Axes order of the tensors
+	 */
+	private final String[] axes;
+	/**
+	 * Shape of the boolean tensors whose data is packed into bytes, null for the rest
+	 */
+	private final int[][] packedShapes;
+	/**
+	 * Tensors whose data arrays go back to the pool once they have been sent
+	 */
+	private final List<PythonTensor> pythonTensors = new ArrayList<PythonTensor>();
+
+	private PythonSample(List<Tensor<?>> tensors, PrimitiveBufferPool pool) {
+		int n = tensors.size();
+		names = new String[n];
+		arrays = new Object[n];
+		axes = new String[n];
+		packedShapes = new int[n][];
+		try {
+			for (int i = 0; i < n; i ++) {
+				PythonTensor pythonTensor = PythonTensor.fromJavaTensor(tensors.get(i), pool);
+				pythonTensors.add(pythonTensor);
+				names[i] = tensors.get(i).getName();
+				arrays[i] = pythonTensor.getData();
+				axes[i] = pythonTensor.getAxesOrder();
+				packedShapes[i] = pythonTensor.isPackedBits() ? pythonTensor.getShape() : null;
+			}
+		} catch (RuntimeException e) {
+			release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Convert the tensors of a sample so they can be sent to Python in a single call
+	 * @param tensors
+	 * 	tensors of the sample
+	 * @param pool
+	 * 	pool the flat arrays are borrowed from, can be null
+	 * @return the sample ready to be sent
+	 */
+	static PythonSample fromJavaTensors(List<Tensor<?>> tensors, PrimitiveBufferPool pool) {
+		return new PythonSample(tensors, pool);
+	}
+
+	String[] getNames() {
+		return names;
+	}
+
+	Object[] getArrays() {
+		return arrays;
+	}
+
+	String[] getAxes() {
+		return axes;
+	}
+
+	int[][] getPackedShapes() {
+		return packedShapes;
+	}
+
+	/**
+	 * Give the flat arrays back to the pool. JEP copies the data into Numpy arrays, so this can be
+	 * called as soon as the sample has been sent.
+	 */
+	void release() {
+		for (PythonTensor pythonTensor : pythonTensors)
+			pythonTensor.release();
+		pythonTensors.clear();
+	}
+
+	/**
+	 * Convert the tensors returned by a Python helper into Java tensors
+	 * @param results
+	 * 	one list per tensor with its name, axes, shape of the packed data (or None) and data, in Fortran
+	 * 	order unless it is packed
+	 * @param pool
+	 * 	pool the storage arrays of the images are borrowed from, can be null
+	 * @return the Java tensors by name, in the order given by Python
+	 */
+	static Map<String, Tensor<?>> toJavaTensors(List<?> results, PrimitiveBufferPool pool) {
+		Map<String, Tensor<?>> outputs = new LinkedHashMap<String, Tensor<?>>();
+		for (Object obj : results) {
+			List<?> result = (List<?>) obj;
+			String name = (String) result.get(0);
+			String axesOrder = (String) result.get(1);
+			PythonTensor pythonTensor;
+			if (result.get(2) == null) {
+				NDArray<?> data = (NDArray<?>) result.get(3);
+				// the dimensions of the data in Fortran order are the shape reversed
+				int[] dims = data.getDimensions();
+				int[] shape = new int[dims.length];
+				for (int i = 0; i < dims.length; i ++)
+					shape[i] = dims[dims.length - 1 - i];
+				pythonTensor = PythonTensor.buildFortranOrder(name, axesOrder, data, shape);
+			} else {
+				List<?> shapeList = (List<?>) result.get(2);
+				int[] shape = new int[shapeList.size()];
+				for (int i = 0; i < shape.length; i ++)
+					shape[i] = ((Number) shapeList.get(i)).intValue();
+				pythonTensor = PythonTensor.buildPackedBits(name, axesOrder, (NDArray<byte[]>) result.get(3), shape);
+			}
+			outputs.put(name, pythonTensor.toJava(pool));
+			// the array created by JEP has been copied into the image, nothing references it anymore
+			if (pool != null)
+				pool.adopt(pythonTensor.getData().getData());
+		}
+		return outputs;
+	}
+}
@@ -0,0 +1,157 @@
+package org.bioimageanalysis.icy.deeplearning.python;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bioimageanalysis.icy.deeplearning.python.tensor.PythonTensor;
+import org.bioimageanalysis.icy.deeplearning.python.transformations.BioimageioPythonTransformations;
+import org.bioimageanalysis.icy.deeplearning.tensor.Tensor;
+
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Transformations applied to the frames of a time series one at a time, as they are acquired.
+ * The measures of the transformations in "per_dataset" mode are not recomputed from every frame seen:
+ * Python keeps running statistics (mean and variance merged frame by frame, and histograms for the
+ * percentiles) that are updated with each new frame, so the normalization is stable along the movie
+ * and the cost per frame stays constant. Measures in "per_sample" mode are computed on each frame.
+ *
+ * Frames are converted for Python in a separate thread, so the conversion of a frame overlaps with
+ * the processing of the previous one in the thread of the {@link BioImageIoPythonWorker}.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class TimeSeriesSession implements AutoCloseable {
+	/**
+	 * Counter used to identify the sessions in Python
+	 */
+	private static final AtomicLong SESSION_COUNTER = new AtomicLong();
+	/**
+	 * Worker whose interpreter keeps the state of the session
+	 */
+	private final BioImageIoPythonWorker worker;
+	/**
+	 * Key of the session in the Python helpers module
+	 */
+	private final String sessionKey;
+	/**
+	 * Name of the tensor of the frames, the transformations are applied to it
+	 */
+	private final String tensorName;
+	/**
+	 * Thread that converts the frames while the previous ones are processed
+	 */
+	private final ExecutorService converter;
+	/**
+	 * Creation of the session in Python
+	 */
+	private final CompletableFuture<Void> opened;
+	/**
+	 * Number of frames pushed into the session
+	 */
+	private final AtomicLong frames = new AtomicLong();
+	/**
+	 * Whether the session has been closed
+	 */
+	private volatile boolean closed = false;
+
+	private TimeSeriesSession(BioImageIoPythonWorker worker, String tensorName, List<Map<String, Object>> transformationMaps) {
+		List<BioimageioPythonTransformations> transformations = new ArrayList<BioimageioPythonTransformations>();
+		for (Map<String, Object> transformationMap : transformationMaps) {
+			BioimageioPythonTransformations transformation =
+					BioimageioPythonTransformations.definePythonBioImageIoTransformation(transformationMap);
+			if (!tensorName.equals(transformation.getSampleName()))
+				throw new IllegalArgumentException("The transformation '" + transformation.getSpec().getName()
+						+ "' is applied to the tensor '" + transformation.getSampleName() + "' but the frames of the "
+						+ "session are named '" + tensorName + "'.");
+			transformations.add(transformation);
+		}
+		this.worker = worker;
+		this.tensorName = tensorName;
+		this.sessionKey = "time_series_session_" + SESSION_COUNTER.incrementAndGet();
+		this.converter = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "bioimageio-frame-converter");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.opened = worker.submit(bioimageio -> {
+			bioimageio.openTimeSeriesSession(sessionKey, transformations);
+			return null;
+		}, BioImageIoPython.NO_DEADLINE);
+	}
+
+	/**
+	 * Open a session on the given worker
+	 * @param worker
+	 * 	worker whose interpreter keeps the state of the session
+	 * @param tensorName
+	 * 	name of the tensor of the frames, the argument 'tensor_name' of every transformation
+	 * @param transformationMaps
+	 * 	transformations with their "name" and "kwargs", applied in order to every frame
+	 * @return the session, ready to receive frames
+	 */
+	static TimeSeriesSession open(BioImageIoPythonWorker worker, String tensorName, List<Map<String, Object>> transformationMaps) {
+		return new TimeSeriesSession(worker, tensorName, transformationMaps);
+	}
+
+	/**
+	 * Send the next frame of the time series. Frames are processed in the order they are pushed.
+	 * @param <T>
+	 * 	data type of the frame
+	 * @param frame
+	 * 	next frame, its name has to be the tensor name of the session
+	 * @return a future completed with the transformed frame
+	 */
+	public < T extends RealType< T > & NativeType< T > > CompletableFuture<Tensor<?>> push(Tensor<T> frame) {
+		if (closed)
+			throw new IllegalStateException("The time series session has already been closed.");
+		if (!tensorName.equals(frame.getName()))
+			throw new IllegalArgumentException("The frames of the session have to be named '" + tensorName
+					+ "', not '" + frame.getName() + "'.");
+		frames.incrementAndGet();
+		CompletableFuture<PythonTensor> converted = CompletableFuture.supplyAsync(() -> PythonTensor.fromJavaTensor(frame), converter);
+		// the worker runs its requests in order, so the frames reach Python in the order they were pushed
+		return worker.submit(bioimageio -> {
+			opened.join();
+			return bioimageio.processTimeSeriesFrame(sessionKey, converted.join());
+		}, BioImageIoPython.NO_DEADLINE);
+	}
+
+	/**
+	 *
+	 * @return number of frames pushed into the session
+	 */
+	public long getFrames() {
+		return frames.get();
+	}
+
+	/**
+	 *
+	 * @return name of the tensor of the frames
+	 */
+	public String getTensorName() {
+		return tensorName;
+	}
+
+	/**
+	 * Remove the running statistics from Python once the frames pushed so far have been processed
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		worker.submit(bioimageio -> {
+			bioimageio.closeTimeSeriesSession(sessionKey);
+			return null;
+		}, BioImageIoPython.NO_DEADLINE);
+		converter.shutdown();
+	}
+}
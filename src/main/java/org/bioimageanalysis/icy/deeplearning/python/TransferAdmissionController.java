@@ -0,0 +1,305 @@
+package org.bioimageanalysis.icy.deeplearning.python;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.bioimageanalysis.icy.deeplearning.tensor.Tensor;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+
+/**
+ * Limits the number of bytes held at the same time by the transfers between Java and Python.
+ * Each request estimates its peak memory footprint from the shape and data type of its tensor and
+ * reserves it against a budget before starting. When the budget is exhausted the request blocks,
+ * waits in a queue or is rejected, depending on the {@link Policy} of the controller.
+ *
+ * A single controller is meant to be shared by every {@link BioImageIoPython} instance of the application.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class TransferAdmissionController {
+
+	/**
+	 * What happens to a request that does not fit in the budget
+	 */
+	public enum Policy {
+		/**
+		 * Wait as long as needed until there is enough memory
+		 */
+		BLOCK,
+		/**
+		 * Wait in arrival order, and be rejected if the request is not admitted before the queue timeout
+		 */
+		QUEUE,
+		/**
+		 * Be rejected straight away
+		 */
+		REJECT
+	}
+
+	/**
+	 * Number of copies of the input tensor alive during a request: the flat Java array and the Numpy array
+	 */
+	private static final int INPUT_COPIES = 2;
+	/**
+	 * Number of copies of the result alive during a request: the Numpy result, the array returned
+	 * by JEP and the result image
+	 */
+	private static final int OUTPUT_COPIES = 3;
+	/**
+	 * Bytes per element assumed for the results, the BioImage.io transformations produce float32 tensors
+	 */
+	private static final int MIN_OUTPUT_BYTES_PER_ELEMENT = 4;
+	/**
+	 * Maximum number of bytes that can be reserved at the same time
+	 */
+	private final long budgetBytes;
+	/**
+	 * Behaviour when the budget is exhausted
+	 */
+	private final Policy policy;
+	/**
+	 * Maximum time a request waits in the queue with {@link Policy#QUEUE}
+	 */
+	private final long queueTimeoutMillis;
+	/**
+	 * Bytes currently reserved
+	 */
+	private long reservedBytes = 0;
+	/**
+	 * Requests waiting to be admitted, in arrival order
+	 */
+	private final Deque<Object> queue = new ArrayDeque<Object>();
+
+	private TransferAdmissionController(long budgetBytes, Policy policy, long queueTimeoutMillis) {
+		if (budgetBytes <= 0)
+			throw new IllegalArgumentException("The memory budget has to be a positive number of bytes.");
+		this.budgetBytes = budgetBytes;
+		this.policy = policy;
+		this.queueTimeoutMillis = queueTimeoutMillis;
+	}
+
+	/**
+	 * Create a controller
+	 * @param budgetBytes
+	 * 	maximum number of bytes that can be reserved at the same time
+	 * @param policy
+	 * 	what happens to requests that do not fit in the budget, {@link Policy#QUEUE} waits without timeout
+	 * @return the controller
+	 */
+	public static TransferAdmissionController build(long budgetBytes, Policy policy) {
+		return new TransferAdmissionController(budgetBytes, policy, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Create a controller that queues the requests that do not fit in the budget
+	 * @param budgetBytes
+	 * 	maximum number of bytes that can be reserved at the same time
+	 * @param queueTimeout
+	 * 	maximum time a request waits in the queue before being rejected
+	 * @param unit
+	 * 	unit of the timeout
+	 * @return the controller
+	 */
+	public static TransferAdmissionController build(long budgetBytes, long queueTimeout, TimeUnit unit) {
+		return new TransferAdmissionController(budgetBytes, Policy.QUEUE, unit.toMillis(queueTimeout));
+	}
+
+	/**
+	 * Estimate the maximum number of bytes held at the same time while a tensor is sent to Python,
+	 * transformed and brought back: the flat array and the Numpy copy of the input, plus the Numpy result,
+	 * the array returned by JEP and the result image. The source image is not included because it already
+	 * exists before the request.
+	 * @param numElements
+	 * 	number of elements of the tensor
+	 * @param bytesPerElement
+	 * 	number of bytes of each element of the input tensor
+	 * @return estimated peak footprint in bytes
+	 */
+	public static long estimatePeakBytes(long numElements, int bytesPerElement) {
+		int outputBytesPerElement = Math.max(bytesPerElement, MIN_OUTPUT_BYTES_PER_ELEMENT);
+		return numElements * (INPUT_COPIES * bytesPerElement + OUTPUT_COPIES * outputBytesPerElement);
+	}
+
+	/**
+	 * Estimate the peak footprint of a request on the given tensor
+	 * @param tensor
+	 * 	tensor that is going to be sent to Python
+	 * @return estimated peak footprint in bytes
+	 * @see #estimatePeakBytes(long, int)
+	 */
+	public static long estimatePeakBytes(Tensor<?> tensor) {
+		RandomAccessibleInterval<?> data = tensor.getData();
+		long numElements = 1;
+		for (int i = 0; i < data.numDimensions(); i ++)
+			numElements *= data.dimension(i);
+		Object type = Util.getTypeFromInterval(data);
+		int bytesPerElement = 8;
+		if (type instanceof RealType)
+			bytesPerElement = Math.max(1, ((RealType<?>) type).getBitsPerPixel() / 8);
+		return estimatePeakBytes(numElements, bytesPerElement);
+	}
+
+	/**
+	 * Reserve the estimated footprint of a request on the given tensor
+	 * @param tensor
+	 * 	tensor that is going to be sent to Python
+	 * @return the reservation, that has to be closed once the request has finished
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 * @throws RejectedExecutionException if the request is rejected by the policy of the controller
+	 */
+	public Reservation reserve(Tensor<?> tensor) throws InterruptedException {
+		return reserve(estimatePeakBytes(tensor));
+	}
+
+	/**
+	 * Reserve a number of bytes. Requests bigger than the whole budget are admitted only when no
+	 * other request holds memory.
+	 * @param bytes
+	 * 	number of bytes to reserve
+	 * @return the reservation, that has to be closed once the request has finished
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 * @throws RejectedExecutionException if the request is rejected by the policy of the controller
+	 */
+	public Reservation reserve(long bytes) throws InterruptedException {
+		return reserve(bytes, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Reserve a number of bytes waiting at most until the given time
+	 * @param bytes
+	 * 	number of bytes to reserve
+	 * @param deadlineMillis
+	 * 	time, as given by {@link System#currentTimeMillis()}, after which the request stops waiting
+	 * 	and is rejected
+	 * @return the reservation, that has to be closed once the request has finished
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 * @throws RejectedExecutionException if the request is rejected by the policy of the controller or
+	 * 	the deadline is reached
+	 */
+	public synchronized Reservation reserve(long bytes, long deadlineMillis) throws InterruptedException {
+		long amount = Math.min(Math.max(bytes, 0), budgetBytes);
+		if (policy == Policy.REJECT) {
+			if (!fits(amount))
+				throw new RejectedExecutionException("Not enough memory budget for the request: " + amount
+						+ " bytes needed, " + (budgetBytes - reservedBytes) + " available.");
+			return admit(amount);
+		}
+		long waitLimit = deadlineMillis;
+		if (policy == Policy.QUEUE && queueTimeoutMillis != Long.MAX_VALUE)
+			waitLimit = Math.min(waitLimit, System.currentTimeMillis() + queueTimeoutMillis);
+		Object ticket = new Object();
+		if (policy == Policy.QUEUE)
+			queue.addLast(ticket);
+		try {
+			while (!fits(amount) || (policy == Policy.QUEUE && queue.peekFirst() != ticket)) {
+				long remaining = waitLimit == Long.MAX_VALUE ? 0 : waitLimit - System.currentTimeMillis();
+				if (waitLimit != Long.MAX_VALUE && remaining <= 0)
+					throw new RejectedExecutionException("The request waited too long for " + amount
+							+ " bytes of memory budget (" + reservedBytes + " of " + budgetBytes + " reserved).");
+				wait(remaining);
+			}
+		} finally {
+			if (policy == Policy.QUEUE) {
+				queue.remove(ticket);
+				notifyAll();
+			}
+		}
+		return admit(amount);
+	}
+
+	private boolean fits(long amount) {
+		return reservedBytes + amount <= budgetBytes;
+	}
+
+	private Reservation admit(long amount) {
+		reservedBytes += amount;
+		return new Reservation(amount);
+	}
+
+	private synchronized void release(long amount) {
+		reservedBytes -= amount;
+		notifyAll();
+	}
+
+	/**
+	 *
+	 * @return number of bytes currently reserved
+	 */
+	public synchronized long getReservedBytes() {
+		return reservedBytes;
+	}
+
+	/**
+	 *
+	 * @return number of bytes that can still be reserved
+	 */
+	public synchronized long getAvailableBytes() {
+		return budgetBytes - reservedBytes;
+	}
+
+	/**
+	 *
+	 * @return number of requests waiting in the queue
+	 */
+	public synchronized int getQueuedRequests() {
+		return queue.size();
+	}
+
+	/**
+	 *
+	 * @return maximum number of bytes that can be reserved at the same time
+	 */
+	public long getBudgetBytes() {
+		return budgetBytes;
+	}
+
+	/**
+	 *
+	 * @return behaviour of the controller when the budget is exhausted
+	 */
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Memory reserved by a request. Closing it gives the memory back to the budget.
+	 */
+	public class Reservation implements AutoCloseable {
+		/**
+		 * Reserved bytes
+		 */
+		private final long bytes;
+		/**
+		 * Whether the memory has already been given back
+		 */
+		private boolean released = false;
+
+		private Reservation(long bytes) {
+			this.bytes = bytes;
+		}
+
+		/**
+		 *
+		 * @return number of bytes reserved
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		@Override
+		public void close() {
+			synchronized (this) {
+				if (released)
+					return;
+				released = true;
+			}
+			release(bytes);
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package org.bioimageanalysis.icy.deeplearning.python.cache;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.bioimageanalysis.icy.deeplearning.python.transformations.TransformationRegistry;
+import org.bioimageanalysis.icy.deeplearning.python.transformations.TransformationSpec;
+import org.bioimageanalysis.icy.deeplearning.tensor.Tensor;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.BooleanType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Key of a transformation result in the {@link TransformationResultCache}. It is made of a fingerprint
+ * of the transformation (its Python class and its arguments), the format of the result (the settings
+ * of the caller that change the returned image for the same input), the data type, axes and shape of
+ * the input tensor, and a 128 bit hash of the pixels of the input tensor.
+ *
+ * The pixels are hashed in flat iteration order, so the same content gives the same key whatever the
+ * image container is. Images backed by a single primitive array are hashed straight from the array.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class TensorCacheKey {
+	private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+	/**
+	 * Description of the transformation and its arguments
+	 */
+	private final String transformationFingerprint;
+	/**
+	 * Settings of the caller that change the result for the same input
+	 */
+	private final String resultFormat;
+	/**
+	 * Data type of the input tensor
+	 */
+	private final String dataType;
+	/**
+	 * Axes order of the input tensor
+	 */
+	private final String axes;
+	/**
+	 * Shape of the input tensor
+	 */
+	private final long[] shape;
+	/**
+	 * First half of the hash of the pixels
+	 */
+	private final long hash1;
+	/**
+	 * Second half of the hash of the pixels
+	 */
+	private final long hash2;
+
+	private TensorCacheKey(String transformationFingerprint, String resultFormat, String dataType, String axes,
+			long[] shape, long hash1, long hash2) {
+		this.transformationFingerprint = transformationFingerprint;
+		this.resultFormat = resultFormat;
+		this.dataType = dataType;
+		this.axes = axes;
+		this.shape = shape;
+		this.hash1 = hash1;
+		this.hash2 = hash2;
+	}
+
+	/**
+	 * Compute the key of applying a transformation to a tensor
+	 * @param transformationMap
+	 * 	transformation with its "name" and "kwargs"
+	 * @param tensor
+	 * 	input tensor
+	 * @param resultFormat
+	 * 	settings of the caller that change the result for the same input, for example where the
+	 * 	result is stored. Requests with different formats never share a result
+	 * @return the key
+	 */
+	public static TensorCacheKey of(Map<String, Object> transformationMap, Tensor<?> tensor, String resultFormat) {
+		RandomAccessibleInterval<?> data = tensor.getData();
+		long[] hash = hashPixels(data);
+		return new TensorCacheKey(fingerprint(transformationMap), resultFormat, Util.getTypeFromInterval(data).getClass().getName(),
+				tensor.getAxesOrderString(), data.dimensionsAsLongArray(), hash[0], hash[1]);
+	}
+
+	/**
+	 * Describe a transformation by its Python class and its arguments sorted by name. Custom
+	 * transformations include the hash of their Python source, so changing the source changes the fingerprint.
+	 * @param transformationMap
+	 * 	transformation with its "name" and "kwargs"
+	 * @return the fingerprint of the transformation
+	 */
+	public static String fingerprint(Map<String, Object> transformationMap) {
+		TransformationSpec spec = TransformationRegistry.getDefault().get((String) transformationMap.get("name"));
+		StringBuilder fingerprint = new StringBuilder(spec.getName()).append('|')
+				.append(spec.getPythonModule()).append('.').append(spec.getPythonClassName());
+		if (spec.isCustom())
+			fingerprint.append('#').append(spec.getSourceHash());
+		Map<?, ?> kwargs = (Map<?, ?>) transformationMap.get("kwargs");
+		if (kwargs != null) {
+			for (Entry<String, Object> entry : new TreeMap<String, Object>(castKwargs(kwargs)).entrySet())
+				fingerprint.append('|').append(entry.getKey()).append('=').append(valueToString(entry.getValue()));
+		}
+		return fingerprint.toString();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> castKwargs(Map<?, ?> kwargs) {
+		return (Map<String, Object>) kwargs;
+	}
+
+	private static String valueToString(Object value) {
+		if (value instanceof double[])
+			return Arrays.toString((double[]) value);
+		else if (value instanceof float[])
+			return Arrays.toString((float[]) value);
+		else if (value instanceof long[])
+			return Arrays.toString((long[]) value);
+		else if (value instanceof int[])
+			return Arrays.toString((int[]) value);
+		else if (value instanceof byte[])
+			return Arrays.toString((byte[]) value);
+		else if (value instanceof Object[])
+			return Arrays.deepToString((Object[]) value);
+		return String.valueOf(value);
+	}
+
+	private static long[] hashPixels(RandomAccessibleInterval<?> data) {
+		Object type = Util.getTypeFromInterval(data);
+		long h1 = PRIME_1;
+		long h2 = PRIME_2;
+		Object array = null;
+		if (data instanceof ArrayImg && ((ArrayImg<?, ?>) data).update(null) instanceof ArrayDataAccess
+				&& (type instanceof ByteType || type instanceof IntType || type instanceof LongType
+						|| type instanceof FloatType || type instanceof DoubleType))
+			array = ((ArrayDataAccess<?>) ((ArrayImg<?, ?>) data).update(null)).getCurrentStorageArray();
+		if (array instanceof byte[]) {
+			for (byte v : (byte[]) array) { h1 = mix1(h1, v); h2 = mix2(h2, v); }
+		} else if (array instanceof int[]) {
+			for (int v : (int[]) array) { h1 = mix1(h1, v); h2 = mix2(h2, v); }
+		} else if (array instanceof long[]) {
+			for (long v : (long[]) array) { h1 = mix1(h1, v); h2 = mix2(h2, v); }
+		} else if (array instanceof float[]) {
+			for (float v : (float[]) array) { long bits = Float.floatToIntBits(v); h1 = mix1(h1, bits); h2 = mix2(h2, bits); }
+		} else if (array instanceof double[]) {
+			for (double v : (double[]) array) { long bits = Double.doubleToLongBits(v); h1 = mix1(h1, bits); h2 = mix2(h2, bits); }
+		} else {
+			Cursor<?> cursor = Views.flatIterable(data).cursor();
+			while (cursor.hasNext()) {
+				long v = pixelBits(cursor.next());
+				h1 = mix1(h1, v);
+				h2 = mix2(h2, v);
+			}
+		}
+		return new long[] {finish(h1), finish(h2)};
+	}
+
+	/**
+	 * Same encoding of each pixel as the one used when hashing the primitive arrays
+	 */
+	private static long pixelBits(Object pixel) {
+		if (pixel instanceof FloatType)
+			return Float.floatToIntBits(((FloatType) pixel).get());
+		else if (pixel instanceof DoubleType)
+			return Double.doubleToLongBits(((DoubleType) pixel).get());
+		else if (pixel instanceof BooleanType)
+			return ((BooleanType<?>) pixel).get() ? 1 : 0;
+		else if (pixel instanceof IntegerType)
+			return ((IntegerType<?>) pixel).getIntegerLong();
+		return Double.doubleToLongBits(((RealType<?>) pixel).getRealDouble());
+	}
+
+	private static long mix1(long h, long v) {
+		return Long.rotateLeft(h ^ (v * PRIME_2), 31) * PRIME_1;
+	}
+
+	private static long mix2(long h, long v) {
+		return Long.rotateLeft(h + (v ^ PRIME_1) * PRIME_2, 27) * PRIME_1 + 0x52DCE729L;
+	}
+
+	/**
+	 * Final avalanche of MurmurHash3
+	 */
+	private static long finish(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 *
+	 * @return description of the transformation and its arguments
+	 */
+	public String getTransformationFingerprint() {
+		return transformationFingerprint;
+	}
+
+	/**
+	 *
+	 * @return settings of the caller that change the result for the same input
+	 */
+	public String getResultFormat() {
+		return resultFormat;
+	}
+
+	/**
+	 *
+	 * @return a name, unique to this key, that can be used as a file name
+	 */
+	public String toFileName() {
+		long h = finish(hash1 ^ (transformationFingerprint.hashCode() * PRIME_1)
+				^ ((resultFormat + dataType + axes + Arrays.toString(shape)).hashCode() * PRIME_2));
+		return String.format("%016x%016x", h, hash2);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof TensorCacheKey))
+			return false;
+		TensorCacheKey other = (TensorCacheKey) obj;
+		return hash1 == other.hash1 && hash2 == other.hash2 && Arrays.equals(shape, other.shape)
+				&& axes.equals(other.axes) && dataType.equals(other.dataType)
+				&& resultFormat.equals(other.resultFormat)
+				&& transformationFingerprint.equals(other.transformationFingerprint);
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (hash1 ^ (hash1 >>> 32)) * 31 + transformationFingerprint.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return transformationFingerprint + " on " + dataType + Arrays.toString(shape) + " " + axes + " "
+				+ String.format("%016x%016x", hash1, hash2) + " as " + resultFormat;
+	}
+}
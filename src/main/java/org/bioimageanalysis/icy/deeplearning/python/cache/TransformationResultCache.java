@@ -0,0 +1,425 @@
+package org.bioimageanalysis.icy.deeplearning.python.cache;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.bioimageanalysis.icy.deeplearning.python.tensor.NpyCodec;
+import org.bioimageanalysis.icy.deeplearning.python.tensor.PythonTensor;
+import org.bioimageanalysis.icy.deeplearning.tensor.Tensor;
+import org.bioimageanalysis.icy.jep.install.system.Log;
+
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Cache of the results of applying transformations to tensors, addressed by the content of the input
+ * tensor and the transformation ({@link TensorCacheKey}). Results are kept as snapshots, copies that
+ * nobody else can modify, and every hit returns a new image built from the snapshot.
+ *
+ * The memory used by the snapshots is bounded: the least recently used ones are evicted first and,
+ * if a spill directory is given, written to disk from where they can be read back, within a second
+ * size bound. Concurrent requests for the same key are collapsed into a single computation, the other
+ * requests wait for its result.
+ *
+ * Transformations whose result depends on the tensors seen before ("mode" per_dataset) are never cached.
+ * A single cache can be shared by several {@link org.bioimageanalysis.icy.deeplearning.python.BioImageIoPython}
+ * instances.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class TransformationResultCache {
+	/**
+	 * Extension of the files where the snapshots are spilled
+	 */
+	private static final String SPILL_EXTENSION = NpyCodec.NPY_EXTENSION;
+	/**
+	 * Maximum number of bytes of the snapshots kept in memory
+	 */
+	private final long maxMemoryBytes;
+	/**
+	 * Directory where the evicted snapshots are written, null if they are dropped
+	 */
+	private final Path spillDirectory;
+	/**
+	 * Maximum number of bytes of the snapshots kept on disk
+	 */
+	private final long maxSpillBytes;
+	/**
+	 * Snapshots in memory, from the least to the most recently used
+	 */
+	private final LinkedHashMap<TensorCacheKey, PythonTensor> memory = new LinkedHashMap<TensorCacheKey, PythonTensor>(16, 0.75f, true);
+	/**
+	 * Snapshots on disk, from the least to the most recently used
+	 */
+	private final LinkedHashMap<TensorCacheKey, SpilledSnapshot> spilled = new LinkedHashMap<TensorCacheKey, SpilledSnapshot>(16, 0.75f, true);
+	/**
+	 * Computations running at the moment
+	 */
+	private final Map<TensorCacheKey, CompletableFuture<PythonTensor>> inFlight = new ConcurrentHashMap<TensorCacheKey, CompletableFuture<PythonTensor>>();
+	private long memoryBytes = 0;
+	private long spillBytes = 0;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong diskHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong collapsed = new AtomicLong();
+
+	private TransformationResultCache(long maxMemoryBytes, Path spillDirectory, long maxSpillBytes) throws IOException {
+		if (maxMemoryBytes < 0 || maxSpillBytes < 0)
+			throw new IllegalArgumentException("The size bounds of the cache cannot be negative.");
+		this.maxMemoryBytes = maxMemoryBytes;
+		this.spillDirectory = spillDirectory;
+		this.maxSpillBytes = maxSpillBytes;
+		if (spillDirectory != null)
+			Files.createDirectories(spillDirectory);
+	}
+
+	/**
+	 * Create a cache that keeps its snapshots only in memory
+	 * @param maxMemoryBytes
+	 * 	maximum number of bytes of the snapshots kept in memory
+	 * @return the cache
+	 */
+	public static TransformationResultCache build(long maxMemoryBytes) {
+		try {
+			return new TransformationResultCache(maxMemoryBytes, null, 0);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Create a cache that writes the snapshots evicted from memory to a directory
+	 * @param maxMemoryBytes
+	 * 	maximum number of bytes of the snapshots kept in memory
+	 * @param spillDirectory
+	 * 	directory where the evicted snapshots are written, it is created if it does not exist
+	 * @param maxSpillBytes
+	 * 	maximum number of bytes of the snapshots kept on disk
+	 * @return the cache
+	 * @throws IOException if the directory cannot be created
+	 */
+	public static TransformationResultCache build(long maxMemoryBytes, Path spillDirectory, long maxSpillBytes) throws IOException {
+		return new TransformationResultCache(maxMemoryBytes, spillDirectory, maxSpillBytes);
+	}
+
+	/**
+	 *
+	 * @param transformationMap
+	 * 	transformation with its "name" and "kwargs"
+	 * @return whether the result of the transformation only depends on its input and can be cached
+	 */
+	public static boolean isCacheable(Map<String, Object> transformationMap) {
+		Object kwargs = transformationMap.get("kwargs");
+		return !(kwargs instanceof Map) || !"per_dataset".equals(((Map<?, ?>) kwargs).get("mode"));
+	}
+
+	/**
+	 * Get the result of applying a transformation to a tensor from the cache or, if it is not there,
+	 * compute it and store it. If the same result is already being computed by another thread, wait
+	 * for it instead of computing it again.
+	 * @param <T>
+	 * 	data type of the tensor
+	 * @param transformationMap
+	 * 	transformation with its "name" and "kwargs"
+	 * @param input
+	 * 	tensor the transformation is applied to
+	 * @param resultFormat
+	 * 	settings of the caller that change the result for the same input, see
+	 * 	{@link TensorCacheKey#of(Map, Tensor, String)}
+	 * @param deadlineMillis
+	 * 	time, as given by {@link System#currentTimeMillis()}, after which waiting for another thread
+	 * 	is abandoned, {@link Long#MAX_VALUE} to wait as long as needed
+	 * @param computation
+	 * 	code computing the result when it is not cached
+	 * @return the result, a new image named after the input on every call
+	 * @throws CancellationException if the deadline is reached while waiting for another thread
+	 */
+	public < T extends RealType< T > & NativeType< T > > Tensor<T> getOrCompute(Map<String, Object> transformationMap,
+			Tensor<T> input, String resultFormat, long deadlineMillis, Supplier<Tensor<T>> computation) {
+		if (!isCacheable(transformationMap))
+			return computation.get();
+		TensorCacheKey key = TensorCacheKey.of(transformationMap, input, resultFormat);
+		PythonTensor snapshot = lookup(key);
+		if (snapshot != null)
+			return fromSnapshot(snapshot, input);
+		CompletableFuture<PythonTensor> future = new CompletableFuture<PythonTensor>();
+		CompletableFuture<PythonTensor> running = inFlight.putIfAbsent(key, future);
+		if (running != null) {
+			snapshot = waitFor(running, deadlineMillis);
+			if (snapshot != null) {
+				collapsed.incrementAndGet();
+				return fromSnapshot(snapshot, input);
+			}
+			// the other computation failed, this request computes the result itself
+			return computation.get();
+		}
+		misses.incrementAndGet();
+		try {
+			Tensor<T> result = computation.get();
+			snapshot = snapshot(result);
+			if (snapshot != null)
+				store(key, snapshot);
+			future.complete(snapshot);
+			return result;
+		} catch (RuntimeException | Error e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, future);
+		}
+	}
+
+	private static PythonTensor waitFor(CompletableFuture<PythonTensor> running, long deadlineMillis) {
+		try {
+			if (deadlineMillis == Long.MAX_VALUE)
+				return running.get();
+			return running.get(Math.max(0, deadlineMillis - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			throw new CancellationException("The deadline passed while waiting for the same transformation running in another thread.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			CancellationException ex = new CancellationException("Interrupted while waiting for the same transformation running in another thread.");
+			ex.initCause(e);
+			throw ex;
+		} catch (ExecutionException | CancellationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Copy a result so that it is not affected by changes made to the returned image
+	 */
+	private static < T extends RealType< T > & NativeType< T > > PythonTensor snapshot(Tensor<T> result) {
+		try {
+			return PythonTensor.fromJavaTensor(result);
+		} catch (IllegalArgumentException e) {
+			// data types not supported by the converters are not cached
+			return null;
+		}
+	}
+
+	/**
+	 * Rebuild a cached result under the name of the input of the request, the snapshot keeps the
+	 * name of the tensor that produced it, which can be a different tensor with the same content
+	 */
+	private static < T extends RealType< T > & NativeType< T > > Tensor<T> fromSnapshot(PythonTensor snapshot, Tensor<T> input) {
+		Tensor<T> result = snapshot.toJava();
+		return Tensor.build(input.getName(), result.getAxesOrderString(), result.getData());
+	}
+
+	private PythonTensor lookup(TensorCacheKey key) {
+		SpilledSnapshot spilledSnapshot;
+		synchronized (this) {
+			PythonTensor snapshot = memory.get(key);
+			if (snapshot != null) {
+				hits.incrementAndGet();
+				return snapshot;
+			}
+			spilledSnapshot = spilled.get(key);
+			if (spilledSnapshot == null)
+				return null;
+		}
+		try {
+			PythonTensor snapshot = readSpilled(key, spilledSnapshot);
+			diskHits.incrementAndGet();
+			store(key, snapshot);
+			return snapshot;
+		} catch (IOException e) {
+			System.out.println(Log.getCurrentTime() + " -- Unable to read the cached result " + key + ": " + e.getMessage());
+			removeSpilled(key);
+			return null;
+		}
+	}
+
+	private void store(TensorCacheKey key, PythonTensor snapshot) {
+		List<Entry<TensorCacheKey, PythonTensor>> evicted = new ArrayList<Entry<TensorCacheKey, PythonTensor>>();
+		synchronized (this) {
+			long size = sizeOf(snapshot);
+			if (memory.containsKey(key))
+				return;
+			if (size <= maxMemoryBytes) {
+				memory.put(key, snapshot);
+				memoryBytes += size;
+			} else {
+				evicted.add(new SimpleEntry<TensorCacheKey, PythonTensor>(key, snapshot));
+			}
+			Iterator<Entry<TensorCacheKey, PythonTensor>> it = memory.entrySet().iterator();
+			while (memoryBytes > maxMemoryBytes && it.hasNext()) {
+				Entry<TensorCacheKey, PythonTensor> eldest = it.next();
+				it.remove();
+				memoryBytes -= sizeOf(eldest.getValue());
+				evicted.add(eldest);
+			}
+		}
+		if (spillDirectory == null)
+			return;
+		for (Entry<TensorCacheKey, PythonTensor> entry : evicted)
+			spill(entry.getKey(), entry.getValue());
+	}
+
+	private void spill(TensorCacheKey key, PythonTensor snapshot) {
+		long size = sizeOf(snapshot);
+		if (size > maxSpillBytes)
+			return;
+		synchronized (this) {
+			if (spilled.containsKey(key))
+				return;
+		}
+		try {
+			writeSpilled(key, snapshot);
+		} catch (IOException e) {
+			System.out.println(Log.getCurrentTime() + " -- Unable to spill the cached result " + key + ": " + e.getMessage());
+			return;
+		}
+		List<TensorCacheKey> dropped = new ArrayList<TensorCacheKey>();
+		synchronized (this) {
+			spilled.put(key, new SpilledSnapshot(snapshot.getName(), snapshot.getAxesOrder(), size));
+			spillBytes += size;
+			Iterator<Entry<TensorCacheKey, SpilledSnapshot>> it = spilled.entrySet().iterator();
+			while (spillBytes > maxSpillBytes && it.hasNext()) {
+				Entry<TensorCacheKey, SpilledSnapshot> eldest = it.next();
+				it.remove();
+				spillBytes -= eldest.getValue().size;
+				dropped.add(eldest.getKey());
+			}
+		}
+		for (TensorCacheKey droppedKey : dropped)
+			deleteSpillFile(droppedKey);
+	}
+
+	private void removeSpilled(TensorCacheKey key) {
+		synchronized (this) {
+			SpilledSnapshot spilledSnapshot = spilled.remove(key);
+			if (spilledSnapshot != null)
+				spillBytes -= spilledSnapshot.size;
+		}
+		deleteSpillFile(key);
+	}
+
+	private void deleteSpillFile(TensorCacheKey key) {
+		try {
+			Files.deleteIfExists(spillFile(key));
+		} catch (IOException e) {
+			System.out.println(Log.getCurrentTime() + " -- Unable to delete the cached result " + key + ": " + e.getMessage());
+		}
+	}
+
+	private Path spillFile(TensorCacheKey key) {
+		return spillDirectory.resolve(key.toFileName() + SPILL_EXTENSION);
+	}
+
+	private void writeSpilled(TensorCacheKey key, PythonTensor snapshot) throws IOException {
+		NpyCodec.write(spillFile(key), snapshot);
+	}
+
+	private PythonTensor readSpilled(TensorCacheKey key, SpilledSnapshot spilledSnapshot) throws IOException {
+		return NpyCodec.readPythonTensor(spillFile(key), spilledSnapshot.name, spilledSnapshot.axesOrder);
+	}
+
+	private static long sizeOf(PythonTensor snapshot) {
+		Object data = snapshot.getData().getData();
+		if (data instanceof byte[])
+			return ((byte[]) data).length;
+		else if (data instanceof int[] || data instanceof float[])
+			return 4L * Array.getLength(data);
+		return 8L * Array.getLength(data);
+	}
+
+	/**
+	 * Remove every snapshot, from memory and from disk
+	 */
+	public void clear() {
+		List<TensorCacheKey> files;
+		synchronized (this) {
+			memory.clear();
+			memoryBytes = 0;
+			files = new ArrayList<TensorCacheKey>(spilled.keySet());
+			spilled.clear();
+			spillBytes = 0;
+		}
+		for (TensorCacheKey key : files)
+			deleteSpillFile(key);
+	}
+
+	/**
+	 *
+	 * @return number of bytes of the snapshots kept in memory
+	 */
+	public synchronized long getMemoryBytes() {
+		return memoryBytes;
+	}
+
+	/**
+	 *
+	 * @return number of bytes of the snapshots kept on disk
+	 */
+	public synchronized long getSpillBytes() {
+		return spillBytes;
+	}
+
+	/**
+	 *
+	 * @return number of requests served from memory
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 *
+	 * @return number of requests served from disk
+	 */
+	public long getDiskHits() {
+		return diskHits.get();
+	}
+
+	/**
+	 *
+	 * @return number of requests that had to compute their result
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 *
+	 * @return number of requests that waited for the same computation running in another thread
+	 */
+	public long getCollapsedRequests() {
+		return collapsed.get();
+	}
+
+	/**
+	 * Snapshot written to disk. The .npy files only hold the data, the name and axes of the tensor are
+	 * kept in memory.
+	 */
+	private static class SpilledSnapshot {
+		private final String name;
+		private final String axesOrder;
+		private final long size;
+
+		private SpilledSnapshot(String name, String axesOrder, long size) {
+			this.name = name;
+			this.axesOrder = axesOrder;
+			this.size = size;
+		}
+	}
+}
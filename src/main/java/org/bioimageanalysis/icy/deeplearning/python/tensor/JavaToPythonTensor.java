@@ -1,23 +1,34 @@
 package org.bioimageanalysis.icy.deeplearning.python.tensor;
 
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.function.IntToDoubleFunction;
 import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 
 import org.bioimageanalysis.icy.deeplearning.tensor.Tensor;
-import org.bioimageanalysis.icy.deeplearning.utils.IndexingUtils;
 
 import jep.NDArray;
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.type.BooleanType;
 import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.ByteType;
 import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.integer.LongType;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
-import net.imglib2.view.IntervalView;
+import net.imglib2.view.Views;
 
 /**
  * Class that converts Java tensors into objects that can easily be translated into Python BioImage.io
@@ -37,61 +48,155 @@ public class JavaToPythonTensor {
 	 * @return tensor object ready to be converted to Python
 	 */
 	public static < T extends RealType< T > & NativeType< T > > PythonTensor fromJavaTensor( Tensor< T > javaTensor) {
+		return fromJavaTensor(javaTensor, null);
+	}
+	
+	/**
+	 * Method that converts a Java tensor from {@link Tensor} into an object that can easily be converted into a Python
+	 * tensor used by the BioImage.i core in Pyhton. The flat array that holds the data is borrowed from
+	 * the given pool and goes back to it when {@link PythonTensor#release()} is called.
+	 * @param <T>
+	 * @param javaTensor
+	 * 	tensor object in Java
+	 * @param pool
+	 * 	pool the flat array is borrowed from, if null a new array is allocated
+	 * @return tensor object ready to be converted to Python
+	 */
+	public static < T extends RealType< T > & NativeType< T > > PythonTensor fromJavaTensor( Tensor< T > javaTensor, 
+																							PrimitiveBufferPool pool) {
 		RandomAccessibleInterval<T> data = javaTensor.getData();
 		T dt = Util.getTypeFromInterval(data);
+		int[] shape = IntStream.range(0, data.numDimensions()).map(i -> (int) data.dimension(i)).toArray();
+		if (dt instanceof BooleanType) {
+			NDArray<byte[]> nd = buildFromTensorBoolean(data, pool);
+			return new PythonTensor(javaTensor.getName(), javaTensor.getAxesOrderString(), nd, shape, pool);
+		}
+		NDArray<?> nd;
 		if (dt instanceof FloatType) {
-			NDArray<float[]> nd = buildFromTensorFloat((RandomAccessibleInterval<FloatType>) javaTensor.getData());
-			return new PythonTensor(javaTensor.getName(), javaTensor.getAxesOrderString(), nd);
+			nd = buildFromTensorFloat((RandomAccessibleInterval<FloatType>) javaTensor.getData(), pool);
 		} else if (dt instanceof IntType) {
-			NDArray<int[]> nd = buildFromTensorInt((RandomAccessibleInterval<IntType>) javaTensor.getData());
-			return new PythonTensor(javaTensor.getName(), javaTensor.getAxesOrderString(), nd);
+			nd = buildFromTensorInt((RandomAccessibleInterval<IntType>) javaTensor.getData(), pool);
 		} else if (dt instanceof DoubleType) {
-			NDArray<double[]> nd = buildFromTensorDouble((RandomAccessibleInterval<DoubleType>) javaTensor.getData());
-			return new PythonTensor(javaTensor.getName(), javaTensor.getAxesOrderString(), nd);
+			nd = buildFromTensorDouble((RandomAccessibleInterval<DoubleType>) javaTensor.getData(), pool);
 		} else if (dt instanceof LongType) {
-			NDArray<long[]> nd = buildFromTensorLong((RandomAccessibleInterval<LongType>) javaTensor.getData());
-			return new PythonTensor(javaTensor.getName(), javaTensor.getAxesOrderString(), nd);
-			
+			nd = buildFromTensorLong((RandomAccessibleInterval<LongType>) javaTensor.getData(), pool);
 		} else if (dt instanceof ByteType) {
-			NDArray<byte[]> nd = buildFromTensorByte((RandomAccessibleInterval<ByteType>) javaTensor.getData());
-			return new PythonTensor(javaTensor.getName(), javaTensor.getAxesOrderString(), nd);
+			nd = buildFromTensorByte((RandomAccessibleInterval<ByteType>) javaTensor.getData(), pool);
 		} else {
 			throw new IllegalArgumentException("Conversion into Python of tensors with dsta type: '" + dt.getClass()+ "' "
 					+ "is not supported.");
 		}
+		return PythonTensor.fortranOrder(javaTensor.getName(), javaTensor.getAxesOrderString(), nd, shape, pool);
+	}
+	
+	/**
+	 * Method that converts a Java tensor from {@link Tensor} into an object that can easily be converted into a Python
+	 * tensor used by the BioImage.i core in Pyhton, narrowing its floating point data as the transport policy says.
+	 * The maximum error of the narrowing is measured first, without writing anything. If it exceeds the bound
+	 * of the policy the tensor is converted at full precision, otherwise it is narrowed while it is copied into
+	 * the flat array. The precision used, the error and whether the tensor fell back to full precision are given
+	 * by {@link PythonTensor#getTransportReport()}.
+	 * @param <T>
+	 * @param javaTensor
+	 * 	tensor object in Java
+	 * @param pool
+	 * 	pool the flat array is borrowed from, if null a new array is allocated
+	 * @param policy
+	 * 	precision of the floating point data while it crosses the bridge, if null the data is not narrowed
+	 * @return tensor object ready to be converted to Python
+	 */
+	public static < T extends RealType< T > & NativeType< T > > PythonTensor fromJavaTensor( Tensor< T > javaTensor, 
+																		PrimitiveBufferPool pool, TransportPolicy policy) {
+		RandomAccessibleInterval<T> data = javaTensor.getData();
+		T dt = Util.getTypeFromInterval(data);
+		TransportPrecision precision = policy == null ? TransportPrecision.FULL : policy.getPrecision();
+		boolean narrows = (dt instanceof DoubleType && precision != TransportPrecision.FULL)
+				|| (dt instanceof FloatType && precision == TransportPrecision.FLOAT16);
+		if (!narrows) {
+			PythonTensor tensor = fromJavaTensor(javaTensor, pool);
+			tensor.setTransportReport(TransportReport.build(TransportPrecision.FULL, 0, false, tensor.getData()));
+			return tensor;
+		}
+		double maxError = narrowIntoFortranOrder(data, measurer(precision));
+		if (!policy.accepts(maxError)) {
+			PythonTensor tensor = fromJavaTensor(javaTensor, pool);
+			tensor.setTransportReport(TransportReport.build(TransportPrecision.FULL, maxError, true, tensor.getData()));
+			return tensor;
+		}
+		int[] shape = IntStream.range(0, data.numDimensions()).map(i -> (int) data.dimension(i)).toArray();
+		int size = flatSize(data);
+		Object flatArr;
+		Narrower narrower;
+		if (precision == TransportPrecision.FLOAT32) {
+			float[] floats = pool == null ? new float[size] : pool.borrow(float[].class, size);
+			narrower = (value, i) -> {
+				float narrowed = (float) value;
+				floats[i] = narrowed;
+				return Math.abs(value - narrowed);
+			};
+			flatArr = floats;
+		} else {
+			short[] halves = pool == null ? new short[size] : pool.borrow(short[].class, size);
+			narrower = (value, i) -> {
+				short narrowed = TransportPrecision.toFloat16Bits((float) value);
+				halves[i] = narrowed;
+				return Math.abs(value - TransportPrecision.fromFloat16Bits(narrowed));
+			};
+			flatArr = halves;
+		}
+		narrowIntoFortranOrder(data, narrower);
+		NDArray<?> nd = precision == TransportPrecision.FLOAT32 ? new NDArray<float[]>((float[]) flatArr, reversedShape(data))
+				: new NDArray<short[]>((short[]) flatArr, reversedShape(data));
+		PythonTensor tensor = PythonTensor.fortranOrder(javaTensor.getName(), javaTensor.getAxesOrderString(), nd, shape, pool);
+		if (precision == TransportPrecision.FLOAT16)
+			tensor.setFloat16();
+		tensor.setTransportReport(TransportReport.build(precision, maxError, false, nd));
+		return tensor;
 	}
+	
+	/**
+	 * Writes one pixel into the flat array at the given position
+	 */
+	private interface PixelWriter< T > {
+		void write(T pixel, int flatPos);
+	}
+	
+	/**
+	 * Writes one value narrowed into the flat array at the given position and returns the absolute
+	 * error of the narrowing, NaN for values that are not finite
+	 */
+	private interface Narrower {
+		double narrow(double value, int flatPos);
+	}
+	
+	/**
+	 * Narrower that only measures the error of the narrowing to the given precision, without writing anything
+	 */
+	private static Narrower measurer(TransportPrecision precision) {
+		if (precision == TransportPrecision.FLOAT32)
+			return (value, i) -> Math.abs(value - (float) value);
+		return (value, i) -> Math.abs(value - TransportPrecision.fromFloat16Bits(TransportPrecision.toFloat16Bits((float) value)));
+	}
+	
+	/**
+	 * Minimum number of pixels of a view for its copy to be split between several threads
+	 */
+	private static final long PARALLEL_COPY_THRESHOLD = 1 << 18;
 
     /**
      * Builds a {@link NDArray} from a unsigned byte-typed {@link RandomAccessibleInterval}.
      * 
-     * @param javaTensor
+     * @param tensor
      *        The tensor data is read from.
+     * @param pool
+     *        Pool the flat array is borrowed from, can be null.
      * @return The NDArray built from the tensor of type {@link DataType#UBYTE}.
      */
-    private static NDArray<byte[]> buildFromTensorByte(RandomAccessibleInterval<ByteType> javaTensor)
+    private static NDArray<byte[]> buildFromTensorByte(RandomAccessibleInterval<ByteType> tensor, PrimitiveBufferPool pool)
     {
-    	long[] tensorShape = javaTensor.dimensionsAsLongArray();
-    	Cursor<ByteType> tensorCursor;
-		if (javaTensor instanceof IntervalView)
-			tensorCursor = ((IntervalView<ByteType>) javaTensor).cursor();
-		else if (javaTensor instanceof Img)
-			tensorCursor = ((Img<ByteType>) javaTensor).cursor();
-		else
-			throw new IllegalArgumentException("The data of the " + Tensor.class + " has "
-					+ "to be an instance of " + Img.class + " or " + IntervalView.class);
-		long flatSize = 1;
-		for (long dd : javaTensor.dimensionsAsLongArray()) { flatSize *= dd;}
-		byte[] flatArr = new byte[(int) flatSize];
-		while (tensorCursor.hasNext()) {
-			tensorCursor.fwd();
-			long[] cursorPos = tensorCursor.positionAsLongArray();
-        	int flatPos = IndexingUtils.multidimensionalIntoFlatIndex(cursorPos, tensorShape);
-        	byte val = tensorCursor.get().getByte();
-        	flatArr[flatPos] = val;
-		}
-		int[] shape = IntStream.range(0, javaTensor.numDimensions()).map(i -> (int) javaTensor.dimension(i)).toArray();
-		NDArray<byte[]> nd = new NDArray<byte[]>(flatArr, shape);
-	 	return nd;
+		byte[] flatArr = pool == null ? new byte[flatSize(tensor)] : pool.borrow(byte[].class, flatSize(tensor));
+		copyIntoFortranOrder(tensor, flatArr, (pixel, i) -> flatArr[i] = pixel.get());
+		return new NDArray<byte[]>(flatArr, reversedShape(tensor));
 	}
 
     /**
@@ -99,32 +204,15 @@ public class JavaToPythonTensor {
      * 
      * @param tensor
      *        The tensor data is read from.
+     * @param pool
+     *        Pool the flat array is borrowed from, can be null.
      * @return The NDArray built from the tensor of type {@link DataType#INT}.
      */
-    private static NDArray<int[]> buildFromTensorInt(RandomAccessibleInterval<IntType> tensor)
+    private static NDArray<int[]> buildFromTensorInt(RandomAccessibleInterval<IntType> tensor, PrimitiveBufferPool pool)
     {
-    	long[] tensorShape = tensor.dimensionsAsLongArray();
-    	Cursor<IntType> tensorCursor;
-		if (tensor instanceof IntervalView)
-			tensorCursor = ((IntervalView<IntType>) tensor).cursor();
-		else if (tensor instanceof Img)
-			tensorCursor = ((Img<IntType>) tensor).cursor();
-		else
-			throw new IllegalArgumentException("The data of the " + Tensor.class + " has "
-					+ "to be an instance of " + Img.class + " or " + IntervalView.class);
-		long flatSize = 1;
-		for (long dd : tensor.dimensionsAsLongArray()) { flatSize *= dd;}
-		int[] flatArr = new int[(int) flatSize];
-		while (tensorCursor.hasNext()) {
-			tensorCursor.fwd();
-			long[] cursorPos = tensorCursor.positionAsLongArray();
-        	int flatPos = IndexingUtils.multidimensionalIntoFlatIndex(cursorPos, tensorShape);
-        	int val = tensorCursor.get().getInteger();
-        	flatArr[flatPos] = val;
-		}
-		int[] shape = IntStream.range(0, tensor.numDimensions()).map(i -> (int) tensor.dimension(i)).toArray();
-		NDArray<int[]> nd = new NDArray<int[]>(flatArr, shape);
-	 	return nd;
+		int[] flatArr = pool == null ? new int[flatSize(tensor)] : pool.borrow(int[].class, flatSize(tensor));
+		copyIntoFortranOrder(tensor, flatArr, (pixel, i) -> flatArr[i] = pixel.get());
+		return new NDArray<int[]>(flatArr, reversedShape(tensor));
     }
 
     /**
@@ -132,32 +220,15 @@ public class JavaToPythonTensor {
      * 
      * @param tensor
      *        The tensor data is read from.
+     * @param pool
+     *        Pool the flat array is borrowed from, can be null.
      * @return The NDArray built from the tensor of type {@link DataType#FLOAT}.
      */
-    private static NDArray<float[]> buildFromTensorFloat(RandomAccessibleInterval<FloatType> tensor)
+    private static NDArray<float[]> buildFromTensorFloat(RandomAccessibleInterval<FloatType> tensor, PrimitiveBufferPool pool)
     {
-    	long[] tensorShape = tensor.dimensionsAsLongArray();
-    	Cursor<FloatType> tensorCursor;
-		if (tensor instanceof IntervalView)
-			tensorCursor = ((IntervalView<FloatType>) tensor).cursor();
-		else if (tensor instanceof Img)
-			tensorCursor = ((Img<FloatType>) tensor).cursor();
-		else
-			throw new IllegalArgumentException("The data of the " + Tensor.class + " has "
-					+ "to be an instance of " + Img.class + " or " + IntervalView.class);
-		long flatSize = 1;
-		for (long dd : tensor.dimensionsAsLongArray()) { flatSize *= dd;}
-		float[] flatArr = new float[(int) flatSize];
-		while (tensorCursor.hasNext()) {
-			tensorCursor.fwd();
-			long[] cursorPos = tensorCursor.positionAsLongArray();
-        	int flatPos = IndexingUtils.multidimensionalIntoFlatIndex(cursorPos, tensorShape);
-        	float val = tensorCursor.get().getRealFloat();
-        	flatArr[flatPos] = val;
-		}
-		int[] shape = IntStream.range(0, tensor.numDimensions()).map(i -> (int) tensor.dimension(i)).toArray();
-		NDArray<float[]> nd = new NDArray<float[]>(flatArr, shape);
-	 	return nd;
+		float[] flatArr = pool == null ? new float[flatSize(tensor)] : pool.borrow(float[].class, flatSize(tensor));
+		copyIntoFortranOrder(tensor, flatArr, (pixel, i) -> flatArr[i] = pixel.get());
+		return new NDArray<float[]>(flatArr, reversedShape(tensor));
     }
 
     /**
@@ -165,32 +236,15 @@ public class JavaToPythonTensor {
      * 
      * @param tensor
      *        The tensor data is read from.
+     * @param pool
+     *        Pool the flat array is borrowed from, can be null.
      * @return The NDArray built from the tensor of type {@link DataType#DOUBLE}.
      */
-    private static NDArray<double[]> buildFromTensorDouble(RandomAccessibleInterval<DoubleType> tensor)
+    private static NDArray<double[]> buildFromTensorDouble(RandomAccessibleInterval<DoubleType> tensor, PrimitiveBufferPool pool)
     {
-    	long[] tensorShape = tensor.dimensionsAsLongArray();
-    	Cursor<DoubleType> tensorCursor;
-		if (tensor instanceof IntervalView)
-			tensorCursor = ((IntervalView<DoubleType>) tensor).cursor();
-		else if (tensor instanceof Img)
-			tensorCursor = ((Img<DoubleType>) tensor).cursor();
-		else
-			throw new IllegalArgumentException("The data of the " + Tensor.class + " has "
-					+ "to be an instance of " + Img.class + " or " + IntervalView.class);
-		long flatSize = 1;
-		for (long dd : tensor.dimensionsAsLongArray()) { flatSize *= dd;}
-		double[] flatArr = new double[(int) flatSize];
-		while (tensorCursor.hasNext()) {
-			tensorCursor.fwd();
-			long[] cursorPos = tensorCursor.positionAsLongArray();
-        	int flatPos = IndexingUtils.multidimensionalIntoFlatIndex(cursorPos, tensorShape);
-        	double val = tensorCursor.get().getRealDouble();
-        	flatArr[flatPos] = val;
-		}
-		int[] shape = IntStream.range(0, tensor.numDimensions()).map(i -> (int) tensor.dimension(i)).toArray();
-		NDArray<double[]> nd = new NDArray<double[]>(flatArr, shape);
-	 	return nd;
+		double[] flatArr = pool == null ? new double[flatSize(tensor)] : pool.borrow(double[].class, flatSize(tensor));
+		copyIntoFortranOrder(tensor, flatArr, (pixel, i) -> flatArr[i] = pixel.get());
+		return new NDArray<double[]>(flatArr, reversedShape(tensor));
     }
 
     /**
@@ -198,31 +252,202 @@ public class JavaToPythonTensor {
      * 
      * @param tensor
      *        The tensor data is read from.
+     * @param pool
+     *        Pool the flat array is borrowed from, can be null.
      * @return The NDArray built from the tensor of type {@link DataType#DOUBLE}.
      */
-    private static NDArray<long[]> buildFromTensorLong(RandomAccessibleInterval<LongType> tensor)
+    private static NDArray<long[]> buildFromTensorLong(RandomAccessibleInterval<LongType> tensor, PrimitiveBufferPool pool)
     {
-    	long[] tensorShape = tensor.dimensionsAsLongArray();
-    	Cursor<LongType> tensorCursor;
-		if (tensor instanceof IntervalView)
-			tensorCursor = ((IntervalView<LongType>) tensor).cursor();
-		else if (tensor instanceof Img)
-			tensorCursor = ((Img<LongType>) tensor).cursor();
-		else
-			throw new IllegalArgumentException("The data of the " + Tensor.class + " has "
-					+ "to be an instance of " + Img.class + " or " + IntervalView.class);
+		long[] flatArr = pool == null ? new long[flatSize(tensor)] : pool.borrow(long[].class, flatSize(tensor));
+		copyIntoFortranOrder(tensor, flatArr, (pixel, i) -> flatArr[i] = pixel.get());
+		return new NDArray<long[]>(flatArr, reversedShape(tensor));
+    }
+    
+    private static int flatSize(RandomAccessibleInterval<?> tensor) {
 		long flatSize = 1;
 		for (long dd : tensor.dimensionsAsLongArray()) { flatSize *= dd;}
-		long[] flatArr = new long[(int) flatSize];
-		while (tensorCursor.hasNext()) {
-			tensorCursor.fwd();
-			long[] cursorPos = tensorCursor.positionAsLongArray();
-        	int flatPos = IndexingUtils.multidimensionalIntoFlatIndex(cursorPos, tensorShape);
-        	long val = tensorCursor.get().getLong();
-        	flatArr[flatPos] = val;
+		if (flatSize > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Tensors with more than " + Integer.MAX_VALUE + " pixels cannot be "
+					+ "converted into Python.");
+		return (int) flatSize;
+    }
+    
+    /**
+     * The flat arrays are in Fortran order (first axis fastest), which for Numpy is a C ordered array
+     * with the axes reversed. Python transposes it back without copying the data.
+     */
+    private static int[] reversedShape(RandomAccessibleInterval<?> tensor) {
+    	int n = tensor.numDimensions();
+    	return IntStream.range(0, n).map(i -> (int) tensor.dimension(n - 1 - i)).toArray();
+    }
+    
+    /**
+     * Copy the pixels of an image into a flat array in Fortran order, the order of the storage arrays of
+     * the {@link ArrayImg} and of the cells of the {@link AbstractCellImg}:
+     * 	- an {@link ArrayImg} is copied with a single block copy of its storage array
+     * 	- a {@link AbstractCellImg} is copied cell by cell, with a block copy for each row of each cell
+     * 	- any other interval (views, lazily computed images...) is split into slabs along its last axis that
+     * 	are copied in parallel, each one walking the view with a flat iterable cursor
+     */
+    private static < T > void copyIntoFortranOrder(RandomAccessibleInterval<T> tensor, Object flatArr, PixelWriter<T> writer) {
+    	Object array = storageArray(tensor, flatArr);
+    	if (array != null)
+    		System.arraycopy(array, 0, flatArr, 0, Array.getLength(flatArr));
+    	else if (!(tensor instanceof AbstractCellImg) || !copyCells((AbstractCellImg<?, ?, ?, ?>) tensor, flatArr))
+    		copyView(tensor, writer);
+    }
+    
+    /**
+     * @return the storage array of an {@link ArrayImg} if it is a primitive array of the same kind as the flat array
+     */
+    private static Object storageArray(RandomAccessibleInterval<?> tensor, Object flatArr) {
+    	if (!(tensor instanceof ArrayImg))
+    		return null;
+    	Object access = ((ArrayImg<?, ?>) tensor).update(null);
+    	if (!(access instanceof ArrayDataAccess))
+    		return null;
+    	Object array = ((ArrayDataAccess<?>) access).getCurrentStorageArray();
+    	return array.getClass() == flatArr.getClass() && Array.getLength(array) == Array.getLength(flatArr) ? array : null;
+    }
+    
+    private static boolean copyCells(AbstractCellImg<?, ?, ?, ?> img, Object flatArr) {
+    	int n = img.numDimensions();
+    	long[] strides = new long[n];
+    	long stride = 1;
+    	for (int d = 0; d < n; d ++) {
+    		strides[d] = stride;
+    		stride *= img.dimension(d);
+    	}
+    	for (Object obj : img.getCells()) {
+    		Cell<?> cell = (Cell<?>) obj;
+    		if (!(cell.getData() instanceof ArrayDataAccess))
+    			return false;
+    		Object cellArr = ((ArrayDataAccess<?>) cell.getData()).getCurrentStorageArray();
+    		if (cellArr.getClass() != flatArr.getClass())
+    			return false;
+    		int[] cellDims = new int[n];
+    		cell.dimensions(cellDims);
+    		long[] pos = new long[n];
+    		int rowLength = n == 0 ? 1 : cellDims[0];
+    		long cellSize = cell.size();
+    		// rows along the first axis are contiguous both in the cell and in the flat array
+    		for (long src = 0; src < cellSize; src += rowLength) {
+    			long dst = 0;
+    			for (int d = 0; d < n; d ++)
+    				dst += (cell.min(d) + pos[d]) * strides[d];
+    			System.arraycopy(cellArr, (int) src, flatArr, (int) dst, rowLength);
+    			for (int d = 1; d < n; d ++) {
+    				if (++ pos[d] < cellDims[d])
+    					break;
+    				pos[d] = 0;
+    			}
+    		}
+    	}
+    	return true;
+    }
+    
+    private static < T > void copyView(RandomAccessibleInterval<T> tensor, PixelWriter<T> writer) {
+    	int n = tensor.numDimensions();
+    	long size = Intervals.numElements(tensor);
+    	long slabs = n == 0 || size < PARALLEL_COPY_THRESHOLD ? 1 
+    			: Math.min(tensor.dimension(n - 1), 4L * Runtime.getRuntime().availableProcessors());
+    	if (slabs <= 1) {
+    		copySlab(Views.flatIterable(tensor).cursor(), 0, writer);
+    		return;
+    	}
+    	long last = tensor.dimension(n - 1);
+    	long slabSize = size / last;
+    	LongStream.range(0, slabs).parallel().forEach(s -> {
+    		long start = last * s / slabs;
+    		long end = last * (s + 1) / slabs;
+    		long[] min = tensor.minAsLongArray();
+    		long[] max = tensor.maxAsLongArray();
+    		min[n - 1] = tensor.min(n - 1) + start;
+    		max[n - 1] = tensor.min(n - 1) + end - 1;
+    		copySlab(Views.flatIterable(Views.interval(tensor, min, max)).cursor(), (int) (start * slabSize), writer);
+    	});
+    }
+    
+    /**
+     * Narrow the pixels of an image into a flat array in Fortran order. The storage array of an {@link ArrayImg}
+     * is read directly, split in chunks narrowed in parallel, any other image is walked as in
+     * {@link #copyView(RandomAccessibleInterval, PixelWriter)}.
+     * @return the maximum absolute error of the narrowed pixels
+     */
+    private static < T extends RealType< T > > double narrowIntoFortranOrder(RandomAccessibleInterval<T> tensor, Narrower narrower) {
+    	int size = flatSize(tensor);
+    	Object access = tensor instanceof ArrayImg ? ((ArrayImg<?, ?>) tensor).update(null) : null;
+    	Object array = access instanceof ArrayDataAccess ? ((ArrayDataAccess<?>) access).getCurrentStorageArray() : null;
+    	IntToDoubleFunction source = null;
+    	if (array instanceof double[] && ((double[]) array).length == size)
+    		source = i -> ((double[]) array)[i];
+    	else if (array instanceof float[] && ((float[]) array).length == size)
+    		source = i -> ((float[]) array)[i];
+    	if (source != null) {
+    		IntToDoubleFunction storage = source;
+    		int chunks = size < PARALLEL_COPY_THRESHOLD ? 1 : 4 * Runtime.getRuntime().availableProcessors();
+    		return IntStream.range(0, chunks).parallel().mapToDouble(c -> {
+    			double max = 0;
+    			int end = (int) ((long) size * (c + 1) / chunks);
+    			for (int i = (int) ((long) size * c / chunks); i < end; i ++) {
+    				double error = narrower.narrow(storage.applyAsDouble(i), i);
+    				if (error > max)
+    					max = error;
+    			}
+    			return max;
+    		}).max().orElse(0);
+    	}
+    	// the maximum only grows a few times, so the accumulator is hardly ever written
+    	DoubleAccumulator maxError = new DoubleAccumulator(Math::max, 0);
+    	copyView(tensor, (pixel, i) -> {
+    		double error = narrower.narrow(pixel.getRealDouble(), i);
+    		if (error > maxError.get())
+    			maxError.accumulate(error);
+    	});
+    	return maxError.get();
+    }
+    
+    private static < T > void copySlab(Cursor<T> cursor, int offset, PixelWriter<T> writer) {
+    	int flatPos = offset;
+    	while (cursor.hasNext())
+    		writer.write(cursor.next(), flatPos ++);
+    }
+
+    /**
+     * Builds a {@link NDArray} with the pixels of a boolean {@link RandomAccessibleInterval} packed
+     * 8 per byte in Fortran order, least significant bit first, which Numpy unpacks with
+     * {@code np.unpackbits(packed, bitorder="little")}. An {@link ArrayImg} of {@link BitType} already
+     * stores its pixels in that layout, so its longs are copied without visiting the pixels.
+     * 
+     * @param tensor
+     *        The tensor data is read from.
+     * @param pool
+     *        Pool the flat array is borrowed from, can be null.
+     * @return The one dimensional NDArray with the packed pixels of the tensor.
+     */
+    private static NDArray<byte[]> buildFromTensorBoolean(RandomAccessibleInterval<?> tensor, 
+    																	PrimitiveBufferPool pool)
+    {
+		long flatSize = 1;
+		for (long dd : tensor.dimensionsAsLongArray()) { flatSize *= dd;}
+		int nBytes = (int) ((flatSize + 7) / 8);
+		byte[] flatArr = pool == null ? new byte[nBytes] : pool.borrow(byte[].class, nBytes);
+		if (tensor instanceof ArrayImg && ((ArrayImg<?, ?>) tensor).update(null) instanceof LongArray
+				&& Util.getTypeFromInterval(tensor) instanceof BitType) {
+			long[] longs = ((LongArray) ((ArrayImg<?, ?>) tensor).update(null)).getCurrentStorageArray();
+			for (int i = 0; i < nBytes; i ++)
+				flatArr[i] = (byte) (longs[i >>> 3] >>> (8 * (i & 7)));
+		} else {
+			Arrays.fill(flatArr, 0, nBytes, (byte) 0);
+			Cursor<?> tensorCursor = Views.flatIterable(tensor).cursor();
+			int flatPos = 0;
+			while (tensorCursor.hasNext()) {
+				if (((BooleanType<?>) tensorCursor.next()).get())
+					flatArr[flatPos >>> 3] |= 1 << (flatPos & 7);
+				flatPos ++;
+			}
 		}
-		int[] shape = IntStream.range(0, tensor.numDimensions()).map(i -> (int) tensor.dimension(i)).toArray();
-		NDArray<long[]> nd = new NDArray<long[]>(flatArr, shape);
+		NDArray<byte[]> nd = new NDArray<byte[]>(flatArr, new int[] {nBytes});
 	 	return nd;
     }
 
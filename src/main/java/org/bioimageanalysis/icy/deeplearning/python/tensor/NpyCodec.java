@@ -0,0 +1,650 @@
+package org.bioimageanalysis.icy.deeplearning.python.tensor;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.bioimageanalysis.icy.deeplearning.tensor.Tensor;
+
+import jep.NDArray;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.type.BooleanType;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Reader and writer of the Numpy binary formats: .npy files with a single array and .npz zip archives
+ * with several named arrays. Files written here can be opened with {@code np.load} and the other way round.
+ *
+ * Images are written in Fortran order, the order of the imglib2 containers, so the pixels go from the image
+ * to the file through a small NIO buffer without building a flat array, and the data section of a .npy file
+ * can be memory-mapped and read as an {@link OffHeapImg} without copying it. Files in C order are read
+ * as a view with the axes reversed back. Boolean arrays are read into {@link BitType} images.
+ *
+ * Supported data types: int8, uint8, int16, uint16, int32, int64, float32, float64 and bool.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class NpyCodec {
+	/**
+	 * Extension of the Numpy array files
+	 */
+	public static final String NPY_EXTENSION = ".npy";
+	/**
+	 * First bytes of every .npy file
+	 */
+	private static final byte[] MAGIC = new byte[] {(byte) 0x93, 'N', 'U', 'M', 'P', 'Y'};
+	/**
+	 * Numpy pads the header so the data section starts at a multiple of this number of bytes
+	 */
+	private static final int HEADER_ALIGNMENT = 64;
+	/**
+	 * Size of the buffer the pixels go through when they are streamed
+	 */
+	private static final int CHUNK_BYTES = 1 << 20;
+	private static final Pattern DESCR = Pattern.compile("'descr'\\s*:\\s*'([<>|=])([a-z])(\\d+)'");
+	private static final Pattern FORTRAN_ORDER = Pattern.compile("'fortran_order'\\s*:\\s*(True|False)");
+	private static final Pattern SHAPE = Pattern.compile("'shape'\\s*:\\s*\\(([^)]*)\\)");
+
+	/**
+	 * Write an image into a .npy file
+	 * @param file
+	 * 	file where the image is written, it is replaced if it exists
+	 * @param data
+	 * 	image to write
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(Path file, RandomAccessibleInterval<?> data) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			writeImage(channel, data);
+		}
+	}
+
+	/**
+	 * Write the data of a {@link PythonTensor} into a .npy file. Packed boolean tensors are written
+	 * unpacked, one byte per pixel, as Numpy stores them.
+	 * @param file
+	 * 	file where the tensor is written, it is replaced if it exists
+	 * @param tensor
+	 * 	tensor to write
+	 * @throws IOException if the file cannot be written
+	 * @throws IllegalArgumentException if the data type of the tensor cannot be described in the .npy header
+	 */
+	public static void write(Path file, PythonTensor tensor) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			Object array = tensor.getData().getData();
+			ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			if (tensor.isPackedBits()) {
+				long[] shape = toLongs(tensor.getShape());
+				writeHeader(channel, "|b1", true, shape);
+				writePackedBits(channel, (byte[]) array, numElements(shape), buffer);
+				return;
+			}
+			long[] shape = toLongs(tensor.isFortranOrder() ? tensor.getShape() : tensor.getData().getDimensions());
+			writeHeader(channel, descrOf(tensor), tensor.isFortranOrder(), shape);
+			writeArray(channel, array, (int) numElements(shape), buffer);
+		}
+	}
+
+	/**
+	 * Write several images into a .npz archive, each one in an entry named after its key
+	 * @param file
+	 * 	file where the archive is written, it is replaced if it exists
+	 * @param arrays
+	 * 	images to write by name
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void writeNpz(Path file, Map<String, ? extends RandomAccessibleInterval<?>> arrays) throws IOException {
+		try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+			// stored entries need their size and CRC before the data, deflated ones can be streamed
+			zip.setLevel(Deflater.BEST_SPEED);
+			WritableByteChannel channel = Channels.newChannel(zip);
+			for (Entry<String, ? extends RandomAccessibleInterval<?>> entry : arrays.entrySet()) {
+				zip.putNextEntry(new ZipEntry(entry.getKey() + NPY_EXTENSION));
+				writeImage(channel, entry.getValue());
+				zip.closeEntry();
+			}
+		}
+	}
+
+	/**
+	 * Read a .npy file. The data section is memory-mapped, so the pixels are read from the file when they
+	 * are accessed. Changes made to the image are not written to the file, and the image of a read-only
+	 * file cannot be modified. Arrays in Fortran order give an {@link OffHeapImg}, arrays in C order give
+	 * a view of it with the axes reversed. {@link OffHeapImg#close()} stops the image from being read, but
+	 * the mapping itself is only released once the image and its accessors are garbage collected, until
+	 * then the file cannot be deleted on Windows. Boolean arrays are copied into a {@link BitType} image.
+	 * @param <T>
+	 * 	data type of the image
+	 * @param file
+	 * 	file to read
+	 * @return an image with the same shape as the Numpy array
+	 * @throws IOException if the file cannot be read or is not a valid .npy file
+	 */
+	public static < T extends RealType< T > > RandomAccessibleInterval<T> read(Path file) throws IOException {
+		// a private mapping needs a writable channel, read-only files give a read-only image
+		boolean writable = Files.isWritable(file);
+		try (FileChannel channel = writable ? FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)
+				: FileChannel.open(file, StandardOpenOption.READ)) {
+			Header header = readHeader(channel);
+			if (header.isBoolean())
+				return (RandomAccessibleInterval<T>) header.orient(readBits(channel, header));
+			long bytes = header.dataBytes();
+			if (bytes > Integer.MAX_VALUE)
+				throw new IOException("Arrays of more than " + Integer.MAX_VALUE + " bytes cannot be mapped: " + file);
+			if (channel.position() + bytes > channel.size())
+				throw new EOFException("The file " + file + " is shorter than the array it declares.");
+			MappedByteBuffer buffer = channel.map(writable ? MapMode.PRIVATE : MapMode.READ_ONLY, 
+					channel.position(), bytes);
+			buffer.order(header.byteOrder);
+			// the mapping stays valid once the channel is closed
+			return (RandomAccessibleInterval<T>) header.orient(OffHeapImg.wrap(header.dtype, header.storageShape(), buffer));
+		}
+	}
+
+	/**
+	 * Read a .npy file into a {@link Tensor}
+	 * @param <T>
+	 * 	data type of the tensor
+	 * @param file
+	 * 	file to read
+	 * @param name
+	 * 	name of the tensor
+	 * @param axesOrder
+	 * 	axes order of the tensor, one axis per dimension of the array
+	 * @return the tensor, backed by the memory-mapped file as described in {@link #read(Path)}
+	 * @throws IOException if the file cannot be read or is not a valid .npy file
+	 */
+	public static < T extends RealType< T > & NativeType< T > > Tensor<T> readTensor(Path file,
+			String name, String axesOrder) throws IOException {
+		RandomAccessibleInterval<T> data = read(file);
+		if (data.numDimensions() != axesOrder.length())
+			throw new IllegalArgumentException("The array of " + file + " has " + data.numDimensions()
+					+ " dimensions but the axes order is '" + axesOrder + "'.");
+		return Tensor.build(name, axesOrder, data);
+	}
+
+	/**
+	 * Read a .npy file into a {@link PythonTensor} whose data is on the Java heap. Only the data types
+	 * handled by the converters are supported: int8, int32, int64, float16, float32, float64 and bool.
+	 * float16 data, only in Fortran order, is kept as the bits of each value, in a tensor widened to float32
+	 * when it is converted into a Java image.
+	 * @param file
+	 * 	file to read
+	 * @param name
+	 * 	name of the tensor
+	 * @param axesOrder
+	 * 	axes order of the tensor
+	 * @return the tensor, in the same order as the file
+	 * @throws IOException if the file cannot be read or is not a valid .npy file
+	 */
+	public static PythonTensor readPythonTensor(Path file, String name, String axesOrder) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			Header header = readHeader(channel);
+			if (header.isBoolean()) {
+				RandomAccessibleInterval<BitType> bits = header.orient(readBits(channel, header));
+				return PythonTensor.fromJavaTensor(Tensor.build(name, axesOrder, bits));
+			}
+			long n = header.numElements();
+			if (header.dataBytes() > Integer.MAX_VALUE)
+				throw new IOException("Arrays of more than " + Integer.MAX_VALUE + " bytes cannot be read: " + file);
+			ByteBuffer buffer = channel.map(MapMode.READ_ONLY, channel.position(), header.dataBytes()).order(header.byteOrder);
+			Object array;
+			if (header.dtype.equals("int8")) {
+				array = new byte[(int) n];
+				buffer.get((byte[]) array);
+			} else if (header.dtype.equals("int32")) {
+				array = new int[(int) n];
+				buffer.asIntBuffer().get((int[]) array);
+			} else if (header.dtype.equals("int64")) {
+				array = new long[(int) n];
+				buffer.asLongBuffer().get((long[]) array);
+			} else if (header.dtype.equals("float16")) {
+				array = new short[(int) n];
+				buffer.asShortBuffer().get((short[]) array);
+			} else if (header.dtype.equals("float32")) {
+				array = new float[(int) n];
+				buffer.asFloatBuffer().get((float[]) array);
+			} else if (header.dtype.equals("float64")) {
+				array = new double[(int) n];
+				buffer.asDoubleBuffer().get((double[]) array);
+			} else {
+				throw new IllegalArgumentException("Python tensors of Numpy data type '" + header.dtype + "' are not supported.");
+			}
+			if (!header.fortranOrder && array instanceof short[])
+				throw new IllegalArgumentException("Python tensors of Numpy data type 'float16' are only supported in Fortran order.");
+			if (!header.fortranOrder)
+				return PythonTensor.build(name, axesOrder, new NDArray<Object>(array, toInts(header.shape)));
+			// the NDArray of a tensor in Fortran order has the dimensions reversed
+			int[] dims = new int[header.shape.length];
+			for (int i = 0; i < dims.length; i ++)
+				dims[i] = (int) header.shape[dims.length - 1 - i];
+			if (array instanceof short[])
+				return PythonTensor.buildNarrowed(name, axesOrder, new NDArray<Object>(array, dims), toInts(header.shape), "float32");
+			return PythonTensor.buildFortranOrder(name, axesOrder, new NDArray<Object>(array, dims), toInts(header.shape));
+		}
+	}
+
+	/**
+	 * Read every array of a .npz archive. Entries are decompressed into native memory, into {@link OffHeapImg}s
+	 * (or views of them for arrays in C order) that can be released with {@link OffHeapImg#close()}.
+	 * @param file
+	 * 	archive to read
+	 * @return the arrays by name, in the order of the archive
+	 * @throws IOException if the archive cannot be read or contains invalid arrays
+	 */
+	public static Map<String, RandomAccessibleInterval<?>> readNpz(Path file) throws IOException {
+		Map<String, RandomAccessibleInterval<?>> arrays = new LinkedHashMap<String, RandomAccessibleInterval<?>>();
+		try (ZipFile zip = new ZipFile(file.toFile())) {
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				if (entry.isDirectory() || !entry.getName().endsWith(NPY_EXTENSION))
+					continue;
+				String name = entry.getName().substring(0, entry.getName().length() - NPY_EXTENSION.length());
+				try (ReadableByteChannel channel = Channels.newChannel(zip.getInputStream(entry))) {
+					Header header = readHeader(channel);
+					if (header.isBoolean()) {
+						arrays.put(name, header.orient(readBits(channel, header)));
+						continue;
+					}
+					if (header.dataBytes() > Integer.MAX_VALUE)
+						throw new IOException("Arrays of more than " + Integer.MAX_VALUE + " bytes cannot be read: " + name);
+					ByteBuffer buffer = ByteBuffer.allocateDirect((int) header.dataBytes()).order(header.byteOrder);
+					readFully(channel, buffer);
+					buffer.rewind();
+					arrays.put(name, header.orient(OffHeapImg.wrap(header.dtype, header.storageShape(), buffer)));
+				}
+			}
+		}
+		return arrays;
+	}
+
+	private static void writeImage(WritableByteChannel channel, RandomAccessibleInterval<?> data) throws IOException {
+		Object type = Util.getTypeFromInterval(data);
+		String descr = descrOf(type);
+		long[] shape = data.dimensionsAsLongArray();
+		long n = numElements(shape);
+		writeHeader(channel, descr, true, shape);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		Object array = null;
+		if (data instanceof ArrayImg && ((ArrayImg<?, ?>) data).update(null) instanceof ArrayDataAccess)
+			array = ((ArrayDataAccess<?>) ((ArrayImg<?, ?>) data).update(null)).getCurrentStorageArray();
+		if (type instanceof BitType && array instanceof long[])
+			writeBitLongs(channel, (long[]) array, n, buffer);
+		else if (array != null && !(type instanceof BooleanType) && n <= Integer.MAX_VALUE)
+			writeArray(channel, array, (int) n, buffer);
+		else
+			writePixels(channel, Views.flatIterable(data).cursor(), descr, buffer);
+	}
+
+	/**
+	 * Numpy description (byte order, kind and size) of the data type of an image
+	 */
+	private static String descrOf(Object type) {
+		if (type instanceof BooleanType)
+			return "|b1";
+		else if (type instanceof ByteType)
+			return "|i1";
+		else if (type instanceof UnsignedByteType)
+			return "|u1";
+		else if (type instanceof ShortType)
+			return "<i2";
+		else if (type instanceof UnsignedShortType)
+			return "<u2";
+		else if (type instanceof IntType)
+			return "<i4";
+		else if (type instanceof LongType)
+			return "<i8";
+		else if (type instanceof FloatType)
+			return "<f4";
+		else if (type instanceof DoubleType)
+			return "<f8";
+		throw new IllegalArgumentException("Data type not supported by the .npy format: " + type.getClass());
+	}
+
+	/**
+	 * Numpy description of the data of a {@link PythonTensor}. The flat array alone does not tell the data
+	 * type, a byte array can hold int8, uint8 or packed bits, so the description follows the data types
+	 * {@link JavaToPythonTensor} produces: packed bits, the bits of float16 values narrowed by a
+	 * {@link TransportPolicy}, or the signed types int8, int32, int64, float32 and float64. Images of
+	 * unsigned types are not converted into {@link PythonTensor}s. Any other array is rejected instead
+	 * of being written with a description Numpy would read differently.
+	 */
+	private static String descrOf(PythonTensor tensor) {
+		if (tensor.isPackedBits())
+			return "|b1";
+		if (tensor.isFloat16())
+			return "<f2";
+		Object array = tensor.getData().getData();
+		if (array instanceof byte[])
+			return "|i1";
+		else if (array instanceof int[])
+			return "<i4";
+		else if (array instanceof long[])
+			return "<i8";
+		else if (array instanceof float[])
+			return "<f4";
+		else if (array instanceof double[])
+			return "<f8";
+		throw new IllegalArgumentException("Python tensors with data of type " + array.getClass().getSimpleName()
+				+ " cannot be written as .npy files.");
+	}
+
+	private static void writeHeader(WritableByteChannel channel, String descr, boolean fortranOrder, long[] shape)
+			throws IOException {
+		StringBuilder dict = new StringBuilder("{'descr': '").append(descr).append("', 'fortran_order': ")
+				.append(fortranOrder ? "True" : "False").append(", 'shape': (");
+		for (long s : shape)
+			dict.append(s).append(", ");
+		if (shape.length > 1)
+			dict.setLength(dict.length() - 2);
+		else if (shape.length == 1)
+			dict.setLength(dict.length() - 1);
+		dict.append("), }");
+		int preamble = MAGIC.length + 2 + 2;
+		int total = preamble + dict.length() + 1;
+		total = (total + HEADER_ALIGNMENT - 1) / HEADER_ALIGNMENT * HEADER_ALIGNMENT;
+		while (dict.length() < total - preamble - 1)
+			dict.append(' ');
+		dict.append('\n');
+		if (dict.length() > 0xFFFF)
+			throw new IllegalArgumentException("The shape " + Arrays.toString(shape) + " does not fit in a .npy header.");
+		ByteBuffer header = ByteBuffer.allocate(total).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(MAGIC).put((byte) 1).put((byte) 0).putShort((short) dict.length());
+		header.put(dict.toString().getBytes(StandardCharsets.US_ASCII));
+		header.flip();
+		writeFully(channel, header);
+	}
+
+	/**
+	 * Stream a primitive array into the channel through the buffer, in chunks
+	 */
+	private static void writeArray(WritableByteChannel channel, Object array, int length, ByteBuffer buffer) throws IOException {
+		int offset = 0;
+		while (offset < length) {
+			buffer.clear();
+			int n;
+			if (array instanceof byte[]) {
+				n = Math.min(length - offset, buffer.capacity());
+				buffer.put((byte[]) array, offset, n);
+			} else if (array instanceof short[]) {
+				n = Math.min(length - offset, buffer.capacity() / Short.BYTES);
+				buffer.asShortBuffer().put((short[]) array, offset, n);
+				buffer.position(n * Short.BYTES);
+			} else if (array instanceof int[]) {
+				n = Math.min(length - offset, buffer.capacity() / Integer.BYTES);
+				buffer.asIntBuffer().put((int[]) array, offset, n);
+				buffer.position(n * Integer.BYTES);
+			} else if (array instanceof long[]) {
+				n = Math.min(length - offset, buffer.capacity() / Long.BYTES);
+				buffer.asLongBuffer().put((long[]) array, offset, n);
+				buffer.position(n * Long.BYTES);
+			} else if (array instanceof float[]) {
+				n = Math.min(length - offset, buffer.capacity() / Float.BYTES);
+				buffer.asFloatBuffer().put((float[]) array, offset, n);
+				buffer.position(n * Float.BYTES);
+			} else if (array instanceof double[]) {
+				n = Math.min(length - offset, buffer.capacity() / Double.BYTES);
+				buffer.asDoubleBuffer().put((double[]) array, offset, n);
+				buffer.position(n * Double.BYTES);
+			} else {
+				throw new IllegalArgumentException("Data type not supported by the .npy format: " + array.getClass());
+			}
+			buffer.flip();
+			writeFully(channel, buffer);
+			offset += n;
+		}
+	}
+
+	/**
+	 * Stream the pixels of any image into the channel through the buffer, in flat iteration order
+	 */
+	private static void writePixels(WritableByteChannel channel, Cursor<?> cursor, String descr, ByteBuffer buffer)
+			throws IOException {
+		char kind = descr.charAt(1);
+		int size = descr.charAt(2) - '0';
+		buffer.clear();
+		while (cursor.hasNext()) {
+			Object pixel = cursor.next();
+			if (buffer.remaining() < Long.BYTES) {
+				buffer.flip();
+				writeFully(channel, buffer);
+				buffer.clear();
+			}
+			if (kind == 'b') {
+				buffer.put((byte) (((BooleanType<?>) pixel).get() ? 1 : 0));
+			} else if (kind == 'f' && size == 4) {
+				buffer.putFloat(((RealType<?>) pixel).getRealFloat());
+			} else if (kind == 'f') {
+				buffer.putDouble(((RealType<?>) pixel).getRealDouble());
+			} else {
+				long value = ((IntegerType<?>) pixel).getIntegerLong();
+				if (size == 1)
+					buffer.put((byte) value);
+				else if (size == 2)
+					buffer.putShort((short) value);
+				else if (size == 4)
+					buffer.putInt((int) value);
+				else
+					buffer.putLong(value);
+			}
+		}
+		buffer.flip();
+		writeFully(channel, buffer);
+	}
+
+	/**
+	 * Write the bits of a {@link BitType} image, stored 64 per long, as one byte per pixel
+	 */
+	private static void writeBitLongs(WritableByteChannel channel, long[] longs, long n, ByteBuffer buffer) throws IOException {
+		buffer.clear();
+		for (long i = 0; i < n; i ++) {
+			if (!buffer.hasRemaining()) {
+				buffer.flip();
+				writeFully(channel, buffer);
+				buffer.clear();
+			}
+			buffer.put((byte) ((longs[(int) (i >>> 6)] >>> (i & 63)) & 1));
+		}
+		buffer.flip();
+		writeFully(channel, buffer);
+	}
+
+	/**
+	 * Write the bits of a packed boolean tensor, 8 per byte, as one byte per pixel
+	 */
+	private static void writePackedBits(WritableByteChannel channel, byte[] packed, long n, ByteBuffer buffer) throws IOException {
+		buffer.clear();
+		for (long i = 0; i < n; i ++) {
+			if (!buffer.hasRemaining()) {
+				buffer.flip();
+				writeFully(channel, buffer);
+				buffer.clear();
+			}
+			buffer.put((byte) ((packed[(int) (i >>> 3)] >>> (i & 7)) & 1));
+		}
+		buffer.flip();
+		writeFully(channel, buffer);
+	}
+
+	/**
+	 * Read the bytes of a boolean array into a {@link BitType} image with the storage shape of the array
+	 */
+	private static ArrayImg<BitType, LongArray> readBits(ReadableByteChannel channel, Header header) throws IOException {
+		long n = header.numElements();
+		long[] longs = new long[(int) ((n + Long.SIZE - 1) / Long.SIZE)];
+		ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_BYTES);
+		long i = 0;
+		while (i < n) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), n - i));
+			readFully(channel, buffer);
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				if (buffer.get() != 0)
+					longs[(int) (i >>> 6)] |= 1L << (i & 63);
+				i ++;
+			}
+		}
+		return ArrayImgs.bits(new LongArray(longs), header.storageShape());
+	}
+
+	private static Header readHeader(ReadableByteChannel channel) throws IOException {
+		ByteBuffer preamble = ByteBuffer.allocate(MAGIC.length + 2).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, preamble);
+		for (int i = 0; i < MAGIC.length; i ++) {
+			if (preamble.get(i) != MAGIC[i])
+				throw new IOException("Not a .npy file, the magic string is missing.");
+		}
+		int majorVersion = preamble.get(MAGIC.length);
+		ByteBuffer length = ByteBuffer.allocate(majorVersion == 1 ? 2 : 4).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, length);
+		long headerLength = majorVersion == 1 ? length.getShort(0) & 0xFFFF : length.getInt(0) & 0xFFFFFFFFL;
+		ByteBuffer dict = ByteBuffer.allocate((int) headerLength);
+		readFully(channel, dict);
+		String text = new String(dict.array(), majorVersion == 3 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+		Matcher descr = DESCR.matcher(text);
+		Matcher fortran = FORTRAN_ORDER.matcher(text);
+		Matcher shape = SHAPE.matcher(text);
+		if (!descr.find() || !fortran.find() || !shape.find())
+			throw new IOException("Invalid .npy header: " + text.trim());
+		String[] dims = shape.group(1).trim().isEmpty() ? new String[0] : shape.group(1).split(",");
+		long[] shapeArr = Arrays.stream(dims).map(String::trim).filter(s -> !s.isEmpty()).mapToLong(Long::parseLong).toArray();
+		return new Header(descr.group(1).charAt(0), descr.group(2).charAt(0), Integer.parseInt(descr.group(3)),
+				fortran.group(1).equals("True"), shapeArr);
+	}
+
+	private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0)
+				throw new EOFException("The .npy data ended before the end of the array.");
+		}
+	}
+
+	private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	private static long numElements(long[] shape) {
+		return Intervals.numElements(shape);
+	}
+
+	private static long[] toLongs(int[] arr) {
+		return Arrays.stream(arr).mapToLong(i -> i).toArray();
+	}
+
+	private static int[] toInts(long[] arr) {
+		return Arrays.stream(arr).mapToInt(i -> (int) i).toArray();
+	}
+
+	/**
+	 * Description of the array of a .npy file
+	 */
+	private static class Header {
+		/**
+		 * Numpy name of the data type
+		 */
+		private final String dtype;
+		private final ByteOrder byteOrder;
+		private final int bytesPerElement;
+		private final boolean fortranOrder;
+		private final long[] shape;
+
+		private Header(char byteOrder, char kind, int bytesPerElement, boolean fortranOrder, long[] shape) throws IOException {
+			if (kind == 'b' && bytesPerElement == 1)
+				this.dtype = "bool";
+			else if (kind == 'i' || kind == 'u' || kind == 'f')
+				this.dtype = (kind == 'i' ? "int" : kind == 'u' ? "uint" : "float") + (bytesPerElement * 8);
+			else
+				throw new IOException("Unsupported Numpy data type '" + kind + bytesPerElement + "'.");
+			this.byteOrder = byteOrder == '>' ? ByteOrder.BIG_ENDIAN
+					: byteOrder == '=' ? ByteOrder.nativeOrder() : ByteOrder.LITTLE_ENDIAN;
+			this.bytesPerElement = bytesPerElement;
+			this.fortranOrder = fortranOrder;
+			this.shape = shape;
+		}
+
+		private boolean isBoolean() {
+			return dtype.equals("bool");
+		}
+
+		private long numElements() {
+			return Intervals.numElements(shape);
+		}
+
+		private long dataBytes() {
+			return numElements() * bytesPerElement;
+		}
+
+		/**
+		 * Data in C order is the Fortran order of the reversed shape, which is how it is stored in the image
+		 */
+		private long[] storageShape() {
+			if (fortranOrder)
+				return shape;
+			long[] reversed = new long[shape.length];
+			for (int i = 0; i < shape.length; i ++)
+				reversed[i] = shape[shape.length - 1 - i];
+			return reversed;
+		}
+
+		/**
+		 * Give an image with the storage shape the axes order of the array
+		 */
+		private < T > RandomAccessibleInterval<T> orient(RandomAccessibleInterval<T> img) {
+			if (fortranOrder)
+				return img;
+			RandomAccessibleInterval<T> view = img;
+			int n = shape.length;
+			for (int d = 0; d < n / 2; d ++)
+				view = Views.permute(view, d, n - 1 - d);
+			return view;
+		}
+	}
+}
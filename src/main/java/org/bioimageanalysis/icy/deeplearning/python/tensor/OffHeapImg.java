@@ -0,0 +1,231 @@
+package org.bioimageanalysis.icy.deeplearning.python.tensor;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import jep.DirectNDArray;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.DataAccess;
+import net.imglib2.img.basictypeaccess.nio.ByteBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.DoubleBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.FloatBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.IntBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.LongBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.ShortBufferAccess;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Fraction;
+
+/**
+ * {@link ArrayImg} whose pixels live in native memory outside of the Java heap.
+ * The memory is a direct {@link ByteBuffer} that can be handed to Python as a {@link DirectNDArray},
+ * so Numpy can copy the data of a tensor into the memory read by the image (one copy, with
+ * {@code np.copyto}) without the data going through the Java heap.
+ *
+ * Once {@link #close()} is called no cursor or random access can be created on the image anymore.
+ * The memory itself is released by the cleaner of the direct buffer once the image, and any accessor
+ * created before closing it, are garbage collected, so an accessor never reads freed memory.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ * @param <T>
+ * 	data type of the image
+ * @param <A>
+ * 	buffer access of the image
+ */
+public class OffHeapImg< T extends NativeType< T >, A extends DataAccess > extends ArrayImg< T, A > implements AutoCloseable {
+	/**
+	 * Native memory containing the pixels
+	 */
+	private ByteBuffer buffer;
+	/**
+	 * Typed view of {@link #buffer} used to create the {@link DirectNDArray}
+	 */
+	private final Buffer typedBuffer;
+	/**
+	 * Numpy data type of the pixels
+	 */
+	private final String dtype;
+
+	private OffHeapImg(A access, long[] dims, ByteBuffer buffer, Buffer typedBuffer, String dtype) {
+		super(access, dims, new Fraction());
+		this.buffer = buffer;
+		this.typedBuffer = typedBuffer;
+		this.dtype = dtype;
+	}
+
+	/**
+	 * Allocate an off-heap image able to hold a Numpy array of the given data type and shape.
+	 * The dimensions of the image follow the same order as the Numpy array.
+	 * @param <T>
+	 * 	data type of the image
+	 * @param dtype
+	 * 	name of the Numpy data type, one of: int8, uint8, int16, uint16, int32, int64, float32 or float64
+	 * @param shape
+	 * 	shape of the Numpy array
+	 * @return an off-heap image whose content is undefined
+	 */
+	public static < T extends RealType< T > & NativeType< T > > OffHeapImg<T, ?> allocate(String dtype, long[] shape) {
+		long flatSize = 1;
+		for (long dd : shape) { flatSize *= dd;}
+		int bytesPerElement = bytesPerElement(dtype);
+		if (flatSize * bytesPerElement > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Off-heap images are limited to " + Integer.MAX_VALUE + " bytes, "
+					+ "a tensor of shape " + Arrays.toString(shape) + " and type " + dtype + " needs "
+					+ (flatSize * bytesPerElement) + ".");
+		ByteBuffer buffer = ByteBuffer.allocateDirect((int) (flatSize * bytesPerElement)).order(ByteOrder.nativeOrder());
+		return (OffHeapImg<T, ?>) wrap(dtype, shape, buffer);
+	}
+
+	/**
+	 * Create an image that reads its pixels from an existing buffer
+	 * @param dtype
+	 * 	name of the Numpy data type
+	 * @param shape
+	 * 	dimensions of the image
+	 * @param buffer
+	 * 	buffer holding the pixels, its byte order is respected
+	 * @return an image backed by the buffer
+	 */
+	static OffHeapImg<?, ?> wrap(String dtype, long[] shape, ByteBuffer buffer) {
+		if (dtype.equals("int8")) {
+			OffHeapImg<ByteType, ByteBufferAccess> img =
+					new OffHeapImg<>(new ByteBufferAccess(buffer, true), shape, buffer, buffer, dtype);
+			img.setLinkedType(new ByteType(img));
+			return img;
+		} else if (dtype.equals("uint8")) {
+			OffHeapImg<UnsignedByteType, ByteBufferAccess> img =
+					new OffHeapImg<>(new ByteBufferAccess(buffer, true), shape, buffer, buffer, dtype);
+			img.setLinkedType(new UnsignedByteType(img));
+			return img;
+		} else if (dtype.equals("int16")) {
+			ShortBufferAccess access = new ShortBufferAccess(buffer.asShortBuffer(), true);
+			OffHeapImg<ShortType, ShortBufferAccess> img =
+					new OffHeapImg<>(access, shape, buffer, access.getCurrentStorageArray(), dtype);
+			img.setLinkedType(new ShortType(img));
+			return img;
+		} else if (dtype.equals("uint16")) {
+			ShortBufferAccess access = new ShortBufferAccess(buffer.asShortBuffer(), true);
+			OffHeapImg<UnsignedShortType, ShortBufferAccess> img =
+					new OffHeapImg<>(access, shape, buffer, access.getCurrentStorageArray(), dtype);
+			img.setLinkedType(new UnsignedShortType(img));
+			return img;
+		} else if (dtype.equals("int32")) {
+			IntBufferAccess access = new IntBufferAccess(buffer.asIntBuffer(), true);
+			OffHeapImg<IntType, IntBufferAccess> img =
+					new OffHeapImg<>(access, shape, buffer, access.getCurrentStorageArray(), dtype);
+			img.setLinkedType(new IntType(img));
+			return img;
+		} else if (dtype.equals("int64")) {
+			LongBufferAccess access = new LongBufferAccess(buffer.asLongBuffer(), true);
+			OffHeapImg<LongType, LongBufferAccess> img =
+					new OffHeapImg<>(access, shape, buffer, access.getCurrentStorageArray(), dtype);
+			img.setLinkedType(new LongType(img));
+			return img;
+		} else if (dtype.equals("float32")) {
+			FloatBufferAccess access = new FloatBufferAccess(buffer.asFloatBuffer(), true);
+			OffHeapImg<FloatType, FloatBufferAccess> img =
+					new OffHeapImg<>(access, shape, buffer, access.getCurrentStorageArray(), dtype);
+			img.setLinkedType(new FloatType(img));
+			return img;
+		} else if (dtype.equals("float64")) {
+			DoubleBufferAccess access = new DoubleBufferAccess(buffer.asDoubleBuffer(), true);
+			OffHeapImg<DoubleType, DoubleBufferAccess> img =
+					new OffHeapImg<>(access, shape, buffer, access.getCurrentStorageArray(), dtype);
+			img.setLinkedType(new DoubleType(img));
+			return img;
+		} else {
+			throw new IllegalArgumentException("Off-heap images of Numpy data type '" + dtype + "' are not supported.");
+		}
+	}
+
+	/**
+	 * Number of bytes used by each element of a Numpy data type
+	 * @param dtype
+	 * 	name of the Numpy data type
+	 * @return number of bytes per element
+	 */
+	static int bytesPerElement(String dtype) {
+		if (dtype.equals("int8") || dtype.equals("uint8") || dtype.equals("bool"))
+			return 1;
+		else if (dtype.equals("int16") || dtype.equals("uint16") || dtype.equals("float16"))
+			return 2;
+		else if (dtype.equals("int32") || dtype.equals("float32"))
+			return 4;
+		else if (dtype.equals("int64") || dtype.equals("float64"))
+			return 8;
+		throw new IllegalArgumentException("Unsupported Numpy data type: " + dtype);
+	}
+
+	/**
+	 * Create a {@link DirectNDArray} that shares the memory of this image. When it is sent to Python
+	 * it becomes a Numpy array with the axes in reverse order, so the transposed Numpy array
+	 * ({@code array.T}) has the same shape as this image and writing a tensor into it fills the image.
+	 * @return a {@link DirectNDArray} sharing the memory of the image
+	 */
+	public DirectNDArray<Buffer> getDirectNDArray() {
+		if (buffer == null)
+			throw new IllegalStateException("The off-heap image has already been closed.");
+		int[] reversedDims = new int[numDimensions()];
+		for (int i = 0; i < reversedDims.length; i ++)
+			reversedDims[i] = (int) dimension(reversedDims.length - 1 - i);
+		boolean unsigned = dtype.equals("uint8") || dtype.equals("uint16");
+		return new DirectNDArray<Buffer>(typedBuffer, unsigned, reversedDims);
+	}
+
+	/**
+	 *
+	 * @return the Numpy data type of the image
+	 */
+	public String getDtype() {
+		return dtype;
+	}
+
+	/**
+	 *
+	 * @return number of bytes of native memory held by the image, 0 once it is closed
+	 */
+	public long getNativeMemorySize() {
+		return buffer == null ? 0 : buffer.capacity();
+	}
+
+	/**
+	 *
+	 * @return whether the native memory of the image has already been released
+	 */
+	public boolean isClosed() {
+		return buffer == null;
+	}
+
+	/**
+	 * Every cursor and random access gets the buffer access of the image through this method when it
+	 * is created, so the image cannot be read nor written once it has been closed
+	 * @throws IllegalStateException if the image has already been closed
+	 */
+	@Override
+	public A update(Object updater) {
+		if (buffer == null)
+			throw new IllegalStateException("The off-heap image has already been closed.");
+		return super.update(updater);
+	}
+
+	/**
+	 * Close the image, no cursor or random access can be created on it afterwards. The native memory is
+	 * not freed here: the buffer accesses of the image and the accessors created before closing it still
+	 * point to it. It is released by the cleaner of the direct buffer once they are garbage collected.
+	 */
+	@Override
+	public void close() {
+		buffer = null;
+	}
+}
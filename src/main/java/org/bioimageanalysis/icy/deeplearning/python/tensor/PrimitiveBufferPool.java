@@ -0,0 +1,251 @@
+package org.bioimageanalysis.icy.deeplearning.python.tensor;
+
+import java.lang.reflect.Array;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jep.NDArray;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+
+/**
+ * Pool of flat primitive arrays used by the conversions between Java and Python tensors.
+ * Arrays are grouped in size classes given by their primitive type and their exact length (a JEP
+ * {@link NDArray} requires the length of the array to match the product of its dimensions). When
+ * tiles of the same size are processed one after the other, the arrays used by one conversion are
+ * reused by the next one and the converters stop allocating large arrays.
+ *
+ * The pool never retains more than a configurable number of bytes. Arrays returned once the cap has
+ * been reached are simply dropped and left to the garbage collector.
+ *
+ * Arrays borrowed from the pool are not cleared, the converters overwrite every position.
+ *
+ * The pool only takes back the arrays it lent. The storage array of an image that was not created
+ * with an array of the pool is never recycled, so the images of the caller cannot be overwritten by
+ * a later conversion.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class PrimitiveBufferPool {
+	/**
+	 * Default maximum number of bytes retained by the pool, 512MB
+	 */
+	public static final long DEFAULT_MAX_RETAINED_BYTES = 512L * 1024 * 1024;
+	/**
+	 * Maximum number of bytes that the pool can retain
+	 */
+	private final long maxRetainedBytes;
+	/**
+	 * Number of bytes currently retained by the pool
+	 */
+	private final AtomicLong retainedBytes = new AtomicLong();
+	/**
+	 * Number of requests that were served with an array from the pool
+	 */
+	private final AtomicLong hits = new AtomicLong();
+	/**
+	 * Number of requests that required allocating a new array
+	 */
+	private final AtomicLong misses = new AtomicLong();
+	/**
+	 * Free arrays, classified by primitive type and length
+	 */
+	private final Map<Class<?>, Map<Integer, ConcurrentLinkedDeque<Object>>> freeArrays = new ConcurrentHashMap<>();
+	/**
+	 * Arrays lent by the pool that have not been given back yet. Arrays do not override equals and hashCode,
+	 * so the set compares them by identity, and arrays that are never given back are left to the garbage
+	 * collector
+	 */
+	private final Set<Object> lentArrays = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+	private PrimitiveBufferPool(long maxRetainedBytes) {
+		if (maxRetainedBytes < 0)
+			throw new IllegalArgumentException("The maximum number of bytes retained by the pool cannot be negative.");
+		this.maxRetainedBytes = maxRetainedBytes;
+	}
+
+	/**
+	 * Create a pool that retains at most {@link #DEFAULT_MAX_RETAINED_BYTES}
+	 * @return a new empty pool
+	 */
+	public static PrimitiveBufferPool build() {
+		return new PrimitiveBufferPool(DEFAULT_MAX_RETAINED_BYTES);
+	}
+
+	/**
+	 * Create a pool that retains at most the given number of bytes
+	 * @param maxRetainedBytes
+	 * 	memory cap of the pool in bytes
+	 * @return a new empty pool
+	 */
+	public static PrimitiveBufferPool build(long maxRetainedBytes) {
+		return new PrimitiveBufferPool(maxRetainedBytes);
+	}
+
+	/**
+	 * Get a primitive array of exactly the given length, either from the pool or newly allocated
+	 * @param <A>
+	 * 	primitive array type
+	 * @param arrayType
+	 * 	class of the primitive array, for example float[].class
+	 * @param length
+	 * 	number of elements of the array
+	 * @return an array of the wanted type and length whose content is undefined
+	 */
+	public < A > A borrow(Class<A> arrayType, int length) {
+		Class<?> componentType = arrayType.getComponentType();
+		if (componentType == null || !componentType.isPrimitive())
+			throw new IllegalArgumentException("Only primitive arrays can be pooled: " + arrayType);
+		Map<Integer, ConcurrentLinkedDeque<Object>> sizeClasses = freeArrays.get(componentType);
+		ConcurrentLinkedDeque<Object> free = sizeClasses == null ? null : sizeClasses.get(length);
+		Object arr = free == null ? null : free.pollFirst();
+		if (arr == null) {
+			misses.incrementAndGet();
+			arr = Array.newInstance(componentType, length);
+		} else {
+			retainedBytes.addAndGet(- sizeInBytes(componentType, length));
+			hits.incrementAndGet();
+		}
+		lentArrays.add(arr);
+		return arrayType.cast(arr);
+	}
+
+	/**
+	 * Give back a primitive array borrowed from the pool so it can be reused by following conversions.
+	 * The array should not be used by the caller after returning it.
+	 * @param arr
+	 * 	primitive array, null values, non-array objects and arrays that were not borrowed from this pool
+	 * 	are ignored
+	 * @return true if the array is now retained by the pool and false if it was dropped
+	 */
+	public boolean recycle(Object arr) {
+		if (arr == null || !lentArrays.remove(arr))
+			return false;
+		return retain(arr);
+	}
+
+	/**
+	 * Hand over to the pool a primitive array that was not borrowed from it and that nothing else
+	 * references anymore, such as the copy of a Numpy array created by JEP, so following conversions
+	 * can reuse it.
+	 * @param arr
+	 * 	primitive array, null values and non-array objects are ignored
+	 * @return true if the array is now retained by the pool and false if it was dropped
+	 */
+	public boolean adopt(Object arr) {
+		if (arr == null || !arr.getClass().isArray() || !arr.getClass().getComponentType().isPrimitive()
+				|| lentArrays.contains(arr))
+			return false;
+		return retain(arr);
+	}
+
+	/**
+	 *
+	 * @param arr
+	 * 	array that may still be referenced by an image of the caller
+	 * @return whether the array was borrowed from this pool and has not been given back yet
+	 */
+	public boolean isLent(Object arr) {
+		return arr != null && lentArrays.contains(arr);
+	}
+
+	private boolean retain(Object arr) {
+		Class<?> componentType = arr.getClass().getComponentType();
+		int length = Array.getLength(arr);
+		long size = sizeInBytes(componentType, length);
+		if (retainedBytes.addAndGet(size) > maxRetainedBytes) {
+			retainedBytes.addAndGet(- size);
+			return false;
+		}
+		freeArrays.computeIfAbsent(componentType, k -> new ConcurrentHashMap<>())
+				.computeIfAbsent(length, k -> new ConcurrentLinkedDeque<>()).offerFirst(arr);
+		return true;
+	}
+
+	/**
+	 * Give back the array holding the data of a {@link NDArray} to the pool, if it was borrowed from it
+	 * @param nd
+	 * 	NDArray whose data is not going to be used anymore
+	 * @return true if the array is now retained by the pool and false if it was dropped
+	 */
+	public boolean recycle(NDArray<?> nd) {
+		if (nd == null)
+			return false;
+		return recycle(nd.getData());
+	}
+
+	/**
+	 * Give back the storage array of an image created by the converters to the pool. Only images
+	 * backed by a single primitive array ({@link ArrayImg}) borrowed from this pool can be recycled.
+	 * @param img
+	 * 	image whose data is not going to be used anymore
+	 * @return true if the array is now retained by the pool and false if it was dropped or was not lent
+	 * 	by this pool
+	 */
+	public boolean recycle(RandomAccessibleInterval<?> img) {
+		if (!(img instanceof ArrayImg))
+			return false;
+		Object access = ((ArrayImg<?, ?>) img).update(null);
+		if (!(access instanceof ArrayDataAccess))
+			return false;
+		return recycle(((ArrayDataAccess<?>) access).getCurrentStorageArray());
+	}
+
+	/**
+	 * Remove every array retained by the pool
+	 */
+	public void clear() {
+		freeArrays.clear();
+		retainedBytes.set(0);
+	}
+
+	/**
+	 *
+	 * @return number of bytes currently retained by the pool
+	 */
+	public long getRetainedBytes() {
+		return retainedBytes.get();
+	}
+
+	/**
+	 *
+	 * @return maximum number of bytes the pool can retain
+	 */
+	public long getMaxRetainedBytes() {
+		return maxRetainedBytes;
+	}
+
+	/**
+	 *
+	 * @return number of arrays that have been served from the pool
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 *
+	 * @return number of arrays that had to be allocated because the pool had none of the wanted size
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	private static long sizeInBytes(Class<?> componentType, int length) {
+		if (componentType == byte.class || componentType == boolean.class)
+			return length;
+		else if (componentType == short.class || componentType == char.class)
+			return 2L * length;
+		else if (componentType == int.class || componentType == float.class)
+			return 4L * length;
+		else
+			return 8L * length;
+	}
+}
@@ -15,6 +15,16 @@ import net.imglib2.type.numeric.RealType;
  */
 
 public class PythonTensor {
+	/**
+	 * Data type of the boolean tensors, whose data travels packed 8 pixels per byte in Fortran order,
+	 * the first pixel in the least significant bit
+	 */
+	public static final String PACKED_BITS = "packed_bits";
+	/**
+	 * Data type of the tensors narrowed to half precision, whose data travels as the 16 bits of each
+	 * value in a short array that Numpy views as float16
+	 */
+	public static final String FLOAT16 = "float16";
 	/**
 	 * Name of the tensor
 	 */
@@ -28,13 +38,19 @@ public class PythonTensor {
 	 */
 	private NDArray<?> data;
 	/**
-	 * Data type of the tensor
+	 * Data type of the tensor, {@link #PACKED_BITS} for boolean tensors whose data is packed
+	 * into bytes, {@link #FLOAT16} for tensors narrowed to half precision, null otherwise
 	 */
 	private String dataType;
 	/**
 	 * Shape of the tensor
 	 */
 	private int[] shape;
+	/**
+	 * Whether the flat data is in Fortran order (first axis fastest), in which case the dimensions of
+	 * {@link #data} are the shape of the tensor reversed
+	 */
+	private boolean fortranOrder = false;
 	/**
 	 * Unique identifier used to denominate the Numpy array of this tensor in the Python scope
 	 */
@@ -43,6 +59,18 @@ public class PythonTensor {
 	 * Unique identifier used to denominate the tensor of this tensor in the Python scope
 	 */
 	private String tensorKey;
+	/**
+	 * Pool the array of {@link #data} was borrowed from, null if it was not borrowed
+	 */
+	private PrimitiveBufferPool pool;
+	/**
+	 * Precision and error of the conversion, null if the tensor was not converted under a {@link TransportPolicy}
+	 */
+	private TransportReport transportReport;
+	/**
+	 * Data type the narrowed data is widened to when it is converted into Java, null if it is not widened
+	 */
+	private String widenedDataType;
 	
 	/**
 	 * Constructor to create a tensor that can easily be converted into a Python BioImage.io tensor
@@ -54,10 +82,67 @@ public class PythonTensor {
 	 * 	data of the tensor as a JEP NDArray
 	 */
 	PythonTensor(String name, String axesOrder, NDArray< ? > nd) {
+		this(name, axesOrder, nd, null);
+	}
+	
+	/**
+	 * Constructor to create a tensor that can easily be converted into a Python BioImage.io tensor
+	 * whose data array has been borrowed from a {@link PrimitiveBufferPool}
+	 * @param name
+	 * 	name of the tensor
+	 * @param axesOrder
+	 * 	axes order of the tensor
+	 * @param nd
+	 * 	data of the tensor as a JEP NDArray
+	 * @param pool
+	 * 	pool the data array was borrowed from, can be null
+	 */
+	PythonTensor(String name, String axesOrder, NDArray< ? > nd, PrimitiveBufferPool pool) {
 		this.name = name;
 		this.axesOrder = axesOrder;
 		this.data = nd;
 		this.shape = nd.getDimensions();
+		this.pool = pool;
+	}
+	
+	/**
+	 * Constructor to create a boolean tensor whose data is packed into bytes
+	 * @param name
+	 * 	name of the tensor
+	 * @param axesOrder
+	 * 	axes order of the tensor
+	 * @param packed
+	 * 	pixels of the tensor packed 8 per byte in Fortran order, least significant bit first
+	 * @param shape
+	 * 	shape of the tensor
+	 * @param pool
+	 * 	pool the data array was borrowed from, can be null
+	 */
+	PythonTensor(String name, String axesOrder, NDArray< byte[] > packed, int[] shape, PrimitiveBufferPool pool) {
+		this(name, axesOrder, packed, pool);
+		this.shape = shape;
+		this.dataType = PACKED_BITS;
+	}
+	
+	/**
+	 * Create a tensor whose flat data is in Fortran order, as produced by {@link JavaToPythonTensor}
+	 * @param name
+	 * 	name of the tensor
+	 * @param axesOrder
+	 * 	axes order of the tensor
+	 * @param nd
+	 * 	data of the tensor, its dimensions are the shape of the tensor reversed
+	 * @param shape
+	 * 	shape of the tensor
+	 * @param pool
+	 * 	pool the data array was borrowed from, can be null
+	 * @return the tensor
+	 */
+	static PythonTensor fortranOrder(String name, String axesOrder, NDArray< ? > nd, int[] shape, PrimitiveBufferPool pool) {
+		PythonTensor tensor = new PythonTensor(name, axesOrder, nd, pool);
+		tensor.shape = shape;
+		tensor.fortranOrder = true;
+		return tensor;
 	}
 	
 	/**
@@ -73,6 +158,61 @@ public class PythonTensor {
 		return new PythonTensor(name, axesOrder, nd);
 	}
 	
+	/**
+	 * Create a boolean tensor from its data packed into bytes, as produced by Numpy with
+	 * {@code np.packbits(array.ravel(order="F"), bitorder="little")}
+	 * @param name
+	 * 	name of the tensor
+	 * @param axesOrder
+	 * 	axes order of the tensor
+	 * @param packed
+	 * 	pixels of the tensor packed 8 per byte in Fortran order, least significant bit first
+	 * @param shape
+	 * 	shape of the tensor
+	 */
+	public static PythonTensor buildPackedBits(String name, String axesOrder, NDArray< byte[] > packed, int[] shape) {
+		return new PythonTensor(name, axesOrder, packed, shape, null);
+	}
+	
+	/**
+	 * Create a tensor from its data in Fortran order, the first axis varying the fastest
+	 * @param name
+	 * 	name of the tensor
+	 * @param axesOrder
+	 * 	axes order of the tensor
+	 * @param nd
+	 * 	data of the tensor, its dimensions are the shape of the tensor reversed
+	 * @param shape
+	 * 	shape of the tensor
+	 */
+	public static PythonTensor buildFortranOrder(String name, String axesOrder, NDArray< ? > nd, int[] shape) {
+		return fortranOrder(name, axesOrder, nd, shape, null);
+	}
+	
+	/**
+	 * Create a tensor from its data in Fortran order, narrowed by a {@link TransportPolicy} to cross the bridge.
+	 * The data is widened while it is copied into the Java image by {@link #toJava(PrimitiveBufferPool)}.
+	 * @param name
+	 * 	name of the tensor
+	 * @param axesOrder
+	 * 	axes order of the tensor
+	 * @param nd
+	 * 	narrowed data of the tensor, its dimensions are the shape of the tensor reversed. Short arrays hold
+	 * 	the bits of half precision values
+	 * @param shape
+	 * 	shape of the tensor
+	 * @param widenedDataType
+	 * 	data type of the Java image, "float32" or "float64"
+	 */
+	public static PythonTensor buildNarrowed(String name, String axesOrder, NDArray< ? > nd, int[] shape, 
+			String widenedDataType) {
+		PythonTensor tensor = fortranOrder(name, axesOrder, nd, shape, null);
+		if (nd.getData() instanceof short[])
+			tensor.dataType = FLOAT16;
+		tensor.widenedDataType = widenedDataType;
+		return tensor;
+	}
+	
 	/**
 	 * 
 	 * @return the name of the tensor
@@ -97,6 +237,56 @@ public class PythonTensor {
 		return data;
 	}
 	
+	/**
+	 * 
+	 * @return the shape of the tensor, for packed boolean tensors it is not the shape of {@link #getData()}
+	 */
+	public int[] getShape() {
+		return shape;
+	}
+	
+	/**
+	 * 
+	 * @return whether the tensor is boolean and its data is packed 8 pixels per byte
+	 */
+	public boolean isPackedBits() {
+		return PACKED_BITS.equals(dataType);
+	}
+	
+	/**
+	 * 
+	 * @return whether the data holds the bits of half precision values, that Numpy views as float16
+	 */
+	public boolean isFloat16() {
+		return FLOAT16.equals(dataType);
+	}
+	
+	void setFloat16() {
+		this.dataType = FLOAT16;
+	}
+	
+	/**
+	 * 
+	 * @return precision and error of the conversion, null if the tensor was not converted under a 
+	 * 	{@link TransportPolicy}
+	 */
+	public TransportReport getTransportReport() {
+		return transportReport;
+	}
+	
+	void setTransportReport(TransportReport transportReport) {
+		this.transportReport = transportReport;
+	}
+	
+	/**
+	 * 
+	 * @return whether the flat data is in Fortran order, so Numpy has to transpose it to get the axes order
+	 * 	of the tensor
+	 */
+	public boolean isFortranOrder() {
+		return fortranOrder;
+	}
+	
 	/**
 	 * Method that converts a Java tensor from {@link Tensor} into an object that can easily be converted into a Python
 	 * tensor used by the BioImage.i core in Pyhton
@@ -109,9 +299,81 @@ public class PythonTensor {
 		return JavaToPythonTensor.fromJavaTensor(javaTensor);
 	}
 	
+	/**
+	 * Method that converts a Java tensor from {@link Tensor} into an object that can easily be converted into a Python
+	 * tensor used by the BioImage.i core in Pyhton, borrowing the flat data array from a pool
+	 * @param <T>
+	 * @param javaTensor
+	 * 	tensor object in Java
+	 * @param pool
+	 * 	pool the data array is borrowed from
+	 * @return tensor object ready to be converted to Python
+	 */
+	public static < T extends RealType< T > & NativeType< T > > PythonTensor fromJavaTensor( Tensor< T > javaTensor, 
+																							PrimitiveBufferPool pool) {
+		return JavaToPythonTensor.fromJavaTensor(javaTensor, pool);
+	}
+	
+	/**
+	 * Method that converts a Java tensor from {@link Tensor} into an object that can easily be converted into a Python
+	 * tensor used by the BioImage.i core in Pyhton, narrowing its floating point data as the policy says
+	 * @param <T>
+	 * @param javaTensor
+	 * 	tensor object in Java
+	 * @param pool
+	 * 	pool the data array is borrowed from, can be null
+	 * @param policy
+	 * 	precision of the floating point data while it crosses the bridge
+	 * @return tensor object ready to be converted to Python
+	 */
+	public static < T extends RealType< T > & NativeType< T > > PythonTensor fromJavaTensor( Tensor< T > javaTensor, 
+																		PrimitiveBufferPool pool, TransportPolicy policy) {
+		return JavaToPythonTensor.fromJavaTensor(javaTensor, pool, policy);
+	}
+	
 	public < T extends RealType< T > & NativeType< T > > Tensor<T> toJava() {
-		return (Tensor<T>) Tensor.build(name, axesOrder, 
-				(RandomAccessibleInterval<T>) PythonToJavaTensor.build(data));
+		return toJava(null);
+	}
+	
+	/**
+	 * Convert the tensor into a Java {@link Tensor}. Tensors whose data is in Fortran order, such as the ones
+	 * produced by {@link JavaToPythonTensor}, are rebuilt with a block copy by
+	 * {@link PythonToJavaTensor#buildFromFortranOrder(NDArray, int[], PrimitiveBufferPool)}.
+	 * Tensors narrowed to half precision are given back as float32, the narrowest floating point type of Java.
+	 * @param <T>
+	 * 	data type of the tensor
+	 * @param outputPool
+	 * 	pool the storage array of the Java image is borrowed from, if null no pool is used
+	 * @return the Java tensor
+	 */
+	public < T extends RealType< T > & NativeType< T > > Tensor<T> toJava(PrimitiveBufferPool outputPool) {
+		RandomAccessibleInterval<?> img;
+		if (isPackedBits()) {
+			@SuppressWarnings("unchecked")
+			NDArray<byte[]> packed = (NDArray<byte[]>) data;
+			img = PythonToJavaTensor.buildFromPackedBits(packed, shape, outputPool);
+		} else {
+			// Java has no half precision type, float16 data is widened at least to float32
+			String dtype = widenedDataType == null && isFloat16() ? "float32" : widenedDataType;
+			// the dimensions of data in Fortran order are the shape reversed, read as C order they would transpose the image
+			img = fortranOrder ? PythonToJavaTensor.buildFromFortranOrder(data, shape, outputPool, dtype) 
+					: PythonToJavaTensor.build(data, outputPool);
+		}
+		@SuppressWarnings("unchecked")
+		RandomAccessibleInterval<T> typedImg = (RandomAccessibleInterval<T>) img;
+		return Tensor.build(name, axesOrder, typedImg);
+	}
+	
+	/**
+	 * Give the data array back to the pool it was borrowed from. After calling this method
+	 * the tensor does not hold any data anymore. Tensors whose data was not borrowed from a pool
+	 * just drop their reference to the data.
+	 */
+	public void release() {
+		if (pool != null && data != null)
+			pool.recycle(data);
+		data = null;
+		pool = null;
 	}
 	
 	/**
@@ -122,12 +384,13 @@ public class PythonTensor {
 	 */
 	public String createCommandToBuildPythonBioiamgeIoTensor() {
 		// First check if xr is imported and if it is not import it
-		String command = "if \"xarray\" not in sys.modules:" + System.lineSeparator();
+		String command = "import sys" + System.lineSeparator();
+		command += "if \"xarray\" not in sys.modules:" + System.lineSeparator();
 		command += "\timport xarray as xr" + System.lineSeparator();
 		command += "if \"numpy\" not in sys.modules:" + System.lineSeparator();
 		command += "\timport numpy as np" + System.lineSeparator();
 		command += this.getTensorName() + " = xr.DataArray(" + this.getNpArrayVarName()
-				+ ", dims=(";
+				+ (fortranOrder ? ".T" : "") + ", dims=(";
 		for (String ax : this.getAxesOrder().split(""))
 			command += "\"" + ax + "\",";
 		command += "))";
@@ -1,16 +1,22 @@
 package org.bioimageanalysis.icy.deeplearning.python.tensor;
 
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.stream.LongStream;
 
-import org.bioimageanalysis.icy.deeplearning.tensor.Tensor;
 import org.bioimageanalysis.icy.deeplearning.utils.IndexingUtils;
 
 import jep.NDArray;
 import net.imglib2.Cursor;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.LongArray;
 import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.ByteType;
 import net.imglib2.type.numeric.integer.IntType;
@@ -27,17 +33,44 @@ import net.imglib2.type.numeric.real.FloatType;
 
 public class PythonToJavaTensor {
 	
+	/**
+	 * Build an {@link Img} from the data of a Python tensor received as a {@link NDArray}
+	 * @param <T>
+	 * 	data type of the image
+	 * @param data
+	 * 	data of the Python tensor
+	 * @return an image containing the same data as the Python tensor
+	 */
 	public static < T extends RealType< T > & NativeType< T > > Img<T> build(NDArray<?> data) {
-        if (data.getData() instanceof int[] || data.getData() instanceof byte[]) {
-            return (Img<T>) buildFromTensorInt((NDArray<int[]>) data);
+		return build(data, null);
+	}
+
+	/**
+	 * Build an {@link Img} from the data of a Python tensor received as a {@link NDArray}.
+	 * If a pool is provided the image is an {@link ArrayImg} whose storage array is borrowed from the pool.
+	 * The array can be given back with {@link PrimitiveBufferPool#recycle(net.imglib2.RandomAccessibleInterval)}
+	 * once the image is not needed anymore.
+	 * @param <T>
+	 * 	data type of the image
+	 * @param data
+	 * 	data of the Python tensor
+	 * @param pool
+	 * 	pool the storage array of the image is borrowed from, if null a {@link net.imglib2.img.cell.CellImg} is created
+	 * @return an image containing the same data as the Python tensor
+	 */
+	public static < T extends RealType< T > & NativeType< T > > Img<T> build(NDArray<?> data, PrimitiveBufferPool pool) {
+        if (data.getData() instanceof int[]) {
+            return (Img<T>) buildFromTensorInt((NDArray<int[]>) data, pool);
 		} else if (data.getData() instanceof float[]) {
-            return (Img<T>) buildFromTensorFloat((NDArray<float[]>) data);
+            return (Img<T>) buildFromTensorFloat((NDArray<float[]>) data, pool);
 		} else if (data.getData() instanceof double[]) {
-            return (Img<T>) buildFromTensorDouble((NDArray<double[]>) data);
+            return (Img<T>) buildFromTensorDouble((NDArray<double[]>) data, pool);
 		} else if (data.getData() instanceof long[]) {
-            return (Img<T>) buildFromTensorLong((NDArray<long[]>) data);
+            return (Img<T>) buildFromTensorLong((NDArray<long[]>) data, pool);
 		} else if (data.getData() instanceof byte[]) {
-            return (Img<T>) buildFromTensorByte((NDArray<byte[]>) data);
+            return (Img<T>) buildFromTensorByte((NDArray<byte[]>) data, pool);
+		} else if (data.getData() instanceof boolean[]) {
+            return (Img<T>) buildFromTensorBoolean((NDArray<boolean[]>) data, pool);
 		} else {
 			throw new IllegalArgumentException("Invalid data type of Python tensor:" + data.getData().getClass());
 		}
@@ -48,20 +81,28 @@ public class PythonToJavaTensor {
      * 
      * @param tensor
      *        The tensor data is read from.
+     * @param pool
+     *        Pool the storage array of the image is borrowed from, can be null.
      * @return The INDArray built from the tensor of type {@link DataType#UBYTE}.
      */
-    private static Img<ByteType> buildFromTensorByte(NDArray<byte[]> tensor)
+    private static Img<ByteType> buildFromTensorByte(NDArray<byte[]> tensor, PrimitiveBufferPool pool)
     {
     	int[] tensorIntShape = tensor.getDimensions();
     	long[] tensorShape = LongStream.range(0, tensor.getDimensions().length)
     			.map(i -> tensorIntShape[(int) i]).toArray();
-    	final ImgFactory< ByteType > factory = new CellImgFactory<>( new ByteType(), 5 );
-        final Img< ByteType > outputImg = (Img<ByteType>) factory.create(tensorShape);
+    	final Img< ByteType > outputImg;
+    	if (pool == null) {
+	    	final ImgFactory< ByteType > factory = new CellImgFactory<>( new ByteType(), 5 );
+	        outputImg = (Img<ByteType>) factory.create(tensorShape);
+    	} else {
+    		outputImg = ArrayImgs.bytes(pool.borrow(byte[].class, tensor.getData().length), tensorShape);
+    	}
     	Cursor<ByteType> tensorCursor= outputImg.cursor();
 		byte[] flatArr = tensor.getData();
+		long[] cursorPos = new long[tensorShape.length];
 		while (tensorCursor.hasNext()) {
 			tensorCursor.fwd();
-			long[] cursorPos = tensorCursor.positionAsLongArray();
+			tensorCursor.localize(cursorPos);
         	int flatPos = IndexingUtils.multidimensionalIntoFlatIndex(cursorPos, tensorShape);
         	byte val = flatArr[flatPos];
         	tensorCursor.get().set(val);
@@ -74,20 +115,28 @@ public class PythonToJavaTensor {
      * 
      * @param tensor
      *        The tensor data is read from.
+     * @param pool
+     *        Pool the storage array of the image is borrowed from, can be null.
      * @return The INDArray built from the tensor of type {@link DataType#INT}.
      */
-    private static Img<IntType> buildFromTensorInt(NDArray<int[]> tensor)
+    private static Img<IntType> buildFromTensorInt(NDArray<int[]> tensor, PrimitiveBufferPool pool)
     {
     	int[] tensorIntShape = tensor.getDimensions();
     	long[] tensorShape = LongStream.range(0, tensor.getDimensions().length)
     			.map(i -> tensorIntShape[(int) i]).toArray();
-    	final ImgFactory< IntType > factory = new CellImgFactory<>( new IntType(), 5 );
-        final Img< IntType > outputImg = (Img<IntType>) factory.create(tensorShape);
+    	final Img< IntType > outputImg;
+    	if (pool == null) {
+	    	final ImgFactory< IntType > factory = new CellImgFactory<>( new IntType(), 5 );
+	        outputImg = (Img<IntType>) factory.create(tensorShape);
+    	} else {
+    		outputImg = ArrayImgs.ints(pool.borrow(int[].class, tensor.getData().length), tensorShape);
+    	}
     	Cursor<IntType> tensorCursor= outputImg.cursor();
 		int[] flatArr = tensor.getData();
+		long[] cursorPos = new long[tensorShape.length];
 		while (tensorCursor.hasNext()) {
 			tensorCursor.fwd();
-			long[] cursorPos = tensorCursor.positionAsLongArray();
+			tensorCursor.localize(cursorPos);
         	int flatPos = IndexingUtils.multidimensionalIntoFlatIndex(cursorPos, tensorShape);
         	int val = flatArr[flatPos];
         	tensorCursor.get().set(val);
@@ -96,24 +145,32 @@ public class PythonToJavaTensor {
     }
 
     /**
-     * Builds a {@link Img} from a unsigned float-typed {@link Tensor}.
+     * Builds a {@link Img} from a unsigned float-typed {@link NDArray}.
      * 
      * @param tensor
      *        The tensor data is read from.
+     * @param pool
+     *        Pool the storage array of the image is borrowed from, can be null.
      * @return The INDArray built from the tensor of type {@link DataType#FLOAT}.
      */
-    private static Img<FloatType> buildFromTensorFloat(NDArray<float[]> tensor)
+    private static Img<FloatType> buildFromTensorFloat(NDArray<float[]> tensor, PrimitiveBufferPool pool)
     {
     	int[] tensorIntShape = tensor.getDimensions();
     	long[] tensorShape = LongStream.range(0, tensor.getDimensions().length)
     			.map(i -> tensorIntShape[(int) i]).toArray();
-    	final ImgFactory< FloatType > factory = new CellImgFactory<>( new FloatType(), 5 );
-        final Img< FloatType > outputImg = (Img<FloatType>) factory.create(tensorShape);
+    	final Img< FloatType > outputImg;
+    	if (pool == null) {
+	    	final ImgFactory< FloatType > factory = new CellImgFactory<>( new FloatType(), 5 );
+	        outputImg = (Img<FloatType>) factory.create(tensorShape);
+    	} else {
+    		outputImg = ArrayImgs.floats(pool.borrow(float[].class, tensor.getData().length), tensorShape);
+    	}
     	Cursor<FloatType> tensorCursor= outputImg.cursor();
 		float[] flatArr = tensor.getData();
+		long[] cursorPos = new long[tensorShape.length];
 		while (tensorCursor.hasNext()) {
 			tensorCursor.fwd();
-			long[] cursorPos = tensorCursor.positionAsLongArray();
+			tensorCursor.localize(cursorPos);
         	int flatPos = IndexingUtils.multidimensionalIntoFlatIndex(cursorPos, tensorShape);
         	float val = flatArr[flatPos];
         	tensorCursor.get().set(val);
@@ -126,20 +183,28 @@ public class PythonToJavaTensor {
      * 
      * @param tensor
      *        The tensor data is read from.
+     * @param pool
+     *        Pool the storage array of the image is borrowed from, can be null.
      * @return The INDArray built from the tensor of type {@link DataType#DOUBLE}.
      */
-    private static Img<DoubleType> buildFromTensorDouble(NDArray<double[]> tensor)
+    private static Img<DoubleType> buildFromTensorDouble(NDArray<double[]> tensor, PrimitiveBufferPool pool)
     {
     	int[] tensorIntShape = tensor.getDimensions();
     	long[] tensorShape = LongStream.range(0, tensor.getDimensions().length)
     			.map(i -> tensorIntShape[(int) i]).toArray();
-    	final ImgFactory< DoubleType > factory = new CellImgFactory<>( new DoubleType(), 5 );
-        final Img< DoubleType > outputImg = (Img<DoubleType>) factory.create(tensorShape);
+    	final Img< DoubleType > outputImg;
+    	if (pool == null) {
+	    	final ImgFactory< DoubleType > factory = new CellImgFactory<>( new DoubleType(), 5 );
+	        outputImg = (Img<DoubleType>) factory.create(tensorShape);
+    	} else {
+    		outputImg = ArrayImgs.doubles(pool.borrow(double[].class, tensor.getData().length), tensorShape);
+    	}
     	Cursor<DoubleType> tensorCursor= outputImg.cursor();
 		double[] flatArr = tensor.getData();
+		long[] cursorPos = new long[tensorShape.length];
 		while (tensorCursor.hasNext()) {
 			tensorCursor.fwd();
-			long[] cursorPos = tensorCursor.positionAsLongArray();
+			tensorCursor.localize(cursorPos);
         	int flatPos = IndexingUtils.multidimensionalIntoFlatIndex(cursorPos, tensorShape);
         	double val = flatArr[flatPos];
         	tensorCursor.get().set(val);
@@ -152,24 +217,182 @@ public class PythonToJavaTensor {
      * 
      * @param tensor
      *        The tensor data is read from.
+     * @param pool
+     *        Pool the storage array of the image is borrowed from, can be null.
      * @return The INDArray built from the tensor of type {@link DataType#DOUBLE}.
      */
-    private static Img<LongType> buildFromTensorLong(NDArray<long[]> tensor)
+    private static Img<LongType> buildFromTensorLong(NDArray<long[]> tensor, PrimitiveBufferPool pool)
     {
     	int[] tensorIntShape = tensor.getDimensions();
     	long[] tensorShape = LongStream.range(0, tensor.getDimensions().length)
     			.map(i -> tensorIntShape[(int) i]).toArray();
-    	final ImgFactory< LongType > factory = new CellImgFactory<>( new LongType(), 5 );
-        final Img< LongType > outputImg = (Img<LongType>) factory.create(tensorShape);
+    	final Img< LongType > outputImg;
+    	if (pool == null) {
+	    	final ImgFactory< LongType > factory = new CellImgFactory<>( new LongType(), 5 );
+	        outputImg = (Img<LongType>) factory.create(tensorShape);
+    	} else {
+    		outputImg = ArrayImgs.longs(pool.borrow(long[].class, tensor.getData().length), tensorShape);
+    	}
     	Cursor<LongType> tensorCursor= outputImg.cursor();
 		long[] flatArr = tensor.getData();
+		long[] cursorPos = new long[tensorShape.length];
 		while (tensorCursor.hasNext()) {
 			tensorCursor.fwd();
-			long[] cursorPos = tensorCursor.positionAsLongArray();
+			tensorCursor.localize(cursorPos);
         	int flatPos = IndexingUtils.multidimensionalIntoFlatIndex(cursorPos, tensorShape);
         	long val = flatArr[flatPos];
         	tensorCursor.get().set(val);
 		}
 	 	return outputImg;
     }
+
+    /**
+     * Builds an {@link ArrayImg} from a {@link NDArray} whose flat data is in Fortran order, the first
+     * axis varying the fastest, as produced by {@link JavaToPythonTensor} and by the Python helpers. That
+     * is the order of the storage array of an {@link ArrayImg}, so the data is copied with a single block copy.
+     * 
+     * @param data
+     *        The data of the tensor, its dimensions are the shape of the tensor reversed.
+     * @param shape
+     *        The shape of the tensor.
+     * @param pool
+     *        Pool the storage array of the image is borrowed from, can be null.
+     * @return The image built from the tensor.
+     */
+    public static ArrayImg<?, ?> buildFromFortranOrder(NDArray<?> data, int[] shape, PrimitiveBufferPool pool)
+    {
+    	return buildFromFortranOrder(data, shape, pool, null);
+    }
+
+    /**
+     * Builds an {@link ArrayImg} from a {@link NDArray} whose flat data is in Fortran order and was narrowed
+     * by a {@link TransportPolicy} to cross the bridge. The data is widened while it is copied into the
+     * storage array of the image, so widening does not add any copy.
+     * 
+     * @param data
+     *        The data of the tensor, its dimensions are the shape of the tensor reversed. Short arrays
+     *        hold the bits of half precision values, as sent by Numpy for float16 data.
+     * @param shape
+     *        The shape of the tensor.
+     * @param pool
+     *        Pool the storage array of the image is borrowed from, can be null.
+     * @param widenedDtype
+     *        The Numpy data type of the image, "float32" or "float64". Data already as wide is copied as
+     *        it is. If null the data is not widened.
+     * @return The image built from the tensor.
+     */
+    public static ArrayImg<?, ?> buildFromFortranOrder(NDArray<?> data, int[] shape, PrimitiveBufferPool pool, 
+    																						String widenedDtype)
+    {
+    	long[] tensorShape = LongStream.range(0, shape.length).map(i -> shape[(int) i]).toArray();
+    	Object flatArr = data.getData();
+    	int length = Array.getLength(flatArr);
+    	if (widenedDtype != null && !"float32".equals(widenedDtype) && !"float64".equals(widenedDtype))
+    		throw new IllegalArgumentException("Narrowed tensors can only be widened to float32 or float64, not " 
+    				+ widenedDtype + ".");
+    	if (widenedDtype != null && flatArr instanceof short[]) {
+    		short[] halves = (short[]) flatArr;
+    		if ("float64".equals(widenedDtype)) {
+    			double[] doubles = pool == null ? new double[length] : pool.borrow(double[].class, length);
+    			for (int i = 0; i < length; i ++)
+    				doubles[i] = TransportPrecision.fromFloat16Bits(halves[i]);
+    			return ArrayImgs.doubles(doubles, tensorShape);
+    		}
+    		float[] floats = pool == null ? new float[length] : pool.borrow(float[].class, length);
+    		for (int i = 0; i < length; i ++)
+    			floats[i] = TransportPrecision.fromFloat16Bits(halves[i]);
+    		return ArrayImgs.floats(floats, tensorShape);
+    	} else if ("float64".equals(widenedDtype) && flatArr instanceof float[]) {
+    		float[] floats = (float[]) flatArr;
+    		double[] doubles = pool == null ? new double[length] : pool.borrow(double[].class, length);
+    		for (int i = 0; i < length; i ++)
+    			doubles[i] = floats[i];
+    		return ArrayImgs.doubles(doubles, tensorShape);
+    	}
+    	Object copy = pool == null ? Array.newInstance(flatArr.getClass().getComponentType(), length)
+    			: pool.borrow(flatArr.getClass(), length);
+    	System.arraycopy(flatArr, 0, copy, 0, length);
+        if (copy instanceof int[]) {
+            return ArrayImgs.ints((int[]) copy, tensorShape);
+		} else if (copy instanceof float[]) {
+            return ArrayImgs.floats((float[]) copy, tensorShape);
+		} else if (copy instanceof double[]) {
+            return ArrayImgs.doubles((double[]) copy, tensorShape);
+		} else if (copy instanceof long[]) {
+            return ArrayImgs.longs((long[]) copy, tensorShape);
+		} else if (copy instanceof byte[]) {
+            return ArrayImgs.bytes((byte[]) copy, tensorShape);
+		} else {
+			throw new IllegalArgumentException("Invalid data type of Python tensor:" + flatArr.getClass());
+		}
+    }
+
+    /**
+     * Builds a {@link Img} from a boolean-typed {@link NDArray}.
+     * 
+     * @param tensor
+     *        The tensor data is read from.
+     * @param pool
+     *        Pool the storage array of the image is borrowed from, can be null.
+     * @return The image of {@link BitType} built from the tensor.
+     */
+    private static Img<BitType> buildFromTensorBoolean(NDArray<boolean[]> tensor, PrimitiveBufferPool pool)
+    {
+    	int[] tensorIntShape = tensor.getDimensions();
+    	long[] tensorShape = LongStream.range(0, tensor.getDimensions().length)
+    			.map(i -> tensorIntShape[(int) i]).toArray();
+    	final Img< BitType > outputImg;
+    	if (pool == null) {
+	    	final ImgFactory< BitType > factory = new CellImgFactory<>( new BitType(), 5 );
+	        outputImg = (Img<BitType>) factory.create(tensorShape);
+    	} else {
+    		int nLongs = (tensor.getData().length + Long.SIZE - 1) / Long.SIZE;
+    		outputImg = ArrayImgs.bits(new LongArray(pool.borrow(long[].class, nLongs)), tensorShape);
+    	}
+    	Cursor<BitType> tensorCursor= outputImg.cursor();
+		boolean[] flatArr = tensor.getData();
+		long[] cursorPos = new long[tensorShape.length];
+		while (tensorCursor.hasNext()) {
+			tensorCursor.fwd();
+			tensorCursor.localize(cursorPos);
+        	int flatPos = IndexingUtils.multidimensionalIntoFlatIndex(cursorPos, tensorShape);
+        	tensorCursor.get().set(flatArr[flatPos]);
+		}
+	 	return outputImg;
+    }
+
+    /**
+     * Builds an {@link ArrayImg} of {@link BitType} from the pixels of a boolean tensor packed
+     * 8 per byte in Fortran order, least significant bit first. That is the layout of the longs
+     * that store a {@link BitType} image, so the bytes are copied as they are without unpacking them.
+     * 
+     * @param packed
+     *        The packed pixels of the tensor.
+     * @param shape
+     *        The shape of the tensor.
+     * @param pool
+     *        Pool the storage array of the image is borrowed from, can be null.
+     * @return The image of {@link BitType} built from the tensor.
+     */
+    public static ArrayImg<BitType, LongArray> buildFromPackedBits(NDArray<byte[]> packed, int[] shape, PrimitiveBufferPool pool)
+    {
+    	long[] tensorShape = LongStream.range(0, shape.length).map(i -> shape[(int) i]).toArray();
+    	long flatSize = 1;
+		for (long dd : tensorShape) { flatSize *= dd;}
+		byte[] bytes = packed.getData();
+		if (bytes.length * 8L < flatSize)
+			throw new IllegalArgumentException("The packed data has " + bytes.length + " bytes, not enough for a "
+					+ "boolean tensor of " + flatSize + " pixels.");
+    	int nLongs = (int) ((flatSize + Long.SIZE - 1) / Long.SIZE);
+    	long[] longs = pool == null ? new long[nLongs] : pool.borrow(long[].class, nLongs);
+    	int fullLongs = Math.min(nLongs, bytes.length / Long.BYTES);
+    	ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(longs, 0, fullLongs);
+    	if (fullLongs < nLongs) {
+    		long last = 0;
+    		for (int i = fullLongs * Long.BYTES; i < bytes.length; i ++)
+    			last |= (bytes[i] & 0xFFL) << (8 * (i - fullLongs * Long.BYTES));
+    		longs[nLongs - 1] = last;
+    	}
+    	return ArrayImgs.bits(new LongArray(longs), tensorShape);
+    }
 }
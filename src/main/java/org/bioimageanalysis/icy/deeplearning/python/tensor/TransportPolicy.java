@@ -0,0 +1,105 @@
+package org.bioimageanalysis.icy.deeplearning.python.tensor;
+
+/**
+ * Policy that decides the precision of the floating point tensors while they cross the bridge between
+ * Java and Python. Narrowing float64 tensors to float32 halves the bytes copied and the memory of the
+ * copies, float16 quarters them. The error introduced is measured on every transfer, and a transfer
+ * whose maximum absolute error exceeds the bound of the policy is repeated at full precision.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class TransportPolicy {
+	/**
+	 * Policy that sends every tensor with its own data type
+	 */
+	public static final TransportPolicy FULL_PRECISION = new TransportPolicy(TransportPrecision.FULL, 0, true);
+	/**
+	 * Precision of the floating point tensors while they cross the bridge
+	 */
+	private final TransportPrecision precision;
+	/**
+	 * Maximum absolute error accepted for a single pixel
+	 */
+	private final double maxAbsoluteError;
+	/**
+	 * Whether the results narrowed in Python are given back with their original data type
+	 */
+	private final boolean widenResults;
+
+	private TransportPolicy(TransportPrecision precision, double maxAbsoluteError, boolean widenResults) {
+		if (precision == null)
+			throw new IllegalArgumentException("The transport precision cannot be null.");
+		if (Double.isNaN(maxAbsoluteError) || maxAbsoluteError < 0)
+			throw new IllegalArgumentException("The maximum absolute error has to be a positive number, not "
+					+ maxAbsoluteError + ".");
+		this.precision = precision;
+		this.maxAbsoluteError = maxAbsoluteError;
+		this.widenResults = widenResults;
+	}
+
+	/**
+	 * Create a policy that narrows the floating point tensors to the given precision
+	 * @param precision
+	 * 	precision of the floating point tensors while they cross the bridge
+	 * @param maxAbsoluteError
+	 * 	maximum absolute error accepted for any pixel, {@link Double#POSITIVE_INFINITY} to accept any finite error.
+	 * 	Values too large for the precision always make the tensor cross at full precision
+	 * @param widenResults
+	 * 	whether the results narrowed in Python are given back with their original data type. Otherwise
+	 * 	float32 and float16 results are given back as {@link net.imglib2.type.numeric.real.FloatType} images
+	 * @return the policy
+	 */
+	public static TransportPolicy build(TransportPrecision precision, double maxAbsoluteError, boolean widenResults) {
+		return new TransportPolicy(precision, maxAbsoluteError, widenResults);
+	}
+
+	/**
+	 *
+	 * @return precision of the floating point tensors while they cross the bridge
+	 */
+	public TransportPrecision getPrecision() {
+		return precision;
+	}
+
+	/**
+	 *
+	 * @return maximum absolute error accepted for a single pixel
+	 */
+	public double getMaxAbsoluteError() {
+		return maxAbsoluteError;
+	}
+
+	/**
+	 *
+	 * @return whether the results narrowed in Python are given back with their original data type
+	 */
+	public boolean isWidenResults() {
+		return widenResults;
+	}
+
+	/**
+	 *
+	 * @return whether the policy narrows any tensor
+	 */
+	public boolean isFullPrecision() {
+		return precision == TransportPrecision.FULL;
+	}
+
+	/**
+	 * Check whether a narrowed transfer can be used
+	 * @param maxError
+	 * 	maximum absolute error of the pixels of the transfer
+	 * @return true if the error is within the bound of the policy, false if the tensor has to cross at full
+	 * 	precision. Infinite errors, from values too large for the precision, are never accepted
+	 */
+	public boolean accepts(double maxError) {
+		return !Double.isNaN(maxError) && !Double.isInfinite(maxError) && maxError <= maxAbsoluteError;
+	}
+
+	@Override
+	public String toString() {
+		return isFullPrecision() ? "full precision" : precision.getPythonName() + " (max error " + maxAbsoluteError
+				+ (widenResults ? ", widened results)" : ")");
+	}
+}
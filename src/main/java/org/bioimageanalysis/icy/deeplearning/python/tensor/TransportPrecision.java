@@ -0,0 +1,110 @@
+package org.bioimageanalysis.icy.deeplearning.python.tensor;
+
+/**
+ * Precision of the floating point tensors while they cross the bridge between Java and Python.
+ * Narrowing happens during the copy made by the converters, so it does not add any pass over the data.
+ * 
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public enum TransportPrecision {
+	/**
+	 * Tensors cross the bridge with their own data type
+	 */
+	FULL("full", 8),
+	/**
+	 * float64 tensors cross the bridge as float32
+	 */
+	FLOAT32("float32", 4),
+	/**
+	 * float32 and float64 tensors cross the bridge as float16, as raw 16 bit values that Numpy views as float16
+	 */
+	FLOAT16("float16", 2);
+
+	/**
+	 * Name of the precision in the Python helpers module
+	 */
+	private final String pythonName;
+	/**
+	 * Maximum number of bytes per element of the floating point tensors
+	 */
+	private final int bytesPerElement;
+
+	private TransportPrecision(String pythonName, int bytesPerElement) {
+		this.pythonName = pythonName;
+		this.bytesPerElement = bytesPerElement;
+	}
+
+	/**
+	 * 
+	 * @return name of the precision in the Python helpers module
+	 */
+	public String getPythonName() {
+		return pythonName;
+	}
+
+	/**
+	 * 
+	 * @return maximum number of bytes per element of the floating point tensors that cross the bridge
+	 */
+	public int getBytesPerElement() {
+		return bytesPerElement;
+	}
+
+	/**
+	 * Round a float to the nearest IEEE 754 half precision value, ties to even. Values too large for
+	 * a half become infinite.
+	 * @param value
+	 * 	value to narrow
+	 * @return the bits of the half precision value
+	 */
+	public static short toFloat16Bits(float value) {
+		int bits = Float.floatToIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int exponent = (bits >>> 23) & 0xFF;
+		int mantissa = bits & 0x7FFFFF;
+		if (exponent == 0xFF)
+			return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+		int halfExponent = exponent - 127 + 15;
+		if (halfExponent >= 0x1F)
+			return (short) (sign | 0x7C00);
+		int half;
+		int shift;
+		if (halfExponent <= 0) {
+			// subnormal half, the implicit bit of the float becomes explicit
+			if (halfExponent < -10)
+				return (short) sign;
+			mantissa |= 0x800000;
+			shift = 14 - halfExponent;
+			half = mantissa >> shift;
+		} else {
+			shift = 13;
+			half = (halfExponent << 10) | (mantissa >> shift);
+		}
+		int remainder = mantissa & ((1 << shift) - 1);
+		int midpoint = 1 << (shift - 1);
+		// a carry out of the mantissa correctly increments the exponent
+		if (remainder > midpoint || (remainder == midpoint && (half & 1) != 0))
+			half ++;
+		return (short) (sign | half);
+	}
+
+	/**
+	 * Widen an IEEE 754 half precision value to a float, exactly
+	 * @param bits
+	 * 	bits of the half precision value
+	 * @return the value as a float
+	 */
+	public static float fromFloat16Bits(short bits) {
+		int sign = (bits & 0x8000) << 16;
+		int exponent = (bits >>> 10) & 0x1F;
+		int mantissa = bits & 0x3FF;
+		if (exponent == 0) {
+			float value = mantissa * 0x1p-24f;
+			return sign == 0 ? value : -value;
+		} else if (exponent == 0x1F) {
+			return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+		}
+		return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+	}
+}
@@ -0,0 +1,97 @@
+package org.bioimageanalysis.icy.deeplearning.python.tensor;
+
+import java.lang.reflect.Array;
+
+import jep.NDArray;
+
+/**
+ * Precision and error of a tensor that crossed the bridge between Java and Python under a
+ * {@link TransportPolicy}
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class TransportReport {
+	/**
+	 * Precision the data crossed the bridge with
+	 */
+	private final TransportPrecision precision;
+	/**
+	 * Maximum absolute error of the pixels of the narrowed data
+	 */
+	private final double maxAbsoluteError;
+	/**
+	 * Whether the narrowed data exceeded the error bound and the tensor crossed at full precision
+	 */
+	private final boolean fellBack;
+	/**
+	 * Bytes of the data that crossed the bridge
+	 */
+	private final long bytes;
+
+	private TransportReport(TransportPrecision precision, double maxAbsoluteError, boolean fellBack, long bytes) {
+		this.precision = precision;
+		this.maxAbsoluteError = maxAbsoluteError;
+		this.fellBack = fellBack;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Create the report of a transfer
+	 * @param precision
+	 * 	precision the data crossed the bridge with
+	 * @param maxAbsoluteError
+	 * 	maximum absolute error of the pixels of the narrowed data
+	 * @param fellBack
+	 * 	whether the narrowed data exceeded the error bound and the tensor crossed at full precision
+	 * @param data
+	 * 	data that crossed the bridge
+	 * @return the report
+	 */
+	public static TransportReport build(TransportPrecision precision, double maxAbsoluteError, boolean fellBack, 
+			NDArray<?> data) {
+		Object flatArr = data.getData();
+		long elementBytes = flatArr instanceof double[] || flatArr instanceof long[] ? 8
+				: flatArr instanceof float[] || flatArr instanceof int[] ? 4 : flatArr instanceof short[] ? 2 : 1;
+		return new TransportReport(precision, maxAbsoluteError, fellBack, elementBytes * Array.getLength(flatArr));
+	}
+
+	/**
+	 *
+	 * @return precision the data crossed the bridge with, {@link TransportPrecision#FULL} if it was not narrowed
+	 */
+	public TransportPrecision getPrecision() {
+		return precision;
+	}
+
+	/**
+	 *
+	 * @return maximum absolute error of the pixels of the narrowed data, even if the tensor crossed at full
+	 * 	precision because it was too large. Non finite pixels are not counted
+	 */
+	public double getMaxAbsoluteError() {
+		return maxAbsoluteError;
+	}
+
+	/**
+	 *
+	 * @return whether the narrowed data exceeded the error bound and the tensor crossed at full precision
+	 */
+	public boolean isFellBack() {
+		return fellBack;
+	}
+
+	/**
+	 *
+	 * @return bytes of the data that crossed the bridge
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	@Override
+	public String toString() {
+		return precision.getPythonName() + ", " + bytes + " bytes, max error " + maxAbsoluteError
+				+ (fellBack ? ", exceeded the bound and crossed at full precision" : "");
+	}
+}
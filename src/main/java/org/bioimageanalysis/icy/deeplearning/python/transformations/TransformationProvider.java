@@ -0,0 +1,21 @@
+package org.bioimageanalysis.icy.deeplearning.python.transformations;
+
+import java.util.List;
+
+/**
+ * Service interface used to contribute transformations to the {@link TransformationRegistry}.
+ * Implementations are discovered with {@link java.util.ServiceLoader}, so a jar can add its
+ * transformations by listing its provider in
+ * 'META-INF/services/org.bioimageanalysis.icy.deeplearning.python.transformations.TransformationProvider'.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public interface TransformationProvider {
+
+	/**
+	 *
+	 * @return the transformations contributed by this provider
+	 */
+	public List<TransformationSpec> getTransformations();
+}
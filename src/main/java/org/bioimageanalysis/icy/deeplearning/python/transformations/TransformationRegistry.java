@@ -0,0 +1,150 @@
+package org.bioimageanalysis.icy.deeplearning.python.transformations;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the transformations that can be applied in Python. It contains the BioImage.io
+ * transformations, the ones contributed by every {@link TransformationProvider} found in the classpath
+ * and the ones registered with {@link #register(TransformationSpec)}.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class TransformationRegistry {
+	/**
+	 * Module containing the BioImage.io transformations
+	 */
+	private static final String BIOIMAGEIO_PROCESSING_MODULE = "bioimageio.core.prediction_pipeline._processing";
+	/**
+	 * Registry used by default
+	 */
+	private static TransformationRegistry DEFAULT_REGISTRY;
+	/**
+	 * Registered transformations, by name
+	 */
+	private final Map<String, TransformationSpec> transformations = new ConcurrentHashMap<String, TransformationSpec>();
+
+	private TransformationRegistry() {
+	}
+
+	/**
+	 * Registry shared by every {@link org.bioimageanalysis.icy.deeplearning.python.BioImageIoPython} instance.
+	 * It is created the first time it is requested.
+	 * @return the default registry
+	 */
+	public static synchronized TransformationRegistry getDefault() {
+		if (DEFAULT_REGISTRY == null) {
+			DEFAULT_REGISTRY = new TransformationRegistry();
+			DEFAULT_REGISTRY.registerBioImageIoTransformations();
+			for (TransformationProvider provider : ServiceLoader.load(TransformationProvider.class)) {
+				for (TransformationSpec spec : provider.getTransformations())
+					DEFAULT_REGISTRY.register(spec);
+			}
+		}
+		return DEFAULT_REGISTRY;
+	}
+
+	private void registerBioImageIoTransformations() {
+		register(TransformationSpec.fromModule("binarize", BIOIMAGEIO_PROCESSING_MODULE, "Binarize",
+				new String[] {"tensor_name", "threshold", "mode"}, new String[] {"tensor_name", "threshold"})
+				.withExampleKwargs(kwargs("threshold", 0.5)));
+		register(TransformationSpec.fromModule("clip", BIOIMAGEIO_PROCESSING_MODULE, "Clip",
+				new String[] {"tensor_name", "min", "max", "mode"}, new String[] {"tensor_name", "min", "max"})
+				.withExampleKwargs(kwargs("min", 0.0, "max", 1.0)));
+		register(TransformationSpec.fromModule("scale_linear", BIOIMAGEIO_PROCESSING_MODULE, "ScaleLinear",
+				new String[] {"tensor_name", "mode", "gain", "offset", "axes"}, new String[] {"tensor_name", "gain", "offset"})
+				.withExampleKwargs(kwargs("gain", 2.0, "offset", 1.0)));
+		// the mean and standard deviation of the reference tensor are required measures, they are computed on the
+		// sample the transformation is applied to, so the reference tensor has to be part of it
+		register(TransformationSpec.fromModule("scale_mean_variance", BIOIMAGEIO_PROCESSING_MODULE, "ScaleMeanVariance",
+				new String[] {"tensor_name", "mode", "reference_tensor", "axes", "eps"}, 
+				new String[] {"tensor_name", "reference_tensor"}));
+		register(TransformationSpec.fromModule("scale_range", BIOIMAGEIO_PROCESSING_MODULE, "ScaleRange",
+				new String[] {"tensor_name", "mode", "axes", "min_percentile", "max_percentile", "reference_tensor"},
+				new String[] {"tensor_name", "min_percentile", "max_percentile"})
+				.withExampleKwargs(kwargs("min_percentile", 1.0, "max_percentile", 99.0)));
+		register(TransformationSpec.fromModule("sigmoid", BIOIMAGEIO_PROCESSING_MODULE, "Sigmoid",
+				new String[] {"tensor_name", "mode"}, new String[] {"tensor_name"})
+				.withExampleKwargs(kwargs()));
+		register(TransformationSpec.fromModule("zero_mean_unit_variance", BIOIMAGEIO_PROCESSING_MODULE, "ZeroMeanUnitVariance",
+				new String[] {"tensor_name", "mode", "mean", "std", "axes"}, new String[] {"tensor_name"})
+				.withExampleKwargs(kwargs("mode", "per_sample")));
+	}
+
+	private static Map<String, Object> kwargs(Object... keysAndValues) {
+		Map<String, Object> kwargs = new HashMap<String, Object>();
+		for (int i = 0; i < keysAndValues.length; i += 2)
+			kwargs.put((String) keysAndValues[i], keysAndValues[i + 1]);
+		return kwargs;
+	}
+
+	/**
+	 * Add a transformation to the registry, replacing any transformation with the same name
+	 * @param spec
+	 * 	description of the transformation
+	 */
+	public void register(TransformationSpec spec) {
+		transformations.put(spec.getName(), spec);
+	}
+
+	/**
+	 * Remove a transformation from the registry
+	 * @param name
+	 * 	name of the transformation
+	 * @return the removed transformation or null if there was none with that name
+	 */
+	public TransformationSpec unregister(String name) {
+		return transformations.remove(name);
+	}
+
+	/**
+	 * Get the description of a transformation
+	 * @param name
+	 * 	name of the transformation
+	 * @return the description of the transformation
+	 * @throws IllegalArgumentException if no transformation with that name has been registered
+	 */
+	public TransformationSpec get(String name) {
+		TransformationSpec spec = name == null ? null : transformations.get(name);
+		if (spec == null)
+			throw new IllegalArgumentException("The transformation '" + name + "' is not supported. The available "
+					+ "transformations are: " + transformations.keySet());
+		return spec;
+	}
+
+	/**
+	 *
+	 * @param name
+	 * 	name of the transformation
+	 * @return whether a transformation with that name has been registered
+	 */
+	public boolean contains(String name) {
+		return name != null && transformations.containsKey(name);
+	}
+
+	/**
+	 *
+	 * @return every registered transformation
+	 */
+	public List<TransformationSpec> getAll() {
+		return new ArrayList<TransformationSpec>(transformations.values());
+	}
+
+	/**
+	 *
+	 * @return the registered transformations whose Python class is defined by source code
+	 */
+	public List<TransformationSpec> getCustomTransformations() {
+		List<TransformationSpec> custom = new ArrayList<TransformationSpec>();
+		for (TransformationSpec spec : transformations.values()) {
+			if (spec.isCustom())
+				custom.add(spec);
+		}
+		return custom;
+	}
+}
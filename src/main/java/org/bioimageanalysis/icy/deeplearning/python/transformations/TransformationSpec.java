@@ -0,0 +1,239 @@
+package org.bioimageanalysis.icy.deeplearning.python.transformations;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Description of a transformation that can be applied to a tensor in Python: the arguments it accepts,
+ * the ones that are compulsory and the Python class that implements it.
+ *
+ * Built-in transformations are classes of the BioImage.io core that are imported from their module.
+ * Custom transformations provide the Python source that defines their class. The source is executed
+ * once per interpreter, when {@link org.bioimageanalysis.icy.deeplearning.python.BioImageIoPython}
+ * is activated or the first time the transformation is used, in a Python namespace of its own identified
+ * by the hash of the source ({@link #getSourceHash()}), so classes with the same name defined by different
+ * sources do not replace each other. The class has to follow the interface
+ * of the BioImage.io processing classes: it is instantiated with the keyword arguments of the
+ * transformation and it defines the methods 'get_required_measures()', 'set_computed_measures(computed)'
+ * and 'apply(tensor)'. For example, a fused normalization and clipping could be defined as:
+ * <pre>
+ * from bioimageio.core.prediction_pipeline._processing import Processing
+ * from dataclasses import dataclass
+ * import numpy as np
+ *
+ * &#64;dataclass
+ * class NormalizeClip(Processing):
+ *     mean: float = 0.
+ *     std: float = 1.
+ *     min: float = -3.
+ *     max: float = 3.
+ *
+ *     def apply(self, tensor):
+ *         return np.clip((tensor - self.mean) / self.std, self.min, self.max)
+ * </pre>
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class TransformationSpec {
+	/**
+	 * Name used to refer to the transformation, for example "scale_linear"
+	 */
+	private final String name;
+	/**
+	 * Python module that contains the class, null for custom transformations
+	 */
+	private final String pythonModule;
+	/**
+	 * Name of the Python class that implements the transformation
+	 */
+	private final String pythonClassName;
+	/**
+	 * Python source defining the class, null for built-in transformations
+	 */
+	private final String pythonSource;
+	/**
+	 * Hash of {@link #pythonSource}, null for built-in transformations
+	 */
+	private final String sourceHash;
+	/**
+	 * Every argument accepted by the transformation
+	 */
+	private final List<String> allArgs;
+	/**
+	 * Arguments that always have to be provided
+	 */
+	private final List<String> compulsoryArgs;
+	/**
+	 * Valid arguments, without "tensor_name", used to run the transformation once when the interpreter
+	 * is warmed up. Null if the transformation does not provide them
+	 */
+	private Map<String, Object> exampleKwargs;
+
+	private TransformationSpec(String name, String pythonModule, String pythonClassName, String pythonSource,
+			List<String> allArgs, List<String> compulsoryArgs) {
+		if (name == null || pythonClassName == null)
+			throw new IllegalArgumentException("A transformation needs a name and the name of the Python class implementing it.");
+		if (!allArgs.containsAll(compulsoryArgs))
+			throw new IllegalArgumentException("The compulsory arguments " + compulsoryArgs + " of the transformation '"
+					+ name + "' have to be part of its arguments " + allArgs);
+		this.name = name;
+		this.pythonModule = pythonModule;
+		this.pythonClassName = pythonClassName;
+		this.pythonSource = pythonSource;
+		this.sourceHash = pythonSource == null ? null : hashSource(pythonSource);
+		this.allArgs = Collections.unmodifiableList(new ArrayList<String>(allArgs));
+		this.compulsoryArgs = Collections.unmodifiableList(new ArrayList<String>(compulsoryArgs));
+	}
+
+	/**
+	 * Describe a transformation implemented by a class that can be imported from a Python module
+	 * @param name
+	 * 	name used to refer to the transformation
+	 * @param pythonModule
+	 * 	module the class is imported from
+	 * @param pythonClassName
+	 * 	name of the class
+	 * @param allArgs
+	 * 	every argument accepted by the transformation
+	 * @param compulsoryArgs
+	 * 	arguments that have to be provided always
+	 * @return the description of the transformation
+	 */
+	public static TransformationSpec fromModule(String name, String pythonModule, String pythonClassName,
+			String[] allArgs, String[] compulsoryArgs) {
+		return new TransformationSpec(name, pythonModule, pythonClassName, null,
+				Arrays.asList(allArgs), Arrays.asList(compulsoryArgs));
+	}
+
+	/**
+	 * Describe a transformation implemented by a class defined in the given Python source
+	 * @param name
+	 * 	name used to refer to the transformation
+	 * @param pythonClassName
+	 * 	name of the class defined by the source
+	 * @param pythonSource
+	 * 	Python code that defines the class, it can import any module available in the environment
+	 * @param allArgs
+	 * 	every argument accepted by the transformation
+	 * @param compulsoryArgs
+	 * 	arguments that have to be provided always
+	 * @return the description of the transformation
+	 */
+	public static TransformationSpec fromSource(String name, String pythonClassName, String pythonSource,
+			String[] allArgs, String[] compulsoryArgs) {
+		if (pythonSource == null)
+			throw new IllegalArgumentException("The Python source of the transformation '" + name + "' is missing.");
+		return new TransformationSpec(name, null, pythonClassName, pythonSource,
+				Arrays.asList(allArgs), Arrays.asList(compulsoryArgs));
+	}
+
+	/**
+	 * Provide arguments that can be used to run the transformation on a dummy tensor while the interpreter
+	 * is warmed up, see {@link org.bioimageanalysis.icy.deeplearning.python.BioImageIoPython#warmUp()}.
+	 * Without them the Python class of the transformation is only loaded during the warm-up.
+	 * @param exampleKwargs
+	 * 	valid arguments of the transformation, "tensor_name" is added when the transformation runs
+	 * @return a copy of this description with the example arguments
+	 */
+	public TransformationSpec withExampleKwargs(Map<String, Object> exampleKwargs) {
+		TransformationSpec spec = new TransformationSpec(name, pythonModule, pythonClassName, pythonSource,
+				allArgs, compulsoryArgs);
+		spec.exampleKwargs = Collections.unmodifiableMap(new HashMap<String, Object>(exampleKwargs));
+		return spec;
+	}
+
+	/**
+	 *
+	 * @return arguments used to run the transformation when the interpreter is warmed up, null if
+	 * 	the transformation does not provide them
+	 */
+	public Map<String, Object> getExampleKwargs() {
+		return exampleKwargs;
+	}
+
+	/**
+	 *
+	 * @return name used to refer to the transformation
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 *
+	 * @return module the Python class is imported from, null for custom transformations
+	 */
+	public String getPythonModule() {
+		return pythonModule;
+	}
+
+	/**
+	 *
+	 * @return name of the Python class implementing the transformation
+	 */
+	public String getPythonClassName() {
+		return pythonClassName;
+	}
+
+	/**
+	 *
+	 * @return Python source that defines the class, null for transformations imported from a module
+	 */
+	public String getPythonSource() {
+		return pythonSource;
+	}
+
+	/**
+	 *
+	 * @return hexadecimal hash of the Python source, the first 128 bits of its SHA-256, null for transformations
+	 * 	imported from a module. It identifies the namespace where the source is executed in Python
+	 */
+	public String getSourceHash() {
+		return sourceHash;
+	}
+
+	/**
+	 *
+	 * @return whether the class is defined by Python source provided with the transformation
+	 */
+	public boolean isCustom() {
+		return pythonSource != null;
+	}
+
+	/**
+	 *
+	 * @return every argument accepted by the transformation
+	 */
+	public List<String> getAllArgs() {
+		return allArgs;
+	}
+
+	/**
+	 *
+	 * @return arguments that always have to be provided
+	 */
+	public List<String> getCompulsoryArgs() {
+		return compulsoryArgs;
+	}
+
+	private static String hashSource(String source) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for (int i = 0; i < 16; i ++)
+				hex.append(String.format("%02x", digest[i]));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+}
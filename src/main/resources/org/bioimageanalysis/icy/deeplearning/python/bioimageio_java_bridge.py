@@ -0,0 +1,503 @@
+"""
+Helpers used by org.bioimageanalysis.icy.deeplearning.python.BioImageIoPython.
+
+The module is compiled once when the Java class is activated and its functions are
+called from Java with Interpreter.invoke, so no Python source is compiled while
+tensors are processed. Tensors, transformations and models are kept in module level
+dictionaries under keys chosen by the Java side and are removed with release().
+"""
+import ctypes
+import gc
+import importlib
+import os
+import sys
+import threading
+import time
+
+import numpy as np
+import xarray as xr
+from bioimageio.core.prediction_pipeline._measure_groups import compute_measures
+from bioimageio.core.prediction_pipeline._utils import PER_DATASET
+
+_tensors = {}
+_transformations = {}
+_models = {}
+_custom_namespaces = {}
+_deadlines = {}
+_profilers = {}
+_sessions = {}
+
+
+class DeadlineExceeded(Exception):
+    """Raised asynchronously in the thread running a request whose deadline has passed"""
+
+
+def _to_python(value):
+    # JEP gives Java arrays and lists as proxies, turn them into Python lists
+    if value is None or isinstance(value, (str, bool, int, float)):
+        return value
+    try:
+        return [_to_python(v) for v in value]
+    except TypeError:
+        return value
+
+
+def to_xarray(key, np_array, axes, target_axes=None, fortran_order=False, half_float=False):
+    if half_float:
+        # tensors narrowed to half precision arrive as the int16 bits of each value
+        np_array = np_array.view(np.float16)
+    # data in Fortran order arrives with the axes reversed, the transpose is only a view
+    tensor = xr.DataArray(np_array.T if fortran_order else np_array, dims=tuple(axes))
+    if target_axes is not None:
+        tensor = tensor.transpose(*tuple(target_axes))
+    _tensors[key] = tensor
+    return key
+
+
+def _unpack_bits(packed, shape):
+    # boolean tensors arrive packed 8 pixels per byte in Fortran order, least significant bit first
+    shape = tuple(int(s) for s in shape)
+    size = int(np.prod(shape, dtype=np.int64))
+    flat = np.unpackbits(np.asarray(packed).view(np.uint8), count=size, bitorder="little").view(np.bool_)
+    return flat.reshape(shape[::-1]).T
+
+
+def _pack_bits(data):
+    return np.packbits(np.asarray(data, dtype=np.bool_).ravel(order="F"), bitorder="little")
+
+
+def bits_to_xarray(key, packed, shape, axes, target_axes=None):
+    return to_xarray(key, _unpack_bits(packed, shape), axes, target_axes)
+
+
+def define_source(source_hash, source, filename):
+    # every source has its own namespace, so classes with the same name in different sources do not clash
+    exec(compile(source, filename, "exec"), _custom_namespaces.setdefault(source_hash, {}))
+
+
+def load_class(module, class_name, source_hash=None):
+    if module is None:
+        return _custom_namespaces[source_hash][class_name]
+    return getattr(importlib.import_module(module), class_name)
+
+
+def preload_class(module, class_name, source_hash=None):
+    # imports the module of the class without giving the class object to Java
+    load_class(module, class_name, source_hash)
+
+
+def instantiate(key, module, class_name, kwargs, source_hash=None):
+    cls = load_class(module, class_name, source_hash)
+    _transformations[key] = cls(**{str(k): _to_python(v) for k, v in dict(kwargs).items()})
+    return key
+
+
+def apply_spec(transformation_key, tensor_key, sample_name):
+    transformation = _transformations[transformation_key]
+    tensor = _tensors[tensor_key]
+    required = transformation.get_required_measures()
+    computed = compute_measures(required, sample={sample_name: tensor})
+    transformation.set_computed_measures(computed)
+    _tensors[tensor_key] = transformation.apply(tensor)
+    return tensor_key
+
+
+def _merge_measures(merged, required):
+    # required measures are nested dictionaries (by mode and tensor name) whose leaves are sets
+    for key, value in required.items():
+        if isinstance(value, dict):
+            _merge_measures(merged.setdefault(key, {}), value)
+        else:
+            merged.setdefault(key, set()).update(value)
+    return merged
+
+
+def _for_java(tensor):
+    axes = "".join(tensor.dims)
+    if tensor.dtype == np.bool_:
+        return [axes, [int(s) for s in tensor.shape], _pack_bits(tensor.data)]
+    # Fortran order with the axes reversed, the layout of the storage of the Java images
+    return [axes, None, np.ascontiguousarray(tensor.data.T)]
+
+
+def _sample_tensor(array, axes, packed_shape):
+    # the tensors of the samples are converted in Fortran order, so they arrive with the axes reversed
+    data = array.T if packed_shape is None else _unpack_bits(array, packed_shape)
+    return xr.DataArray(data, dims=tuple(axes))
+
+
+def apply_sample(names, arrays, axes, packed_shapes, transformations):
+    # every tensor of the sample arrives in the same call, the measures required by all the
+    # transformations are computed together and every tensor of the sample goes back to Java
+    sample = {}
+    for name, array, ax, shape in zip(names, arrays, axes, packed_shapes):
+        sample[str(name)] = _sample_tensor(array, ax, shape)
+    instances = []
+    for module, class_name, kwargs, tensor_name, source_hash in transformations:
+        cls = load_class(module, class_name, source_hash)
+        instances.append((str(tensor_name), cls(**{str(k): _to_python(v) for k, v in dict(kwargs).items()})))
+    required = {}
+    for _, transformation in instances:
+        _merge_measures(required, transformation.get_required_measures())
+    computed = compute_measures(required, sample=sample)
+    for tensor_name, transformation in instances:
+        transformation.set_computed_measures(computed)
+        sample[tensor_name] = transformation.apply(sample[tensor_name])
+    return [[str(name)] + _for_java(sample[str(name)]) for name in names]
+
+
+def get_axes(key):
+    return "".join(_tensors[key].dims)
+
+
+def get_dtype(key):
+    return _tensors[key].dtype.name
+
+
+def get_shape(key):
+    return [int(s) for s in _tensors[key].shape]
+
+
+def fetch_result(key):
+    # Fortran order with the axes reversed, the layout of the storage of the Java images
+    return np.ascontiguousarray(_tensors[key].data.T)
+
+
+def fetch_narrowed(key, precision, max_error_bound):
+    # returns the data, the maximum absolute error of the narrowing, the original data type and whether
+    # the data fell back to full precision. The error is measured before narrowing, so a tensor whose
+    # error exceeds the bound is sent once at full precision and never copied narrowed. The data is in
+    # Fortran order with the axes reversed, the layout of the Java images, so Java widens it straight
+    # into the image. float16 data is sent as its int16 bits
+    data = _tensors[key].data
+    dtype = str(data.dtype)
+    target = np.dtype(precision)
+    if not np.issubdtype(data.dtype, np.floating) or data.dtype.itemsize <= target.itemsize:
+        return [np.ascontiguousarray(data.T), 0.0, dtype, False]
+    max_error = _max_narrowing_error(data, target)
+    if not max_error <= max_error_bound:
+        return [np.ascontiguousarray(data.T), max_error, dtype, True]
+    with np.errstate(over="ignore", invalid="ignore"):
+        narrowed = np.ascontiguousarray(data.T, dtype=target)
+    if target == np.float16:
+        narrowed = narrowed.view(np.int16)
+    return [narrowed, max_error, dtype, False]
+
+
+def _max_narrowing_error(data, target, chunk_size=1 << 20):
+    # measured in slabs along the first axis, so the temporaries stay small whatever the size of the tensor
+    data = np.atleast_1d(data)
+    step = max(1, chunk_size * data.shape[0] // max(data.size, 1))
+    max_error = 0.0
+    for start in range(0, data.shape[0], step):
+        source = data[start:start + step]
+        with np.errstate(over="ignore", invalid="ignore"):
+            widened = source.astype(target).astype(data.dtype)
+        finite = np.isfinite(source)
+        if np.any(finite & ~np.isfinite(widened)):
+            # a finite value too large for the precision
+            return float("inf")
+        error = np.abs(np.subtract(source, widened, out=widened), out=widened)
+        max_error = max(max_error, float(np.max(error, where=finite, initial=0.0)))
+    return max_error
+
+
+def fetch_packed_bits(key):
+    # inverse of bits_to_xarray, used for boolean results such as the masks of binarize
+    return _pack_bits(_tensors[key].data)
+
+
+def copy_into(key, direct_array):
+    # the direct array shares the memory of a Java image and has its axes reversed
+    np.copyto(direct_array.T, _tensors[key].data, casting="unsafe")
+
+
+def load_model(key, source, weight_format=None):
+    from bioimageio.core import load_resource_description
+    from bioimageio.core.prediction_pipeline import create_prediction_pipeline
+    model = load_resource_description(source)
+    pipeline = create_prediction_pipeline(bioimageio_model=model, weight_format=weight_format)
+    _models[key] = (model, pipeline)
+    return key
+
+
+def model_inputs(key):
+    return [[str(ipt.name), "".join(ipt.axes)] for ipt in _models[key][0].inputs]
+
+
+def model_outputs(key):
+    return [str(out.name) for out in _models[key][0].outputs]
+
+
+def predict(key, arrays, axes, packed_shapes, output_names):
+    # every input arrives and every output leaves in the same call
+    model, pipeline = _models[key]
+    inputs = [_sample_tensor(array, ax, shape).transpose(*tuple(ipt.axes))
+              for ipt, array, ax, shape in zip(model.inputs, arrays, axes, packed_shapes)]
+    outputs = pipeline.forward(*inputs)
+    return [[str(name)] + _for_java(out) for name, out in zip(output_names, outputs)]
+
+
+def unload_model(key):
+    model, pipeline = _models.pop(key, (None, None))
+    if pipeline is not None and hasattr(pipeline, "unload"):
+        pipeline.unload()
+
+
+def release(*keys):
+    for key in keys:
+        _tensors.pop(key, None)
+        _transformations.pop(key, None)
+
+
+def counts():
+    # objects kept by the helpers and by the garbage collector, used to find leaks in long runs
+    pairs = [["tensors", len(_tensors)], ["transformations", len(_transformations)],
+             ["models", len(_models)], ["deadlines", len(_deadlines)],
+             ["profilers", len(_profilers)], ["sessions", len(_sessions)],
+             ["gc_objects", len(gc.get_objects())]]
+    for generation, count in enumerate(gc.get_count()):
+        pairs.append(["gc_generation_%d" % generation, count])
+    return pairs
+
+
+def arm_deadline(key, seconds):
+    # a timer thread raises DeadlineExceeded in the calling thread once the time is over,
+    # the exception is delivered between two bytecodes so running C code finishes first
+    thread_id = threading.get_ident()
+    lock = threading.Lock()
+    state = {"armed": True, "fired": False}
+
+    def fire():
+        with lock:
+            if state["armed"]:
+                state["fired"] = True
+                ctypes.pythonapi.PyThreadState_SetAsyncExc(ctypes.c_ulong(thread_id),
+                                                           ctypes.py_object(DeadlineExceeded))
+
+    timer = threading.Timer(max(float(seconds), 0.0), fire)
+    timer.daemon = True
+    _deadlines[key] = (timer, lock, state, thread_id)
+    timer.start()
+
+
+def disarm_deadline(key):
+    # idempotent, the interruption can land after the deadline was removed and Java disarms again
+    entry = _deadlines.pop(key, None)
+    if entry is None:
+        return False
+    timer, lock, state, thread_id = entry
+    timer.cancel()
+    with lock:
+        state["armed"] = False
+        fired = state["fired"]
+    if fired:
+        # drop the exception in case it has not been raised yet so the thread can be reused
+        ctypes.pythonapi.PyThreadState_SetAsyncExc(ctypes.c_ulong(thread_id), None)
+    return fired
+
+
+def _frame_name(code):
+    # ';' separates the frames of a stack in the collapsed format used by flame graphs
+    name = "%s (%s:%d)" % (code.co_name, os.path.basename(code.co_filename), code.co_firstlineno)
+    return name.replace(";", ":")
+
+
+def start_profiler(key, interval_seconds):
+    # a thread samples the stack of the calling thread at a fixed interval, samples taken while
+    # the calling thread is back in Java have no frames and are not counted
+    thread_id = threading.get_ident()
+    stop = threading.Event()
+    stacks = {}
+    state = {"ticks": 0, "start": time.perf_counter(), "end": None}
+
+    def sample():
+        while not stop.wait(interval_seconds):
+            state["ticks"] += 1
+            frame = sys._current_frames().get(thread_id)
+            names = []
+            while frame is not None:
+                names.append(_frame_name(frame.f_code))
+                frame = frame.f_back
+            if names:
+                stack = ";".join(reversed(names))
+                stacks[stack] = stacks.get(stack, 0) + 1
+        state["end"] = time.perf_counter()
+
+    sampler = threading.Thread(target=sample, name="bioimageio-profiler-" + key, daemon=True)
+    _profilers[key] = (sampler, stop, stacks, state)
+    sampler.start()
+
+
+def stop_profiler(key):
+    sampler, stop, stacks, state = _profilers.pop(key)
+    stop.set()
+    sampler.join()
+    elapsed = state["end"] - state["start"]
+    seconds_per_tick = elapsed / state["ticks"] if state["ticks"] else 0.0
+    return [elapsed, seconds_per_tick, [[stack, count] for stack, count in stacks.items()]]
+
+
+class _RunningMoments:
+    """Mean and variance over every frame seen so far, merged frame by frame (Chan et al.)"""
+
+    def __init__(self, axes):
+        self.axes = axes
+        self.count = 0
+        self.mean = None
+        self.m2 = None
+
+    def update(self, tensor):
+        dims = tuple(tensor.dims) if self.axes is None else tuple(self.axes)
+        data = tensor.astype(np.float64)
+        count = int(np.prod([tensor.sizes[d] for d in dims]))
+        mean = data.mean(dim=dims)
+        m2 = data.var(dim=dims) * count
+        if self.count == 0:
+            self.count, self.mean, self.m2 = count, mean, m2
+            return
+        total = self.count + count
+        delta = mean - self.mean
+        self.mean = self.mean + delta * (count / total)
+        self.m2 = self.m2 + m2 + delta ** 2 * (self.count * count / total)
+        self.count = total
+
+
+class _RunningHistogram:
+    """Mergeable histogram per non reduced position, used to estimate percentiles over every frame.
+    The range grows when a frame falls outside it and the old counts are moved to the new bins."""
+
+    BINS = 4096
+
+    def __init__(self, axes):
+        self.axes = axes
+        self.lo = None
+        self.hi = None
+        self.counts = None
+        self.kept_dims = None
+        self.kept_shape = None
+
+    def _rows(self, tensor):
+        reduced = tuple(tensor.dims) if self.axes is None else tuple(self.axes)
+        kept = [d for d in tensor.dims if d not in reduced]
+        self.kept_dims = kept
+        self.kept_shape = [tensor.sizes[d] for d in kept]
+        values = tensor.transpose(*(kept + list(reduced))).values.astype(np.float64)
+        return values.reshape(int(np.prod(self.kept_shape)), -1)
+
+    def _rebin(self, lo, hi):
+        old_width = (self.hi - self.lo) / self.BINS
+        centers = self.lo + (np.arange(self.BINS) + 0.5) * old_width
+        index = np.clip(((centers - lo) / (hi - lo) * self.BINS).astype(np.int64), 0, self.BINS - 1)
+        counts = np.zeros_like(self.counts)
+        for row in range(counts.shape[0]):
+            np.add.at(counts[row], index, self.counts[row])
+        self.lo, self.hi, self.counts = lo, hi, counts
+
+    def update(self, tensor):
+        rows = self._rows(tensor)
+        lo, hi = float(np.nanmin(rows)), float(np.nanmax(rows))
+        if hi <= lo:
+            hi = lo + 1.0
+        if self.counts is None:
+            self.lo, self.hi = lo, hi
+            self.counts = np.zeros((rows.shape[0], self.BINS), dtype=np.float64)
+        elif lo < self.lo or hi > self.hi:
+            # grow the range by doubling so that it changes a logarithmic number of times
+            new_lo, new_hi = self.lo, self.hi
+            while lo < new_lo or hi > new_hi:
+                width = new_hi - new_lo
+                new_lo = new_lo - width if lo < new_lo else new_lo
+                new_hi = new_hi + width if hi > new_hi else new_hi
+            self._rebin(new_lo, new_hi)
+        scale = self.BINS / (self.hi - self.lo)
+        for row in range(rows.shape[0]):
+            index = np.clip(((rows[row] - self.lo) * scale).astype(np.int64), 0, self.BINS - 1)
+            self.counts[row] += np.bincount(index, minlength=self.BINS)
+
+    def percentile(self, n):
+        width = (self.hi - self.lo) / self.BINS
+        result = np.empty(self.counts.shape[0])
+        for row in range(self.counts.shape[0]):
+            cumulative = np.cumsum(self.counts[row])
+            target = cumulative[-1] * float(n) / 100.0
+            b = int(np.searchsorted(cumulative, target))
+            b = min(b, self.BINS - 1)
+            before = cumulative[b - 1] if b > 0 else 0.0
+            inside = self.counts[row][b]
+            fraction = (target - before) / inside if inside > 0 else 0.5
+            result[row] = self.lo + (b + fraction) * width
+        return xr.DataArray(result.reshape(self.kept_shape), dims=tuple(self.kept_dims))
+
+
+class _TimeSeriesSession:
+    """Transformations applied frame by frame, with the per_dataset measures updated incrementally"""
+
+    def __init__(self, transformations):
+        self.transformations = []
+        for module, class_name, kwargs, tensor_name, source_hash in transformations:
+            cls = load_class(module, class_name, source_hash)
+            self.transformations.append((str(tensor_name), cls(**{str(k): _to_python(v) for k, v in dict(kwargs).items()})))
+        self.moments = {}
+        self.histograms = {}
+        self.frames = 0
+
+    @staticmethod
+    def _axes(measure):
+        axes = getattr(measure, "axes", None)
+        return None if axes is None else tuple(axes)
+
+    def _accumulator(self, tensor_name, measure):
+        axes = self._axes(measure)
+        if type(measure).__name__ == "Percentile":
+            return self.histograms.setdefault((tensor_name, axes), _RunningHistogram(axes))
+        return self.moments.setdefault((tensor_name, axes), _RunningMoments(axes))
+
+    def _dataset_measure(self, tensor_name, measure):
+        kind = type(measure).__name__
+        accumulator = self._accumulator(tensor_name, measure)
+        if kind == "Percentile":
+            return accumulator.percentile(measure.n)
+        if kind == "Mean":
+            return accumulator.mean
+        if kind == "Var":
+            return accumulator.m2 / accumulator.count
+        if kind == "Std":
+            return np.sqrt(accumulator.m2 / accumulator.count)
+        raise ValueError("The measure %s cannot be computed incrementally" % kind)
+
+    def process(self, name, tensor):
+        sample = {name: tensor}
+        required = {}
+        for _, transformation in self.transformations:
+            _merge_measures(required, transformation.get_required_measures())
+        per_dataset = required.pop(PER_DATASET, {})
+        computed = compute_measures(required, sample=sample) if required else {}
+        # every accumulator sees the frame once, even if several measures share it
+        updated = set()
+        for tensor_name, measures in per_dataset.items():
+            for measure in measures:
+                accumulator = self._accumulator(tensor_name, measure)
+                if id(accumulator) not in updated:
+                    accumulator.update(sample[tensor_name])
+                    updated.add(id(accumulator))
+        computed[PER_DATASET] = {tensor_name: {measure: self._dataset_measure(tensor_name, measure) for measure in measures}
+                                 for tensor_name, measures in per_dataset.items()}
+        for tensor_name, transformation in self.transformations:
+            transformation.set_computed_measures(computed)
+            sample[tensor_name] = transformation.apply(sample[tensor_name])
+        self.frames += 1
+        return sample[name]
+
+
+def open_session(key, transformations):
+    _sessions[key] = _TimeSeriesSession(transformations)
+
+
+def session_frame(key, name, array, axes, packed_shape):
+    result = _sessions[key].process(str(name), _sample_tensor(array, axes, packed_shape))
+    return [str(name)] + _for_java(result)
+
+
+def close_session(key):
+    _sessions.pop(key, None)
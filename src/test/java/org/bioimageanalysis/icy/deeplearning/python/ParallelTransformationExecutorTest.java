@@ -0,0 +1,60 @@
+package org.bioimageanalysis.icy.deeplearning.python;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests of the choice of the axes along which the {@link ParallelTransformationExecutor} splits the tensors
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class ParallelTransformationExecutorTest {
+
+	private static Map<String, Object> transformation(String name, Object... kwargs) {
+		Map<String, Object> args = new HashMap<String, Object>();
+		for (int i = 0; i < kwargs.length; i += 2)
+			args.put((String) kwargs[i], kwargs[i + 1]);
+		Map<String, Object> transformationMap = new HashMap<String, Object>();
+		transformationMap.put("name", name);
+		transformationMap.put("kwargs", args);
+		return transformationMap;
+	}
+
+	@Test
+	public void elementwiseTransformationsSplitEveryIndependentAxis() {
+		assertEquals("bct", ParallelTransformationExecutor.findSplittableAxes(
+				transformation("clip", "min", 0.0, "max", 1.0), "tbczyx"));
+		assertEquals("b", ParallelTransformationExecutor.findSplittableAxes(transformation("sigmoid"), "byx"));
+		assertEquals("", ParallelTransformationExecutor.findSplittableAxes(transformation("sigmoid"), "zyx"));
+	}
+
+	@Test
+	public void measuresAreNotSplitAlongTheirAxes() {
+		assertEquals("b", ParallelTransformationExecutor.findSplittableAxes(
+				transformation("zero_mean_unit_variance", "mode", "per_sample", "axes", "cyx"), "bcyx"));
+		assertEquals("bc", ParallelTransformationExecutor.findSplittableAxes(
+				transformation("scale_range", "mode", "per_sample", "axes", "yx"), "bcyx"));
+		assertEquals("bc", ParallelTransformationExecutor.findSplittableAxes(
+				transformation("zero_mean_unit_variance", "mode", "fixed", "mean", 1.0, "std", 2.0, "axes", "bcyx"), "bcyx"));
+		// without axes the measures are taken over the whole tensor
+		assertEquals("", ParallelTransformationExecutor.findSplittableAxes(
+				transformation("zero_mean_unit_variance", "mode", "per_sample"), "bcyx"));
+	}
+
+	@Test
+	public void transformationsNeedingTheWholeTensorAreNotSplit() {
+		assertEquals("", ParallelTransformationExecutor.findSplittableAxes(
+				transformation("scale_range", "mode", "per_dataset", "axes", "yx"), "bcyx"));
+		assertEquals("", ParallelTransformationExecutor.findSplittableAxes(
+				transformation("scale_range", "mode", "per_sample", "axes", "yx", "reference_tensor", "other"), "bcyx"));
+		assertEquals("", ParallelTransformationExecutor.findSplittableAxes(
+				transformation("scale_linear", "gain", new double[] {1, 2}, "offset", 0.0), "bcyx"));
+		assertEquals("", ParallelTransformationExecutor.findSplittableAxes(
+				transformation("scale_mean_variance", "mode", "per_sample", "reference_tensor", "other"), "bcyx"));
+	}
+}
@@ -0,0 +1,82 @@
+package org.bioimageanalysis.icy.deeplearning.python;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.bioimageanalysis.icy.deeplearning.python.tensor.PrimitiveBufferPool;
+import org.bioimageanalysis.icy.deeplearning.tensor.Tensor;
+import org.junit.Test;
+
+import jep.NDArray;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Tests of the conversion of the tensors of a {@link PythonSample} in both directions
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class PythonSampleTest {
+
+	@Test
+	public void tensorsAreSentAsParallelArrays() {
+		Tensor<FloatType> image = Tensor.build("image", "byx", ArrayImgs.floats(1, 4, 3));
+		Tensor<BitType> mask = Tensor.build("mask", "byx", ArrayImgs.bits(1, 4, 3));
+		PrimitiveBufferPool pool = PrimitiveBufferPool.build();
+		PythonSample sample = PythonSample.fromJavaTensors(Arrays.<Tensor<?>>asList(image, mask), pool);
+		assertArrayEquals(new String[] {"image", "mask"}, sample.getNames());
+		assertArrayEquals(new String[] {"byx", "byx"}, sample.getAxes());
+		assertNull(sample.getPackedShapes()[0]);
+		assertArrayEquals(new int[] {1, 4, 3}, sample.getPackedShapes()[1]);
+		Object flat = ((NDArray<?>) sample.getArrays()[0]).getData();
+		assertTrue(pool.isLent(flat));
+		sample.release();
+		assertFalse(pool.isLent(flat));
+	}
+
+	@Test
+	public void resultsAreRebuiltFromFortranOrder() {
+		// tensor of shape {2, 3} whose value at (x, y) is 10 * x + y, with the first axis varying the fastest
+		float[] flat = new float[] {0, 10, 1, 11, 2, 12};
+		NDArray<float[]> data = new NDArray<float[]>(flat, new int[] {3, 2});
+		List<?> results = Arrays.asList(Arrays.asList("output", "xy", null, data));
+		PrimitiveBufferPool pool = PrimitiveBufferPool.build();
+		Map<String, Tensor<?>> outputs = PythonSample.toJavaTensors(results, pool);
+		@SuppressWarnings("unchecked")
+		RandomAccessibleInterval<FloatType> img = (RandomAccessibleInterval<FloatType>) outputs.get("output").getData();
+		assertArrayEquals(new long[] {2, 3}, img.dimensionsAsLongArray());
+		RandomAccess<FloatType> ra = img.randomAccess();
+		for (int x = 0; x < 2; x ++)
+			for (int y = 0; y < 3; y ++)
+				assertEquals(10 * x + y, ra.setPositionAndGet(new long[] {x, y}).get(), 0f);
+		// the array received from Python is kept by the pool for the next conversion
+		assertSame(flat, pool.borrow(float[].class, 6));
+	}
+
+	@Test
+	public void packedResultsKeepTheirShape() {
+		NDArray<byte[]> packed = new NDArray<byte[]>(new byte[] {(byte) 0b101}, new int[] {1});
+		List<?> results = Arrays.asList(Arrays.asList("mask", "xy", Arrays.asList(2, 2), packed));
+		Map<String, Tensor<?>> outputs = PythonSample.toJavaTensors(results, null);
+		@SuppressWarnings("unchecked")
+		RandomAccessibleInterval<BitType> img = (RandomAccessibleInterval<BitType>) outputs.get("mask").getData();
+		assertArrayEquals(new long[] {2, 2}, img.dimensionsAsLongArray());
+		RandomAccess<BitType> ra = img.randomAccess();
+		assertTrue(ra.setPositionAndGet(new long[] {0, 0}).get());
+		assertFalse(ra.setPositionAndGet(new long[] {1, 0}).get());
+		assertTrue(ra.setPositionAndGet(new long[] {0, 1}).get());
+		assertFalse(ra.setPositionAndGet(new long[] {1, 1}).get());
+	}
+}
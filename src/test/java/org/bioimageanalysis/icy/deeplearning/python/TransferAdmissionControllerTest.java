@@ -0,0 +1,144 @@
+package org.bioimageanalysis.icy.deeplearning.python;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bioimageanalysis.icy.deeplearning.python.TransferAdmissionController.Policy;
+import org.bioimageanalysis.icy.deeplearning.python.TransferAdmissionController.Reservation;
+import org.junit.Test;
+
+/**
+ * Tests of the policies of the {@link TransferAdmissionController}
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class TransferAdmissionControllerTest {
+
+	@Test
+	public void peakIncludesTheInputAndResultCopies() {
+		// 2 copies of the float32 input and 3 copies of the float32 result
+		assertEquals(10 * (2 * 4 + 3 * 4), TransferAdmissionController.estimatePeakBytes(10, 4));
+		// the results are at least float32 whatever the input
+		assertEquals(10 * (2 * 1 + 3 * 4), TransferAdmissionController.estimatePeakBytes(10, 1));
+		assertEquals(10 * (2 * 8 + 3 * 8), TransferAdmissionController.estimatePeakBytes(10, 8));
+	}
+
+	@Test
+	public void reservationsGiveTheMemoryBackOnce() throws InterruptedException {
+		TransferAdmissionController controller = TransferAdmissionController.build(100, Policy.REJECT);
+		Reservation reservation = controller.reserve(60);
+		assertEquals(60, reservation.getBytes());
+		assertEquals(60, controller.getReservedBytes());
+		assertEquals(40, controller.getAvailableBytes());
+		reservation.close();
+		reservation.close();
+		assertEquals(0, controller.getReservedBytes());
+	}
+
+	@Test
+	public void rejectPolicyFailsStraightAway() throws InterruptedException {
+		TransferAdmissionController controller = TransferAdmissionController.build(100, Policy.REJECT);
+		try (Reservation reservation = controller.reserve(60)) {
+			try {
+				controller.reserve(60);
+				fail("A request over the budget was admitted");
+			} catch (RejectedExecutionException e) {
+			}
+			assertEquals(60, controller.getReservedBytes());
+		}
+		controller.reserve(60).close();
+	}
+
+	@Test
+	public void requestsBiggerThanTheBudgetRunAlone() throws InterruptedException {
+		TransferAdmissionController controller = TransferAdmissionController.build(100, Policy.REJECT);
+		try (Reservation reservation = controller.reserve(1000)) {
+			assertEquals(100, reservation.getBytes());
+			assertEquals(0, controller.getAvailableBytes());
+		}
+	}
+
+	@Test
+	public void blockPolicyWaitsForTheMemory() throws InterruptedException {
+		TransferAdmissionController controller = TransferAdmissionController.build(100, Policy.BLOCK);
+		Reservation first = controller.reserve(80);
+		CountDownLatch admitted = new CountDownLatch(1);
+		Thread waiting = new Thread(() -> {
+			try (Reservation second = controller.reserve(80)) {
+				admitted.countDown();
+			} catch (InterruptedException e) {
+			}
+		});
+		waiting.start();
+		assertFalse(admitted.await(100, TimeUnit.MILLISECONDS));
+		first.close();
+		assertTrue(admitted.await(5, TimeUnit.SECONDS));
+		waiting.join();
+		assertEquals(0, controller.getReservedBytes());
+	}
+
+	@Test
+	public void queuedRequestsAreRejectedAfterTheTimeout() throws InterruptedException {
+		TransferAdmissionController controller = TransferAdmissionController.build(100, 50, TimeUnit.MILLISECONDS);
+		try (Reservation reservation = controller.reserve(80)) {
+			long start = System.currentTimeMillis();
+			try {
+				controller.reserve(80);
+				fail("A queued request was admitted over the budget");
+			} catch (RejectedExecutionException e) {
+			}
+			assertTrue(System.currentTimeMillis() - start >= 50);
+			assertEquals(0, controller.getQueuedRequests());
+		}
+	}
+
+	@Test
+	public void queuedRequestsAreAdmittedInArrivalOrder() throws InterruptedException {
+		TransferAdmissionController controller = TransferAdmissionController.build(100, Policy.QUEUE);
+		Reservation first = controller.reserve(50);
+		CountDownLatch releaseBig = new CountDownLatch(1);
+		AtomicLong reservedWithSmall = new AtomicLong(-1);
+		Thread big = new Thread(() -> {
+			try (Reservation r = controller.reserve(60)) {
+				releaseBig.await();
+			} catch (InterruptedException e) {
+			}
+		});
+		big.start();
+		while (controller.getQueuedRequests() < 1)
+			Thread.sleep(5);
+		Thread small = new Thread(() -> {
+			try (Reservation r = controller.reserve(10)) {
+				reservedWithSmall.set(controller.getReservedBytes());
+			} catch (InterruptedException e) {
+			}
+		});
+		small.start();
+		while (controller.getQueuedRequests() < 2)
+			Thread.sleep(5);
+		// the small request fits next to the first one but waits for its turn behind the big one
+		Thread.sleep(50);
+		assertEquals(2, controller.getQueuedRequests());
+		assertEquals(50, controller.getReservedBytes());
+		first.close();
+		small.join(5000);
+		// the big request was admitted first and still holds its memory
+		assertEquals(70, reservedWithSmall.get());
+		releaseBig.countDown();
+		big.join(5000);
+		assertEquals(0, controller.getReservedBytes());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void budgetHasToBePositive() {
+		TransferAdmissionController.build(0, Policy.BLOCK);
+	}
+}
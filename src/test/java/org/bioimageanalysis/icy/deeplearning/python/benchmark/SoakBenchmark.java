@@ -0,0 +1,467 @@
+package org.bioimageanalysis.icy.deeplearning.python.benchmark;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bioimageanalysis.icy.deeplearning.python.BioImageIoPython;
+import org.bioimageanalysis.icy.deeplearning.python.cache.TransformationResultCache;
+import org.bioimageanalysis.icy.deeplearning.python.transformations.TransformationRegistry;
+import org.bioimageanalysis.icy.deeplearning.python.transformations.TransformationSpec;
+import org.bioimageanalysis.icy.deeplearning.tensor.Tensor;
+import org.bioimageanalysis.icy.jep.install.system.Log;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Long running benchmark that repeats a mix of transformations on tensors of several data types and
+ * sizes to find the problems that only appear after hours: objects accumulating in the Python scope,
+ * memory of the process creeping up, arrays that are never released or requests getting slower.
+ *
+ * Along the run it samples the JVM heap (as left by the last garbage collection of the JVM, no collection
+ * is forced), the resident set size of the process, the objects held in Python and the latency percentiles of the requests. The first sample
+ * after the warm-up is the baseline, and the run fails if at the end the heap, the resident memory
+ * or the number of Python objects have grown more than the allowed thresholds, or if the 95th
+ * percentile of the latency has drifted more than the allowed ratio.
+ *
+ * The requests are run in the calling thread, which has to be the thread that activated the
+ * {@link BioImageIoPython} instance. The {@link TransformationResultCache} of the instance, if any, is
+ * removed during the run so every request goes through Python.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class SoakBenchmark {
+	/**
+	 * Axes order of the tensors used by the benchmark
+	 */
+	private static final String AXES = "bcyx";
+	/**
+	 * Name of the tensors used by the benchmark
+	 */
+	private static final String TENSOR_NAME = "soak";
+	/**
+	 * Data types supported by the workloads
+	 */
+	private static final List<String> DATA_TYPES = Arrays.asList("int8", "int32", "int64", "float32", "float64");
+	/**
+	 * Instance whose stability is measured
+	 */
+	private final BioImageIoPython bioimageio;
+	/**
+	 * Requests repeated along the run
+	 */
+	private final List<Workload> workloads = new ArrayList<Workload>();
+	/**
+	 * Duration of the run, warm-up included
+	 */
+	private long durationMillis = TimeUnit.HOURS.toMillis(1);
+	/**
+	 * Time during which the requests run before the baseline is taken
+	 */
+	private long warmUpMillis = TimeUnit.MINUTES.toMillis(1);
+	/**
+	 * Time between two samples
+	 */
+	private long samplingIntervalMillis = TimeUnit.MINUTES.toMillis(1);
+	/**
+	 * Maximum growth of the JVM heap in use between the baseline and the end of the run
+	 */
+	private long maxHeapGrowthBytes = 64L * 1024 * 1024;
+	/**
+	 * Maximum growth of the resident set size between the baseline and the end of the run
+	 */
+	private long maxRssGrowthBytes = 256L * 1024 * 1024;
+	/**
+	 * Maximum growth of each of the Python object counts between the baseline and the end of the run
+	 */
+	private long maxPythonObjectGrowth = 10000;
+	/**
+	 * Maximum ratio between the 95th percentile of the latency at the end of the run and at the baseline
+	 */
+	private double maxLatencyDrift = 1.5;
+	/**
+	 * Seed of the choice of the workloads and of the content of the tensors
+	 */
+	private long seed = 42;
+
+	private SoakBenchmark(BioImageIoPython bioimageio) {
+		this.bioimageio = bioimageio;
+	}
+
+	/**
+	 * Create a benchmark without workloads and with the default thresholds
+	 * @param bioimageio
+	 * 	instance whose stability is measured
+	 * @return the benchmark
+	 */
+	public static SoakBenchmark build(BioImageIoPython bioimageio) {
+		return new SoakBenchmark(bioimageio);
+	}
+
+	/**
+	 * Add a workload made of the given transformation applied to random tensors of the given data type
+	 * and shape. In each request the workload is chosen at random with a probability proportional to its weight.
+	 * @param transformationMap
+	 * 	transformation with its "name" and "kwargs", the argument "tensor_name" is set by the benchmark
+	 * @param dataType
+	 * 	data type of the tensors, one of "int8", "int32", "int64", "float32" or "float64"
+	 * @param shape
+	 * 	shape of the tensors, in "bcyx" order
+	 * @param weight
+	 * 	relative frequency of the workload
+	 */
+	public void addWorkload(Map<String, Object> transformationMap, String dataType, long[] shape, int weight) {
+		if (!DATA_TYPES.contains(dataType))
+			throw new IllegalArgumentException("Unsupported data type '" + dataType + "', the supported ones are "
+					+ DATA_TYPES + ".");
+		if (shape.length != AXES.length())
+			throw new IllegalArgumentException("The shape of the tensors has to have " + AXES.length()
+					+ " dimensions (" + AXES + ").");
+		if (weight <= 0)
+			throw new IllegalArgumentException("The weight of a workload has to be positive.");
+		Map<String, Object> kwargs = new HashMap<String, Object>();
+		if (transformationMap.get("kwargs") != null) {
+			for (Entry<?, ?> entry : ((Map<?, ?>) transformationMap.get("kwargs")).entrySet())
+				kwargs.put((String) entry.getKey(), entry.getValue());
+		}
+		kwargs.put("tensor_name", TENSOR_NAME);
+		Map<String, Object> map = new HashMap<String, Object>(transformationMap);
+		map.put("kwargs", kwargs);
+		workloads.add(new Workload(map, dataType, shape.clone(), weight));
+	}
+
+	/**
+	 * Add a workload for every transformation of the {@link TransformationRegistry} that has example
+	 * arguments, for every supported data type, with the given shapes
+	 * @param shapes
+	 * 	shapes of the tensors, in "bcyx" order
+	 */
+	public void addDefaultWorkloads(long[]... shapes) {
+		for (TransformationSpec spec : TransformationRegistry.getDefault().getAll()) {
+			if (spec.getExampleKwargs() == null)
+				continue;
+			Map<String, Object> transformationMap = new HashMap<String, Object>();
+			transformationMap.put("name", spec.getName());
+			transformationMap.put("kwargs", spec.getExampleKwargs());
+			for (String dataType : DATA_TYPES) {
+				for (long[] shape : shapes)
+					addWorkload(transformationMap, dataType, shape, 1);
+			}
+		}
+	}
+
+	/**
+	 * Set how long the benchmark runs
+	 * @param duration
+	 * 	duration of the run, warm-up included
+	 * @param unit
+	 * 	unit of the duration
+	 */
+	public void setDuration(long duration, TimeUnit unit) {
+		this.durationMillis = unit.toMillis(duration);
+	}
+
+	/**
+	 * Set how long the requests run before the baseline is taken, so the caches, pools and lazy
+	 * imports filled by the first requests are not counted as growth
+	 * @param warmUp
+	 * 	duration of the warm-up
+	 * @param unit
+	 * 	unit of the duration
+	 */
+	public void setWarmUp(long warmUp, TimeUnit unit) {
+		this.warmUpMillis = unit.toMillis(warmUp);
+	}
+
+	/**
+	 * Set the time between two samples, the latency percentiles of a sample cover the requests of this interval
+	 * @param interval
+	 * 	time between two samples
+	 * @param unit
+	 * 	unit of the interval
+	 */
+	public void setSamplingInterval(long interval, TimeUnit unit) {
+		if (interval <= 0)
+			throw new IllegalArgumentException("The sampling interval has to be positive.");
+		this.samplingIntervalMillis = unit.toMillis(interval);
+	}
+
+	/**
+	 * Set the maximum growth allowed between the baseline and the end of the run
+	 * @param heapBytes
+	 * 	maximum growth of the JVM heap in use, in bytes
+	 * @param rssBytes
+	 * 	maximum growth of the resident set size of the process, in bytes
+	 * @param pythonObjects
+	 * 	maximum growth of each of the counts of Python objects
+	 */
+	public void setMaxGrowth(long heapBytes, long rssBytes, long pythonObjects) {
+		this.maxHeapGrowthBytes = heapBytes;
+		this.maxRssGrowthBytes = rssBytes;
+		this.maxPythonObjectGrowth = pythonObjects;
+	}
+
+	/**
+	 * Set the maximum drift allowed for the latency
+	 * @param ratio
+	 * 	maximum ratio between the 95th percentile of the latency at the end of the run and at the baseline
+	 */
+	public void setMaxLatencyDrift(double ratio) {
+		this.maxLatencyDrift = ratio;
+	}
+
+	/**
+	 * Set the seed of the random choice of workloads and of the content of the tensors
+	 * @param seed
+	 * 	seed of the random generator
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Run the benchmark in the calling thread
+	 * @return the samples taken and the thresholds exceeded
+	 */
+	public SoakReport run() {
+		if (workloads.isEmpty())
+			throw new IllegalArgumentException("The soak benchmark has no workloads.");
+		// the inputs are repeated, with a cache the requests would not reach Python
+		TransformationResultCache resultCache = bioimageio.getResultCache();
+		bioimageio.setResultCache(null);
+		try {
+			return runWorkloads();
+		} finally {
+			bioimageio.setResultCache(resultCache);
+		}
+	}
+
+	private SoakReport runWorkloads() {
+		int totalWeight = 0;
+		for (Workload workload : workloads)
+			totalWeight += workload.weight;
+		Random random = new Random(seed);
+		List<Tensor<?>> inputs = new ArrayList<Tensor<?>>();
+		for (Workload workload : workloads)
+			inputs.add(randomTensor(workload.dataType, workload.shape, random));
+		System.out.println(Log.getCurrentTime() + " -- Starting soak benchmark of " + durationMillis / 1000
+				+ " s with " + workloads.size() + " workloads");
+		List<SoakReport.Sample> samples = new ArrayList<SoakReport.Sample>();
+		List<Double> windowLatencies = new ArrayList<Double>();
+		long requests = 0;
+		long errors = 0;
+		long start = System.currentTimeMillis();
+		long nextSample = start + Math.max(warmUpMillis, 0);
+		while (System.currentTimeMillis() - start < durationMillis) {
+			int choice = random.nextInt(totalWeight);
+			int index = 0;
+			while (choice >= workloads.get(index).weight)
+				choice -= workloads.get(index ++).weight;
+			long t0 = System.nanoTime();
+			try {
+				Tensor<?> result = apply(workloads.get(index).transformationMap, inputs.get(index));
+				bioimageio.releaseTensor(result);
+			} catch (RuntimeException e) {
+				if (errors ++ == 0)
+					System.out.println(Log.getCurrentTime() + " -- First error of the soak benchmark: " + e);
+			}
+			windowLatencies.add((System.nanoTime() - t0) / 1e6);
+			requests ++;
+			if (System.currentTimeMillis() >= nextSample) {
+				samples.add(takeSample(System.currentTimeMillis() - start, requests, errors, windowLatencies));
+				windowLatencies.clear();
+				nextSample = System.currentTimeMillis() + samplingIntervalMillis;
+			}
+		}
+		if (!windowLatencies.isEmpty() || samples.isEmpty())
+			samples.add(takeSample(System.currentTimeMillis() - start, requests, errors, windowLatencies));
+		SoakReport report = new SoakReport(samples, checkThresholds(samples));
+		System.out.println(Log.getCurrentTime() + " -- " + report);
+		return report;
+	}
+
+	private < T extends RealType< T > & NativeType< T > > Tensor<T> apply(Map<String, Object> transformationMap, Tensor<T> input) {
+		return bioimageio.applyTransformationToTensorInPython(transformationMap, input);
+	}
+
+	private SoakReport.Sample takeSample(long elapsedMillis, long requests, long errors, List<Double> latencies) {
+		return new SoakReport.Sample(elapsedMillis, requests, errors, readHeapAfterLastGc(), readRssBytes(),
+				percentiles(latencies), bioimageio.getPythonObjectCounts());
+	}
+
+	/**
+	 * Read the heap in use as left by the last collection of each pool, so the garbage accumulated
+	 * since then does not count and no collection has to be forced, which would change the timing of
+	 * the requests
+	 * @return the heap in use after the last garbage collection, in bytes
+	 */
+	private static long readHeapAfterLastGc() {
+		long bytes = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			MemoryUsage usage = pool.getCollectionUsage();
+			if (pool.getType() == MemoryType.HEAP && usage != null)
+				bytes += usage.getUsed();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Compare the last sample with the baseline
+	 * @param samples
+	 * 	samples of the run, the first one is the baseline
+	 * @return description of every threshold exceeded
+	 */
+	List<String> checkThresholds(List<SoakReport.Sample> samples) {
+		List<String> failures = new ArrayList<String>();
+		SoakReport.Sample baseline = samples.get(0);
+		SoakReport.Sample last = samples.get(samples.size() - 1);
+		if (last.getErrors() > 0)
+			failures.add(last.getErrors() + " of " + last.getRequests() + " requests failed");
+		if (samples.size() < 2) {
+			failures.add("the run was too short to take samples after the warm-up");
+			return failures;
+		}
+		long heapGrowth = last.getHeapBytes() - baseline.getHeapBytes();
+		if (heapGrowth > maxHeapGrowthBytes)
+			failures.add("the JVM heap grew " + heapGrowth + " bytes, more than " + maxHeapGrowthBytes);
+		if (baseline.getRssBytes() >= 0 && last.getRssBytes() >= 0
+				&& last.getRssBytes() - baseline.getRssBytes() > maxRssGrowthBytes)
+			failures.add("the resident memory grew " + (last.getRssBytes() - baseline.getRssBytes())
+					+ " bytes, more than " + maxRssGrowthBytes);
+		for (Entry<String, Long> entry : last.getPythonObjectCounts().entrySet()) {
+			// the counts of the generations are allocations since the last collection, not live objects
+			if (entry.getKey().startsWith("gc_generation"))
+				continue;
+			long growth = entry.getValue() - baseline.getPythonObjectCounts().getOrDefault(entry.getKey(), 0L);
+			if (growth > maxPythonObjectGrowth)
+				failures.add("the Python objects '" + entry.getKey() + "' grew by " + growth + ", more than "
+						+ maxPythonObjectGrowth);
+		}
+		if (baseline.getLatencyP95Millis() > 0
+				&& last.getLatencyP95Millis() > baseline.getLatencyP95Millis() * maxLatencyDrift)
+			failures.add(String.format("the 95th percentile of the latency went from %.1f ms to %.1f ms, more than "
+					+ "%.2f times", baseline.getLatencyP95Millis(), last.getLatencyP95Millis(), maxLatencyDrift));
+		return failures;
+	}
+
+	/**
+	 * @return the 50th, 95th and 99th percentiles of the latencies, 0 if there are none
+	 */
+	private static double[] percentiles(List<Double> latencies) {
+		if (latencies.isEmpty())
+			return new double[3];
+		double[] sorted = new double[latencies.size()];
+		for (int i = 0; i < sorted.length; i ++)
+			sorted[i] = latencies.get(i);
+		Arrays.sort(sorted);
+		return new double[] {percentile(sorted, 0.5), percentile(sorted, 0.95), percentile(sorted, 0.99)};
+	}
+
+	private static double percentile(double[] sorted, double p) {
+		return sorted[(int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)];
+	}
+
+	/**
+	 * Read the resident set size of the process from /proc, only available on Linux
+	 * @return the resident set size in bytes, or -1 if it cannot be read
+	 */
+	private static long readRssBytes() {
+		Path status = Paths.get("/proc/self/status");
+		if (!Files.isReadable(status))
+			return -1;
+		try {
+			for (String line : Files.readAllLines(status, StandardCharsets.UTF_8)) {
+				if (line.startsWith("VmRSS:"))
+					return Long.parseLong(line.substring(6).trim().split("\\s+")[0]) * 1024;
+			}
+		} catch (IOException | NumberFormatException e) {
+			return -1;
+		}
+		return -1;
+	}
+
+	private static Tensor<?> randomTensor(String dataType, long[] shape, Random random) {
+		switch (dataType) {
+		case "int8":
+			return randomTensor(ArrayImgs.bytes(shape), random);
+		case "int32":
+			return randomTensor(ArrayImgs.ints(shape), random);
+		case "int64":
+			return randomTensor(ArrayImgs.longs(shape), random);
+		case "float32":
+			return randomTensor(ArrayImgs.floats(shape), random);
+		default:
+			return randomTensor(ArrayImgs.doubles(shape), random);
+		}
+	}
+
+	private static < T extends RealType< T > & NativeType< T > > Tensor<T> randomTensor(ArrayImg<T, ?> img, Random random) {
+		Cursor<T> cursor = img.cursor();
+		while (cursor.hasNext())
+			cursor.next().setReal(random.nextInt(128));
+		return Tensor.build(TENSOR_NAME, AXES, img);
+	}
+
+	/**
+	 * Run the default workloads, every transformation of the registry with its example arguments on
+	 * every data type, against a local Python.
+	 * Arguments: python home, JEP path, duration in minutes (60 by default) and optionally a CSV file
+	 * where the samples are written. The exit code is 1 if the run failed.
+	 * @param args
+	 * 	python home, JEP path, duration in minutes and CSV file
+	 * @throws Exception if the interpreter cannot be activated or the CSV file cannot be written
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2)
+			throw new IllegalArgumentException("Usage: SoakBenchmark <python home> <jep path> [minutes] [samples.csv]");
+		BioImageIoPython bioimageio = BioImageIoPython.activate(args[0], args[1]);
+		SoakReport report;
+		try {
+			SoakBenchmark benchmark = SoakBenchmark.build(bioimageio);
+			benchmark.addDefaultWorkloads(new long[] {1, 1, 64, 64}, new long[] {1, 3, 256, 256}, new long[] {1, 1, 1024, 1024});
+			benchmark.setDuration(args.length > 2 ? Long.parseLong(args[2]) : 60, TimeUnit.MINUTES);
+			report = benchmark.run();
+			if (args.length > 3)
+				report.writeCsv(Paths.get(args[3]));
+		} finally {
+			bioimageio.close();
+		}
+		System.exit(report.passed() ? 0 : 1);
+	}
+
+	/**
+	 * Request repeated along the run
+	 */
+	private static class Workload {
+		private final Map<String, Object> transformationMap;
+		private final String dataType;
+		private final long[] shape;
+		private final int weight;
+
+		private Workload(Map<String, Object> transformationMap, String dataType, long[] shape, int weight) {
+			this.transformationMap = transformationMap;
+			this.dataType = dataType;
+			this.shape = shape;
+			this.weight = weight;
+		}
+	}
+}
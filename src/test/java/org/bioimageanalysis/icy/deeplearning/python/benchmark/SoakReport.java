@@ -0,0 +1,237 @@
+package org.bioimageanalysis.icy.deeplearning.python.benchmark;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Result of a {@link SoakBenchmark}: the resources and latencies sampled along the run and the
+ * thresholds that were exceeded. The run fails if any threshold was exceeded or any request failed.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class SoakReport {
+	/**
+	 * Samples taken along the run, the first one is the baseline taken after the warm-up
+	 */
+	private final List<Sample> samples;
+	/**
+	 * Description of every threshold exceeded
+	 */
+	private final List<String> failures;
+
+	SoakReport(List<Sample> samples, List<String> failures) {
+		this.samples = Collections.unmodifiableList(new ArrayList<Sample>(samples));
+		this.failures = Collections.unmodifiableList(new ArrayList<String>(failures));
+	}
+
+	/**
+	 *
+	 * @return samples taken along the run, the first one is the baseline taken after the warm-up
+	 */
+	public List<Sample> getSamples() {
+		return samples;
+	}
+
+	/**
+	 *
+	 * @return description of every threshold exceeded, empty if the run passed
+	 */
+	public List<String> getFailures() {
+		return failures;
+	}
+
+	/**
+	 *
+	 * @return whether every measure stayed within its threshold
+	 */
+	public boolean passed() {
+		return failures.isEmpty();
+	}
+
+	/**
+	 * Write the samples as a CSV file, one row per sample, to plot the evolution of the run
+	 * @param file
+	 * 	file where the samples are written
+	 * @throws IOException if the file cannot be written
+	 */
+	public void writeCsv(Path file) throws IOException {
+		try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			List<String> countNames = samples.isEmpty() ? new ArrayList<String>()
+					: new ArrayList<String>(samples.get(0).getPythonObjectCounts().keySet());
+			StringBuilder header = new StringBuilder("elapsed_seconds,requests,errors,heap_bytes,rss_bytes,"
+					+ "latency_p50_ms,latency_p95_ms,latency_p99_ms");
+			for (String name : countNames)
+				header.append(',').append(name);
+			writer.write(header.toString());
+			writer.newLine();
+			for (Sample sample : samples) {
+				StringBuilder row = new StringBuilder();
+				row.append(sample.getElapsedMillis() / 1000.0).append(',').append(sample.getRequests()).append(',')
+					.append(sample.getErrors()).append(',').append(sample.getHeapBytes()).append(',')
+					.append(sample.getRssBytes()).append(',').append(sample.getLatencyP50Millis()).append(',')
+					.append(sample.getLatencyP95Millis()).append(',').append(sample.getLatencyP99Millis());
+				for (String name : countNames)
+					row.append(',').append(sample.getPythonObjectCounts().getOrDefault(name, -1L));
+				writer.write(row.toString());
+				writer.newLine();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder str = new StringBuilder(passed() ? "Soak benchmark passed" : "Soak benchmark failed");
+		if (!samples.isEmpty()) {
+			Sample first = samples.get(0);
+			Sample last = samples.get(samples.size() - 1);
+			str.append(String.format(" after %d requests in %.1f min", last.getRequests(), last.getElapsedMillis() / 60000.0));
+			str.append(System.lineSeparator()).append("  baseline: ").append(first);
+			str.append(System.lineSeparator()).append("  final:    ").append(last);
+		}
+		for (String failure : failures)
+			str.append(System.lineSeparator()).append("  FAILED: ").append(failure);
+		return str.toString();
+	}
+
+	/**
+	 * Resources and latencies measured at one point of the run
+	 */
+	public static class Sample {
+		/**
+		 * Time since the start of the run
+		 */
+		private final long elapsedMillis;
+		/**
+		 * Requests completed since the start of the run
+		 */
+		private final long requests;
+		/**
+		 * Requests that threw an exception since the start of the run
+		 */
+		private final long errors;
+		/**
+		 * JVM heap in use after the last garbage collection
+		 */
+		private final long heapBytes;
+		/**
+		 * Resident set size of the process, -1 if it cannot be read
+		 */
+		private final long rssBytes;
+		/**
+		 * Latency percentiles of the requests completed since the previous sample
+		 */
+		private final double latencyP50Millis;
+		private final double latencyP95Millis;
+		private final double latencyP99Millis;
+		/**
+		 * Objects held in Python, by kind
+		 */
+		private final Map<String, Long> pythonObjectCounts;
+
+		Sample(long elapsedMillis, long requests, long errors, long heapBytes, long rssBytes,
+				double[] latencyPercentiles, Map<String, Long> pythonObjectCounts) {
+			this.elapsedMillis = elapsedMillis;
+			this.requests = requests;
+			this.errors = errors;
+			this.heapBytes = heapBytes;
+			this.rssBytes = rssBytes;
+			this.latencyP50Millis = latencyPercentiles[0];
+			this.latencyP95Millis = latencyPercentiles[1];
+			this.latencyP99Millis = latencyPercentiles[2];
+			this.pythonObjectCounts = Collections.unmodifiableMap(new LinkedHashMap<String, Long>(pythonObjectCounts));
+		}
+
+		/**
+		 *
+		 * @return time since the start of the run, in milliseconds
+		 */
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
+
+		/**
+		 *
+		 * @return requests completed since the start of the run
+		 */
+		public long getRequests() {
+			return requests;
+		}
+
+		/**
+		 *
+		 * @return requests that threw an exception since the start of the run
+		 */
+		public long getErrors() {
+			return errors;
+		}
+
+		/**
+		 *
+		 * @return JVM heap in use after the last garbage collection, in bytes
+		 */
+		public long getHeapBytes() {
+			return heapBytes;
+		}
+
+		/**
+		 *
+		 * @return resident set size of the process, Python included, in bytes, or -1 if it cannot be read
+		 */
+		public long getRssBytes() {
+			return rssBytes;
+		}
+
+		/**
+		 *
+		 * @return median latency of the requests completed since the previous sample, in milliseconds
+		 */
+		public double getLatencyP50Millis() {
+			return latencyP50Millis;
+		}
+
+		/**
+		 *
+		 * @return 95th percentile of the latency of the requests completed since the previous sample, in milliseconds
+		 */
+		public double getLatencyP95Millis() {
+			return latencyP95Millis;
+		}
+
+		/**
+		 *
+		 * @return 99th percentile of the latency of the requests completed since the previous sample, in milliseconds
+		 */
+		public double getLatencyP99Millis() {
+			return latencyP99Millis;
+		}
+
+		/**
+		 *
+		 * @return objects held in Python, by kind
+		 */
+		public Map<String, Long> getPythonObjectCounts() {
+			return pythonObjectCounts;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder str = new StringBuilder(String.format("%.1f s, %d requests, %d errors, heap %.1f MB, rss %s, "
+					+ "latency p50 %.1f ms p95 %.1f ms p99 %.1f ms", elapsedMillis / 1000.0, requests, errors,
+					heapBytes / 1048576.0, rssBytes < 0 ? "unknown" : String.format("%.1f MB", rssBytes / 1048576.0),
+					latencyP50Millis, latencyP95Millis, latencyP99Millis));
+			for (Entry<String, Long> entry : pythonObjectCounts.entrySet())
+				str.append(", ").append(entry.getKey()).append(' ').append(entry.getValue());
+			return str.toString();
+		}
+	}
+}
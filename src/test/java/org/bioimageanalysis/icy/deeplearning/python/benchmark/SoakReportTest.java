@@ -0,0 +1,84 @@
+package org.bioimageanalysis.icy.deeplearning.python.benchmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests of the thresholds checked by the {@link SoakBenchmark} and of the {@link SoakReport} of a run
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class SoakReportTest {
+
+	private static SoakReport.Sample sample(long requests, long errors, long heapBytes, double p95, long tensors, long generation) {
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		counts.put("tensors", tensors);
+		counts.put("gc_generation0", generation);
+		return new SoakReport.Sample(requests * 10, requests, errors, heapBytes, -1, new double[] {p95 / 2, p95, p95 * 2}, counts);
+	}
+
+	private static SoakBenchmark benchmark() {
+		SoakBenchmark benchmark = SoakBenchmark.build(null);
+		benchmark.setMaxGrowth(1000, 1000, 10);
+		benchmark.setMaxLatencyDrift(1.5);
+		return benchmark;
+	}
+
+	@Test
+	public void stableRunsPass() {
+		List<SoakReport.Sample> samples = Arrays.asList(sample(100, 0, 5000, 10, 3, 0), sample(200, 0, 5900, 14, 12, 700));
+		List<String> failures = benchmark().checkThresholds(samples);
+		// the counts of the garbage collector generations are allocations, not live objects
+		assertEquals(Collections.emptyList(), failures);
+		assertTrue(new SoakReport(samples, failures).passed());
+	}
+
+	@Test
+	public void everyExceededThresholdIsReported() {
+		List<SoakReport.Sample> samples = Arrays.asList(sample(100, 0, 5000, 10, 3, 0), sample(200, 2, 7000, 20, 30, 0));
+		List<String> failures = benchmark().checkThresholds(samples);
+		assertEquals(4, failures.size());
+		assertTrue(failures.get(0).startsWith("2 of 200 requests failed"));
+		assertTrue(failures.get(1).startsWith("the JVM heap grew 2000 bytes"));
+		assertTrue(failures.get(2).startsWith("the Python objects 'tensors' grew by 27"));
+		assertTrue(failures.get(3).startsWith("the 95th percentile of the latency"));
+		assertFalse(new SoakReport(samples, failures).passed());
+	}
+
+	@Test
+	public void runsWithoutSamplesAfterTheWarmUpFail() {
+		List<String> failures = benchmark().checkThresholds(Arrays.asList(sample(100, 0, 5000, 10, 3, 0)));
+		assertEquals(Arrays.asList("the run was too short to take samples after the warm-up"), failures);
+	}
+
+	@Test
+	public void samplesAreWrittenOnePerRow() throws IOException {
+		SoakReport report = new SoakReport(Arrays.asList(sample(100, 0, 5000, 10, 3, 0), sample(200, 0, 5000, 10, 3, 0)),
+				Collections.<String>emptyList());
+		Path csv = Files.createTempFile("soak", ".csv");
+		try {
+			report.writeCsv(csv);
+			List<String> lines = Files.readAllLines(csv, StandardCharsets.UTF_8);
+			assertEquals(3, lines.size());
+			assertEquals("elapsed_seconds,requests,errors,heap_bytes,rss_bytes,latency_p50_ms,latency_p95_ms,"
+					+ "latency_p99_ms,tensors,gc_generation0", lines.get(0));
+			assertEquals("2.0,200,0,5000,-1,5.0,10.0,20.0,3,0", lines.get(2));
+		} finally {
+			Files.delete(csv);
+		}
+	}
+}
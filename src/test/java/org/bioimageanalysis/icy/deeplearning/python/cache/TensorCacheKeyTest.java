@@ -0,0 +1,102 @@
+package org.bioimageanalysis.icy.deeplearning.python.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bioimageanalysis.icy.deeplearning.python.transformations.TransformationRegistry;
+import org.bioimageanalysis.icy.deeplearning.python.transformations.TransformationSpec;
+import org.bioimageanalysis.icy.deeplearning.tensor.Tensor;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Tests of the equality of the keys of the {@link TransformationResultCache}
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class TensorCacheKeyTest {
+
+	private static Map<String, Object> transformation(String name, Object... kwargs) {
+		Map<String, Object> args = new HashMap<String, Object>();
+		for (int i = 0; i < kwargs.length; i += 2)
+			args.put((String) kwargs[i], kwargs[i + 1]);
+		Map<String, Object> transformationMap = new HashMap<String, Object>();
+		transformationMap.put("name", name);
+		transformationMap.put("kwargs", args);
+		return transformationMap;
+	}
+
+	private static Tensor<FloatType> ramp(Img<FloatType> img) {
+		float i = 0;
+		Cursor<FloatType> cursor = Views.flatIterable(img).cursor();
+		while (cursor.hasNext())
+			cursor.next().set(i ++);
+		return Tensor.build("input", "xy", img);
+	}
+
+	@Test
+	public void sameContentInAnotherContainerHasTheSameKey() {
+		Map<String, Object> clip = transformation("clip", "min", 0.0, "max", 1.0);
+		Tensor<FloatType> array = ramp(ArrayImgs.floats(6, 4));
+		Tensor<FloatType> cells = ramp(new CellImgFactory<>(new FloatType(), 2).create(6, 4));
+		TensorCacheKey key = TensorCacheKey.of(clip, array, "heap");
+		assertEquals(key, TensorCacheKey.of(clip, cells, "heap"));
+		assertEquals(key.hashCode(), TensorCacheKey.of(clip, cells, "heap").hashCode());
+		assertEquals(key.toFileName(), TensorCacheKey.of(clip, cells, "heap").toFileName());
+		// the order of the arguments does not matter
+		assertEquals(key, TensorCacheKey.of(transformation("clip", "max", 1.0, "min", 0.0), cells, "heap"));
+	}
+
+	@Test
+	public void argumentsAndResultFormatArePartOfTheKey() {
+		Tensor<FloatType> tensor = ramp(ArrayImgs.floats(6, 4));
+		TensorCacheKey key = TensorCacheKey.of(transformation("clip", "min", 0.0, "max", 1.0), tensor, "heap");
+		assertNotEquals(key, TensorCacheKey.of(transformation("clip", "min", 0.0, "max", 2.0), tensor, "heap"));
+		assertNotEquals(key, TensorCacheKey.of(transformation("clip", "min", 0.0, "max", 1.0), tensor, "off_heap"));
+		assertNotEquals(key.toFileName(),
+				TensorCacheKey.of(transformation("clip", "min", 0.0, "max", 1.0), tensor, "off_heap").toFileName());
+	}
+
+	@Test
+	public void shapeAndAxesArePartOfTheKey() {
+		Map<String, Object> clip = transformation("clip", "min", 0.0, "max", 1.0);
+		TensorCacheKey key = TensorCacheKey.of(clip, ramp(ArrayImgs.floats(6, 4)), "heap");
+		// same pixels in the same order with another shape
+		assertNotEquals(key, TensorCacheKey.of(clip, ramp(ArrayImgs.floats(4, 6)), "heap"));
+		assertNotEquals(key, TensorCacheKey.of(clip, Tensor.build("input", "yx", ramp(ArrayImgs.floats(6, 4)).getData()), "heap"));
+	}
+
+	@Test
+	public void customSourcesAreIdentifiedByTheirHash() {
+		String source = "class Offset:\n"
+				+ "    def __init__(self, tensor_name):\n"
+				+ "        self.tensor_name = tensor_name\n"
+				+ "    def apply(self, tensor):\n"
+				+ "        return tensor + 1\n";
+		TransformationRegistry registry = TransformationRegistry.getDefault();
+		Tensor<FloatType> tensor = ramp(ArrayImgs.floats(6, 4));
+		try {
+			TransformationSpec spec = TransformationSpec.fromSource("test_offset", "Offset", source,
+					new String[] {"tensor_name"}, new String[] {"tensor_name"});
+			registry.register(spec);
+			TensorCacheKey key = TensorCacheKey.of(transformation("test_offset"), tensor, "heap");
+			assertTrue(key.getTransformationFingerprint().contains(spec.getSourceHash()));
+			registry.register(TransformationSpec.fromSource("test_offset", "Offset", source.replace("+ 1", "+ 2"),
+					new String[] {"tensor_name"}, new String[] {"tensor_name"}));
+			assertNotEquals(key, TensorCacheKey.of(transformation("test_offset"), tensor, "heap"));
+		} finally {
+			registry.unregister("test_offset");
+		}
+	}
+}
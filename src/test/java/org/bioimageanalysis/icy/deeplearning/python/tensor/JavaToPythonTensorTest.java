@@ -0,0 +1,228 @@
+package org.bioimageanalysis.icy.deeplearning.python.tensor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.function.ToDoubleFunction;
+
+import org.bioimageanalysis.icy.deeplearning.tensor.Tensor;
+import org.junit.Test;
+
+import jep.NDArray;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Tests of the layouts of the data sent to Python by {@link JavaToPythonTensor}
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class JavaToPythonTensorTest {
+	/**
+	 * Shape of the boolean tensors used by the tests, its size is not a multiple of 8 or 64
+	 */
+	private static final long[] MASK_SHAPE = new long[] {3, 5, 7};
+
+	private static float pixelValue(long[] pos) {
+		return pos[0] + 10 * pos[1] + 100 * pos[2];
+	}
+
+	private static void fillPixels(Img<FloatType> img) {
+		Cursor<FloatType> cursor = img.localizingCursor();
+		long[] pos = new long[img.numDimensions()];
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			cursor.localize(pos);
+			cursor.get().set(pixelValue(pos));
+		}
+	}
+
+	/**
+	 * Check that the flat data is in Fortran order, the first axis varying the fastest, and that it
+	 * goes back to Java unchanged
+	 */
+	private static void assertFortranOrder(RandomAccessibleInterval<FloatType> img, ToDoubleFunction<long[]> expected) {
+		long[] shape = img.dimensionsAsLongArray();
+		PrimitiveBufferPool pool = PrimitiveBufferPool.build();
+		PythonTensor pythonTensor = PythonTensor.fromJavaTensor(Tensor.build("image", "xyz", img), pool);
+		assertTrue(pythonTensor.isFortranOrder());
+		assertArrayEquals(new int[] {(int) shape[0], (int) shape[1], (int) shape[2]}, pythonTensor.getShape());
+		assertArrayEquals(new int[] {(int) shape[2], (int) shape[1], (int) shape[0]}, pythonTensor.getData().getDimensions());
+		float[] flat = (float[]) pythonTensor.getData().getData();
+		long[] pos = new long[3];
+		int i = 0;
+		for (pos[2] = 0; pos[2] < shape[2]; pos[2] ++)
+			for (pos[1] = 0; pos[1] < shape[1]; pos[1] ++)
+				for (pos[0] = 0; pos[0] < shape[0]; pos[0] ++)
+					assertEquals(expected.applyAsDouble(pos), flat[i ++], 0);
+		RandomAccessibleInterval<FloatType> back = pythonTensor.<FloatType>toJava().getData();
+		assertArrayEquals(shape, back.dimensionsAsLongArray());
+		RandomAccess<FloatType> ra = back.randomAccess();
+		for (pos[2] = 0; pos[2] < shape[2]; pos[2] += 3)
+			for (pos[1] = 0; pos[1] < shape[1]; pos[1] += 2)
+				for (pos[0] = 0; pos[0] < shape[0]; pos[0] ++)
+					assertEquals(expected.applyAsDouble(pos), ra.setPositionAndGet(pos).get(), 0);
+		pythonTensor.release();
+		assertTrue(pool.getRetainedBytes() > 0);
+	}
+
+	private static boolean maskValue(long[] pos) {
+		return (pos[0] + 2 * pos[1] + 3 * pos[2]) % 3 == 0;
+	}
+
+	private static void fillMask(Img<BitType> img) {
+		Cursor<BitType> cursor = img.localizingCursor();
+		long[] pos = new long[img.numDimensions()];
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			cursor.localize(pos);
+			cursor.get().set(maskValue(pos));
+		}
+	}
+
+	private static void assertSameMask(RandomAccessibleInterval<BitType> img) {
+		assertArrayEquals(MASK_SHAPE, img.dimensionsAsLongArray());
+		RandomAccess<BitType> ra = img.randomAccess();
+		long[] pos = new long[3];
+		for (pos[0] = 0; pos[0] < MASK_SHAPE[0]; pos[0] ++)
+			for (pos[1] = 0; pos[1] < MASK_SHAPE[1]; pos[1] ++)
+				for (pos[2] = 0; pos[2] < MASK_SHAPE[2]; pos[2] ++) {
+					ra.setPosition(pos);
+					assertEquals(maskValue(pos), ra.get().get());
+				}
+	}
+
+	private static void assertPackedRoundTrip(Img<BitType> img) {
+		PrimitiveBufferPool pool = PrimitiveBufferPool.build();
+		PythonTensor pythonTensor = PythonTensor.fromJavaTensor(Tensor.build("mask", "xyz", img), pool);
+		assertTrue(pythonTensor.isPackedBits());
+		assertArrayEquals(new int[] {3, 5, 7}, pythonTensor.getShape());
+		// 105 pixels take 14 bytes
+		assertArrayEquals(new int[] {14}, pythonTensor.getData().getDimensions());
+		@SuppressWarnings("unchecked")
+		NDArray<byte[]> packed = (NDArray<byte[]>) pythonTensor.getData();
+		Tensor<BitType> back = PythonTensor.buildPackedBits("mask", "xyz", packed, pythonTensor.getShape()).toJava(pool);
+		assertSameMask(back.getData());
+		pythonTensor.release();
+	}
+
+	private static Img<DoubleType> doubles(double... values) {
+		Img<DoubleType> img = new CellImgFactory<>(new DoubleType(), 2).create(values.length, 1);
+		RandomAccess<DoubleType> ra = img.randomAccess();
+		for (int i = 0; i < values.length; i ++)
+			ra.setPositionAndGet(i, 0).set(values[i]);
+		return img;
+	}
+
+	@Test
+	public void floatsAreNarrowedWithinTheBound() {
+		TransportPolicy policy = TransportPolicy.build(TransportPrecision.FLOAT16, 0.01, true);
+		PrimitiveBufferPool pool = PrimitiveBufferPool.build();
+		PythonTensor tensor = PythonTensor.fromJavaTensor(Tensor.build("t", "xy", doubles(1, 2.5, 0.1, -3)), pool, policy);
+		assertTrue(tensor.isFloat16());
+		TransportReport report = tensor.getTransportReport();
+		assertEquals(TransportPrecision.FLOAT16, report.getPrecision());
+		assertFalse(report.isFellBack());
+		assertEquals(Math.abs(0.1 - TransportPrecision.fromFloat16Bits(TransportPrecision.toFloat16Bits(0.1f))),
+				report.getMaxAbsoluteError(), 1e-9);
+		assertEquals(8, report.getBytes());
+		short[] halves = (short[]) tensor.getData().getData();
+		assertEquals(2.5f, TransportPrecision.fromFloat16Bits(halves[1]), 0f);
+		assertEquals(-3f, TransportPrecision.fromFloat16Bits(halves[3]), 0f);
+		tensor.release();
+	}
+
+	@Test
+	public void tensorsOutOfTheBoundAreSentAtFullPrecision() {
+		PrimitiveBufferPool pool = PrimitiveBufferPool.build();
+		// 0.1 is 2.4e-5 away from its closest half
+		PythonTensor tensor = PythonTensor.fromJavaTensor(Tensor.build("t", "xy", doubles(1, 0.1)), pool,
+				TransportPolicy.build(TransportPrecision.FLOAT16, 1e-6, true));
+		assertFalse(tensor.isFloat16());
+		assertArrayEquals(new double[] {1, 0.1}, (double[]) tensor.getData().getData(), 0);
+		TransportReport report = tensor.getTransportReport();
+		assertEquals(TransportPrecision.FULL, report.getPrecision());
+		assertTrue(report.isFellBack());
+		assertTrue(report.getMaxAbsoluteError() > 1e-6);
+		// nothing was borrowed for a narrowed copy that is not sent
+		tensor.release();
+		assertEquals(16, pool.getRetainedBytes());
+		// values too large for a half are never accepted, whatever the bound
+		tensor = PythonTensor.fromJavaTensor(Tensor.build("t", "xy", doubles(1, 1e6)), null,
+				TransportPolicy.build(TransportPrecision.FLOAT16, Double.POSITIVE_INFINITY, true));
+		assertTrue(tensor.getTransportReport().isFellBack());
+		assertEquals(Double.POSITIVE_INFINITY, tensor.getTransportReport().getMaxAbsoluteError(), 0);
+	}
+
+	@Test
+	public void arrayImgsAreCopiedInFortranOrder() {
+		Img<FloatType> img = ArrayImgs.floats(MASK_SHAPE);
+		fillPixels(img);
+		assertFortranOrder(img, JavaToPythonTensorTest::pixelValue);
+	}
+
+	@Test
+	public void cellImgsAreCopiedInFortranOrder() {
+		// cells that do not divide the shape, so the border cells are smaller
+		Img<FloatType> img = new CellImgFactory<>(new FloatType(), 2).create(MASK_SHAPE);
+		fillPixels(img);
+		assertFortranOrder(img, JavaToPythonTensorTest::pixelValue);
+	}
+
+	@Test
+	public void viewsAreCopiedInFortranOrder() {
+		Img<FloatType> img = ArrayImgs.floats(7, 5, 3);
+		fillPixels(img);
+		// the axes of the view are a rotation of the axes of the image
+		assertFortranOrder(Views.permute(Views.permute(img, 0, 2), 0, 1),
+				pos -> pixelValue(new long[] {pos[2], pos[0], pos[1]}));
+	}
+
+	@Test
+	public void bigViewsAreCopiedInParallelSlabs() {
+		// over the size at which the views are copied in parallel, with a last axis not divisible by the slabs
+		Img<FloatType> img = ArrayImgs.floats(64, 64, 67);
+		fillPixels(img);
+		assertFortranOrder(Views.interval(img, new long[] {0, 0, 0}, new long[] {63, 63, 66}),
+				JavaToPythonTensorTest::pixelValue);
+	}
+
+	@Test
+	public void arrayImgMasksArePackedFromTheirLongs() {
+		Img<BitType> img = ArrayImgs.bits(MASK_SHAPE);
+		fillMask(img);
+		assertPackedRoundTrip(img);
+	}
+
+	@Test
+	public void otherMasksArePackedPixelByPixel() {
+		Img<BitType> img = new CellImgFactory<>(new BitType(), 4).create(MASK_SHAPE);
+		fillMask(img);
+		assertPackedRoundTrip(img);
+	}
+
+	@Test
+	public void bitsArePackedLeastSignificantFirst() {
+		Img<BitType> img = ArrayImgs.bits(10);
+		img.randomAccess().setPositionAndGet(new long[] {0}).set(true);
+		img.randomAccess().setPositionAndGet(new long[] {9}).set(true);
+		PythonTensor pythonTensor = PythonTensor.fromJavaTensor(Tensor.build("mask", "x", img));
+		assertArrayEquals(new byte[] {1, 2}, (byte[]) pythonTensor.getData().getData());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void packedDataHasToCoverTheShape() {
+		PythonToJavaTensor.buildFromPackedBits(new NDArray<byte[]>(new byte[1], new int[] {1}), new int[] {3, 3}, null);
+	}
+}
@@ -0,0 +1,225 @@
+package org.bioimageanalysis.icy.deeplearning.python.tensor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.bioimageanalysis.icy.deeplearning.tensor.Tensor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import jep.NDArray;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Tests of the .npy and .npz files written and read by {@link NpyCodec}
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class NpyCodecTest {
+	private Path dir;
+
+	@Before
+	public void createDirectory() throws IOException {
+		dir = Files.createTempDirectory("npy");
+	}
+
+	@After
+	public void deleteDirectory() throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+				Files.delete(file);
+		}
+	}
+
+	private static double pixelValue(long[] pos) {
+		return pos[0] + 10 * pos[1] + 100 * pos[2];
+	}
+
+	private static < T extends RealType< T > > void fill(Img<T> img) {
+		Cursor<T> cursor = img.localizingCursor();
+		long[] pos = new long[img.numDimensions()];
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			cursor.localize(pos);
+			cursor.get().setReal(pixelValue(pos));
+		}
+	}
+
+	private static < T extends RealType< T > > void assertPixels(long[] shape, RandomAccessibleInterval<T> img) {
+		assertArrayEquals(shape, img.dimensionsAsLongArray());
+		RandomAccess<T> ra = img.randomAccess();
+		long[] pos = new long[3];
+		for (pos[0] = 0; pos[0] < shape[0]; pos[0] ++)
+			for (pos[1] = 0; pos[1] < shape[1]; pos[1] ++)
+				for (pos[2] = 0; pos[2] < shape[2]; pos[2] ++)
+					assertEquals(pixelValue(pos), ra.setPositionAndGet(pos).getRealDouble(), 0);
+	}
+
+	private static String header(Path file) throws IOException {
+		byte[] bytes = Files.readAllBytes(file);
+		int length = (bytes[8] & 0xFF) | (bytes[9] & 0xFF) << 8;
+		return new String(bytes, 10, length, StandardCharsets.US_ASCII);
+	}
+
+	@Test
+	public void arrayImgsAreWrittenInFortranOrder() throws IOException {
+		long[] shape = new long[] {3, 4, 5};
+		Img<FloatType> img = ArrayImgs.floats(shape);
+		fill(img);
+		Path file = dir.resolve("image.npy");
+		NpyCodec.write(file, img);
+		assertTrue(header(file).startsWith("{'descr': '<f4', 'fortran_order': True, 'shape': (3, 4, 5), }"));
+		// the data section starts aligned to 64 bytes
+		assertEquals(0, (Files.size(file) - 60 * 4) % 64);
+		RandomAccessibleInterval<FloatType> read = NpyCodec.read(file);
+		assertTrue(read instanceof OffHeapImg);
+		assertPixels(shape, read);
+	}
+
+	@Test
+	public void otherImagesAreStreamedPixelByPixel() throws IOException {
+		long[] shape = new long[] {3, 4, 5};
+		Img<ShortType> img = new CellImgFactory<>(new ShortType(), 2).create(shape);
+		fill(img);
+		Path file = dir.resolve("cells.npy");
+		NpyCodec.write(file, img);
+		assertTrue(header(file).startsWith("{'descr': '<i2'"));
+		assertPixels(shape, NpyCodec.<ShortType>read(file));
+	}
+
+	@Test
+	public void unsignedTypesKeepTheirSign() throws IOException {
+		Img<UnsignedByteType> img = ArrayImgs.unsignedBytes(2);
+		img.firstElement().set(200);
+		Path file = dir.resolve("unsigned.npy");
+		NpyCodec.write(file, img);
+		assertTrue(header(file).startsWith("{'descr': '|u1'"));
+		RandomAccessibleInterval<UnsignedByteType> read = NpyCodec.read(file);
+		assertEquals(200, read.randomAccess().setPositionAndGet(0).get());
+	}
+
+	@Test
+	public void masksAreWrittenOneBytePerPixel() throws IOException {
+		Img<BitType> img = ArrayImgs.bits(70);
+		img.randomAccess().setPositionAndGet(3).set(true);
+		img.randomAccess().setPositionAndGet(69).set(true);
+		Path file = dir.resolve("mask.npy");
+		NpyCodec.write(file, img);
+		assertTrue(header(file).startsWith("{'descr': '|b1', 'fortran_order': True, 'shape': (70,), }"));
+		RandomAccessibleInterval<BitType> read = NpyCodec.read(file);
+		long set = 0;
+		for (BitType px : Views.flatIterable(read))
+			set += px.get() ? 1 : 0;
+		assertEquals(2, set);
+		assertTrue(read.randomAccess().setPositionAndGet(69).get());
+	}
+
+	@Test
+	public void pythonTensorsKeepTheirOrder() throws IOException {
+		long[] shape = new long[] {3, 4, 5};
+		Img<FloatType> img = ArrayImgs.floats(shape);
+		fill(img);
+		PythonTensor fortran = PythonTensor.fromJavaTensor(Tensor.build("t", "xyz", img));
+		Path file = dir.resolve("fortran.npy");
+		NpyCodec.write(file, fortran);
+		PythonTensor read = NpyCodec.readPythonTensor(file, "t", "xyz");
+		assertTrue(read.isFortranOrder());
+		assertArrayEquals((float[]) fortran.getData().getData(), (float[]) read.getData().getData(), 0f);
+		assertPixels(shape, read.<FloatType>toJava().getData());
+
+		// the same pixels in C order, the last axis varying the fastest
+		float[] cOrder = new float[60];
+		for (int i = 0; i < 60; i ++)
+			cOrder[i] = (float) pixelValue(new long[] {i / 20, i / 5 % 4, i % 5});
+		file = dir.resolve("c.npy");
+		NpyCodec.write(file, PythonTensor.build("t", "xyz", new NDArray<float[]>(cOrder, 3, 4, 5)));
+		assertTrue(header(file).contains("'fortran_order': False"));
+		assertFalse(NpyCodec.readPythonTensor(file, "t", "xyz").isFortranOrder());
+		assertPixels(shape, NpyCodec.<FloatType>read(file));
+	}
+
+	@Test
+	public void packedPythonTensorsAreUnpacked() throws IOException {
+		NDArray<byte[]> packed = new NDArray<byte[]>(new byte[] {(byte) 0b1001, 0}, 2);
+		Path file = dir.resolve("packed.npy");
+		NpyCodec.write(file, PythonTensor.buildPackedBits("mask", "xy", packed, new int[] {3, 3}));
+		assertTrue(header(file).startsWith("{'descr': '|b1', 'fortran_order': True, 'shape': (3, 3), }"));
+		RandomAccessibleInterval<BitType> read = NpyCodec.read(file);
+		RandomAccess<BitType> ra = read.randomAccess();
+		assertTrue(ra.setPositionAndGet(0, 0).get());
+		assertTrue(ra.setPositionAndGet(0, 1).get());
+		assertFalse(ra.setPositionAndGet(1, 0).get());
+	}
+
+	@Test
+	public void halfPrecisionTensorsAreWrittenAsFloat16() throws IOException {
+		long[] shape = new long[] {3, 4, 5};
+		Img<FloatType> img = ArrayImgs.floats(shape);
+		fill(img);
+		PythonTensor narrowed = PythonTensor.fromJavaTensor(Tensor.build("t", "xyz", img), null,
+				TransportPolicy.build(TransportPrecision.FLOAT16, 0, true));
+		assertTrue(narrowed.isFloat16());
+		Path file = dir.resolve("half.npy");
+		NpyCodec.write(file, narrowed);
+		assertTrue(header(file).startsWith("{'descr': '<f2', 'fortran_order': True, 'shape': (3, 4, 5), }"));
+		PythonTensor read = NpyCodec.readPythonTensor(file, "t", "xyz");
+		assertTrue(read.isFloat16());
+		assertArrayEquals((short[]) narrowed.getData().getData(), (short[]) read.getData().getData());
+		assertPixels(shape, read.<FloatType>toJava().getData());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void pythonTensorsOfUnsupportedTypesAreRejected() throws IOException {
+		NpyCodec.write(dir.resolve("short.npy"), PythonTensor.build("t", "x", new NDArray<short[]>(new short[4], 4)));
+	}
+
+	@Test
+	public void archivesKeepTheNamesOfTheArrays() throws IOException {
+		long[] shape = new long[] {3, 4, 5};
+		Img<FloatType> first = ArrayImgs.floats(shape);
+		fill(first);
+		Img<ShortType> second = ArrayImgs.shorts(shape);
+		fill(second);
+		Map<String, RandomAccessibleInterval<?>> arrays = new LinkedHashMap<String, RandomAccessibleInterval<?>>();
+		arrays.put("first", first);
+		arrays.put("second", second);
+		Path file = dir.resolve("arrays.npz");
+		NpyCodec.writeNpz(file, arrays);
+		Map<String, RandomAccessibleInterval<?>> read = NpyCodec.readNpz(file);
+		assertArrayEquals(new String[] {"first", "second"}, read.keySet().toArray());
+		@SuppressWarnings("unchecked")
+		RandomAccessibleInterval<ShortType> readSecond = (RandomAccessibleInterval<ShortType>) read.get("second");
+		assertPixels(shape, readSecond);
+	}
+
+	@Test(expected = IOException.class)
+	public void filesWithoutTheMagicStringAreRejected() throws IOException {
+		Path file = dir.resolve("text.npy");
+		Files.write(file, "not an array".getBytes(StandardCharsets.US_ASCII));
+		NpyCodec.read(file);
+	}
+}
@@ -0,0 +1,81 @@
+package org.bioimageanalysis.icy.deeplearning.python.tensor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import jep.DirectNDArray;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Tests of the images backed by native memory, {@link OffHeapImg}
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class OffHeapImgTest {
+
+	@Test
+	public void pixelsAreStoredInNativeMemory() {
+		OffHeapImg<FloatType, ?> img = OffHeapImg.allocate("float32", new long[] {3, 4});
+		assertEquals(48, img.getNativeMemorySize());
+		assertEquals("float32", img.getDtype());
+		float i = 0;
+		for (FloatType px : img)
+			px.set(i ++);
+		RandomAccess<FloatType> ra = img.randomAccess();
+		ra.setPosition(new long[] {2, 1});
+		// the first axis varies the fastest
+		assertEquals(5, ra.get().get(), 0f);
+	}
+
+	@Test
+	public void unsignedTypesAreReadAsUnsigned() {
+		OffHeapImg<UnsignedByteType, ?> img = OffHeapImg.allocate("uint8", new long[] {2});
+		img.firstElement().set(200);
+		assertEquals(200, img.firstElement().get());
+	}
+
+	@Test
+	public void directArrayHasTheAxesReversed() {
+		OffHeapImg<FloatType, ?> img = OffHeapImg.allocate("float32", new long[] {3, 4, 5});
+		DirectNDArray<?> nd = img.getDirectNDArray();
+		assertArrayEquals(new int[] {5, 4, 3}, nd.getDimensions());
+	}
+
+	@Test
+	public void closedImagesCannotBeAccessed() {
+		OffHeapImg<FloatType, ?> img = OffHeapImg.allocate("float32", new long[] {3, 4});
+		Cursor<FloatType> openCursor = img.cursor();
+		img.close();
+		assertTrue(img.isClosed());
+		assertEquals(0, img.getNativeMemorySize());
+		try {
+			img.cursor();
+			fail("A cursor was created on a closed image");
+		} catch (IllegalStateException e) {
+		}
+		try {
+			img.getDirectNDArray();
+			fail("A closed image was shared with Python");
+		} catch (IllegalStateException e) {
+		}
+		// accessors created before closing keep the memory alive
+		assertTrue(openCursor.hasNext());
+		openCursor.next().set(1);
+		assertFalse(Float.isNaN(openCursor.get().get()));
+		img.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unsupportedTypesAreRejected() {
+		OffHeapImg.allocate("complex64", new long[] {2});
+	}
+}
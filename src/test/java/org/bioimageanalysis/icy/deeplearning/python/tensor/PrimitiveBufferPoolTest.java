@@ -0,0 +1,92 @@
+package org.bioimageanalysis.icy.deeplearning.python.tensor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import net.imglib2.img.array.ArrayImgs;
+
+/**
+ * Tests of the size classes, the memory cap and the ownership checks of {@link PrimitiveBufferPool}
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class PrimitiveBufferPoolTest {
+
+	@Test
+	public void recycledArraysAreServedAgain() {
+		PrimitiveBufferPool pool = PrimitiveBufferPool.build();
+		float[] arr = pool.borrow(float[].class, 10);
+		assertTrue(pool.recycle(arr));
+		assertEquals(40, pool.getRetainedBytes());
+		assertSame(arr, pool.borrow(float[].class, 10));
+		assertEquals(1, pool.getHits());
+		assertEquals(1, pool.getMisses());
+		assertEquals(0, pool.getRetainedBytes());
+	}
+
+	@Test
+	public void sizeClassesAreExact() {
+		PrimitiveBufferPool pool = PrimitiveBufferPool.build();
+		float[] arr = pool.borrow(float[].class, 10);
+		pool.recycle(arr);
+		assertNotSame(arr, pool.borrow(float[].class, 11));
+		assertEquals(11, pool.borrow(float[].class, 11).length);
+		assertEquals(10, pool.borrow(int[].class, 10).length);
+		assertEquals(0, pool.getHits());
+	}
+
+	@Test
+	public void arraysNotLentByThePoolAreNotRecycled() {
+		PrimitiveBufferPool pool = PrimitiveBufferPool.build();
+		assertFalse(pool.recycle(new float[10]));
+		assertFalse(pool.recycle(ArrayImgs.floats(2, 5)));
+		assertFalse(pool.recycle(PrimitiveBufferPool.build().borrow(float[].class, 10)));
+		assertEquals(0, pool.getRetainedBytes());
+	}
+
+	@Test
+	public void arraysAreRecycledOnlyOnce() {
+		PrimitiveBufferPool pool = PrimitiveBufferPool.build();
+		double[] arr = pool.borrow(double[].class, 4);
+		assertTrue(pool.isLent(arr));
+		assertTrue(pool.recycle(ArrayImgs.doubles(arr, 2, 2)));
+		assertFalse(pool.isLent(arr));
+		assertFalse(pool.recycle(arr));
+		assertEquals(32, pool.getRetainedBytes());
+	}
+
+	@Test
+	public void adoptTakesOnlyArraysThatAreNotLent() {
+		PrimitiveBufferPool pool = PrimitiveBufferPool.build();
+		int[] lent = pool.borrow(int[].class, 4);
+		assertFalse(pool.adopt(lent));
+		assertFalse(pool.adopt(new Object()));
+		int[] foreign = new int[4];
+		assertTrue(pool.adopt(foreign));
+		assertSame(foreign, pool.borrow(int[].class, 4));
+		assertTrue(pool.recycle(foreign));
+	}
+
+	@Test
+	public void arraysOverTheCapAreDropped() {
+		PrimitiveBufferPool pool = PrimitiveBufferPool.build(60);
+		float[] first = pool.borrow(float[].class, 10);
+		float[] second = pool.borrow(float[].class, 10);
+		assertTrue(pool.recycle(first));
+		assertFalse(pool.recycle(second));
+		assertEquals(40, pool.getRetainedBytes());
+		pool.clear();
+		assertEquals(0, pool.getRetainedBytes());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void onlyPrimitiveArraysCanBeBorrowed() {
+		PrimitiveBufferPool.build().borrow(Float[].class, 10);
+	}
+}
@@ -0,0 +1,131 @@
+package org.bioimageanalysis.icy.deeplearning.python.tensor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.bioimageanalysis.icy.deeplearning.tensor.Tensor;
+import org.junit.Test;
+
+import jep.NDArray;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Tests of the layouts of the data received from Python by {@link PythonToJavaTensor}
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class PythonToJavaTensorTest {
+	/**
+	 * Shape of the tensors used by the tests
+	 */
+	private static final int[] SHAPE = new int[] {2, 3, 4};
+
+	private static float value(long[] pos) {
+		return pos[0] * 100 + pos[1] * 10 + pos[2];
+	}
+
+	/**
+	 * @return data of a tensor of shape {@link #SHAPE} in C order, the last axis varying the fastest
+	 */
+	private static NDArray<float[]> cOrder() {
+		float[] flat = new float[24];
+		int i = 0;
+		for (long x = 0; x < SHAPE[0]; x ++)
+			for (long y = 0; y < SHAPE[1]; y ++)
+				for (long z = 0; z < SHAPE[2]; z ++)
+					flat[i ++] = value(new long[] {x, y, z});
+		return new NDArray<float[]>(flat, SHAPE);
+	}
+
+	/**
+	 * @return data of a tensor of shape {@link #SHAPE} in Fortran order, the first axis varying the fastest
+	 */
+	private static NDArray<float[]> fortranOrder() {
+		float[] flat = new float[24];
+		int i = 0;
+		for (long z = 0; z < SHAPE[2]; z ++)
+			for (long y = 0; y < SHAPE[1]; y ++)
+				for (long x = 0; x < SHAPE[0]; x ++)
+					flat[i ++] = value(new long[] {x, y, z});
+		return new NDArray<float[]>(flat, new int[] {SHAPE[2], SHAPE[1], SHAPE[0]});
+	}
+
+	private static void assertSameImage(RandomAccessibleInterval<? extends RealType<?>> img) {
+		assertArrayEquals(new long[] {2, 3, 4}, new long[] {img.dimension(0), img.dimension(1), img.dimension(2)});
+		RandomAccess<? extends RealType<?>> ra = img.randomAccess();
+		long[] pos = new long[3];
+		for (pos[0] = 0; pos[0] < SHAPE[0]; pos[0] ++)
+			for (pos[1] = 0; pos[1] < SHAPE[1]; pos[1] ++)
+				for (pos[2] = 0; pos[2] < SHAPE[2]; pos[2] ++) {
+					ra.setPosition(pos);
+					assertEquals(value(pos), ra.get().getRealFloat(), 0f);
+				}
+	}
+
+	@Test
+	public void cOrderIsRebuiltPixelByPixel() {
+		assertSameImage(PythonToJavaTensor.<FloatType>build(cOrder()));
+		assertSameImage(PythonToJavaTensor.<FloatType>build(cOrder(), PrimitiveBufferPool.build()));
+	}
+
+	@Test
+	public void fortranOrderIsRebuiltWithTheSameAxes() {
+		@SuppressWarnings("unchecked")
+		ArrayImg<FloatType, ?> img = (ArrayImg<FloatType, ?>) PythonToJavaTensor.buildFromFortranOrder(fortranOrder(),
+				SHAPE, null);
+		assertSameImage(img);
+	}
+
+	@Test
+	public void fortranOrderStorageIsBorrowedFromThePool() {
+		PrimitiveBufferPool pool = PrimitiveBufferPool.build();
+		NDArray<float[]> nd = fortranOrder();
+		ArrayImg<?, ?> img = PythonToJavaTensor.buildFromFortranOrder(nd, SHAPE, pool);
+		Object storage = ((ArrayDataAccess<?>) img.update(null)).getCurrentStorageArray();
+		assertTrue(pool.isLent(storage));
+		// the image does not share the array of the NDArray
+		assertArrayEquals(nd.getData(), (float[]) storage, 0f);
+		nd.getData()[0] = -1;
+		assertEquals(0, ((float[]) storage)[0], 0f);
+		assertTrue(pool.recycle(img));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void narrowedDataIsWidenedWhileItIsCopied() {
+		float[] floats = fortranOrder().getData();
+		short[] halves = new short[floats.length];
+		for (int i = 0; i < floats.length; i ++)
+			halves[i] = TransportPrecision.toFloat16Bits(floats[i]);
+		NDArray<short[]> nd = new NDArray<short[]>(halves, new int[] {SHAPE[2], SHAPE[1], SHAPE[0]});
+		ArrayImg<?, ?> img = PythonToJavaTensor.buildFromFortranOrder(nd, SHAPE, null, "float32");
+		assertTrue(img.firstElement() instanceof FloatType);
+		assertSameImage((RandomAccessibleInterval<? extends RealType<?>>) img);
+		img = PythonToJavaTensor.buildFromFortranOrder(nd, SHAPE, null, "float64");
+		assertTrue(img.firstElement() instanceof DoubleType);
+		assertSameImage((RandomAccessibleInterval<? extends RealType<?>>) img);
+		img = PythonToJavaTensor.buildFromFortranOrder(fortranOrder(), SHAPE, null, "float64");
+		assertTrue(img.firstElement() instanceof DoubleType);
+		assertSameImage((RandomAccessibleInterval<? extends RealType<?>>) img);
+		// half precision tensors are given back at least as float32
+		assertSameImage(PythonTensor.buildNarrowed("output", "bcy", nd, SHAPE, null).<FloatType>toJava().getData());
+	}
+
+	@Test
+	public void fortranOrderTensorsKeepTheirShape() {
+		PythonTensor tensor = PythonTensor.buildFortranOrder("output", "bcy", fortranOrder(), SHAPE);
+		assertTrue(tensor.isFortranOrder());
+		Tensor<FloatType> javaTensor = tensor.toJava(PrimitiveBufferPool.build());
+		assertEquals("output", javaTensor.getName());
+		assertEquals("bcy", javaTensor.getAxesOrderString());
+		assertSameImage(javaTensor.getData());
+	}
+}
@@ -0,0 +1,66 @@
+package org.bioimageanalysis.icy.deeplearning.python.tensor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests of the half precision conversions of {@link TransportPrecision} and of the bounds of a {@link TransportPolicy}
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class TransportPrecisionTest {
+
+	private static float roundTrip(float value) {
+		return TransportPrecision.fromFloat16Bits(TransportPrecision.toFloat16Bits(value));
+	}
+
+	@Test
+	public void representableValuesAreExact() {
+		for (float value : new float[] {0f, 1f, -2.5f, 0.099975586f, 65504f, 0x1p-14f, 0x1p-24f})
+			assertEquals(value, roundTrip(value), 0f);
+		assertEquals(0x3C00, TransportPrecision.toFloat16Bits(1f));
+		assertEquals((short) 0xC000, TransportPrecision.toFloat16Bits(-2f));
+		// every half widens and narrows back to the same bits
+		for (int bits = 0; bits < 0x7C00; bits ++)
+			assertEquals((short) bits, TransportPrecision.toFloat16Bits(TransportPrecision.fromFloat16Bits((short) bits)));
+	}
+
+	@Test
+	public void tiesAreRoundedToEven() {
+		// between 2048 and 4096 the halves are 2 apart
+		assertEquals(2048f, roundTrip(2049f), 0f);
+		assertEquals(2052f, roundTrip(2051f), 0f);
+		assertEquals(2050f, roundTrip(2050.5f), 0f);
+		// halfway between the largest subnormal and the smallest normal the carry reaches the exponent
+		assertEquals(0x1p-14f, roundTrip(0x1p-14f - 0x1p-25f), 0f);
+	}
+
+	@Test
+	public void valuesTooLargeBecomeInfinite() {
+		assertEquals(Float.POSITIVE_INFINITY, roundTrip(65520f), 0f);
+		assertEquals(Float.NEGATIVE_INFINITY, roundTrip(-1e6f), 0f);
+		assertEquals(65504f, roundTrip(65519f), 0f);
+		assertTrue(Float.isNaN(roundTrip(Float.NaN)));
+		assertEquals(0f, roundTrip(0x1p-26f), 0f);
+	}
+
+	@Test
+	public void policiesOnlyAcceptFiniteErrorsWithinTheirBound() {
+		TransportPolicy policy = TransportPolicy.build(TransportPrecision.FLOAT16, 0.01, true);
+		assertTrue(policy.accepts(0.01));
+		assertFalse(policy.accepts(0.02));
+		assertFalse(TransportPolicy.build(TransportPrecision.FLOAT16, Double.POSITIVE_INFINITY, true)
+				.accepts(Double.POSITIVE_INFINITY));
+		assertFalse(policy.accepts(Double.NaN));
+		assertTrue(TransportPolicy.FULL_PRECISION.isFullPrecision());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeBoundsAreRejected() {
+		TransportPolicy.build(TransportPrecision.FLOAT32, -1, false);
+	}
+}
@@ -0,0 +1,94 @@
+package org.bioimageanalysis.icy.deeplearning.python.transformations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests of the {@link TransformationRegistry} and of the {@link TransformationSpec} it holds
+ *
+ * @author Carlos Garcia Lopez de Haro
+ *
+ */
+public class TransformationRegistryTest {
+	/**
+	 * Source of a custom transformation
+	 */
+	private static final String SOURCE = "class Invert:\n"
+			+ "    def __init__(self, tensor_name):\n"
+			+ "        self.tensor_name = tensor_name\n"
+			+ "    def get_required_measures(self):\n"
+			+ "        return {}\n"
+			+ "    def set_computed_measures(self, computed):\n"
+			+ "        pass\n"
+			+ "    def apply(self, tensor):\n"
+			+ "        return -tensor\n";
+
+	@Test
+	public void bioImageIoTransformationsAreRegistered() {
+		TransformationRegistry registry = TransformationRegistry.getDefault();
+		for (String name : new String[] {"binarize", "clip", "scale_linear", "scale_mean_variance", "scale_range",
+				"sigmoid", "zero_mean_unit_variance"}) {
+			assertTrue(name, registry.contains(name));
+			assertFalse(name, registry.get(name).isCustom());
+			assertNull(name, registry.get(name).getSourceHash());
+		}
+	}
+
+	@Test
+	public void scaleMeanVarianceNeedsItsReferenceTensor() {
+		TransformationSpec spec = TransformationRegistry.getDefault().get("scale_mean_variance");
+		assertTrue(spec.getCompulsoryArgs().contains("reference_tensor"));
+		assertTrue(spec.getAllArgs().contains("axes"));
+		assertTrue(spec.getAllArgs().contains("eps"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownTransformationsAreRejected() {
+		TransformationRegistry.getDefault().get("not_a_transformation");
+	}
+
+	@Test
+	public void customTransformationsCanBeRegisteredAndRemoved() {
+		TransformationRegistry registry = TransformationRegistry.getDefault();
+		TransformationSpec spec = TransformationSpec.fromSource("test_invert", "Invert", SOURCE,
+				new String[] {"tensor_name"}, new String[] {"tensor_name"});
+		registry.register(spec);
+		try {
+			assertSame(spec, registry.get("test_invert"));
+			assertTrue(registry.getCustomTransformations().contains(spec));
+		} finally {
+			assertSame(spec, registry.unregister("test_invert"));
+		}
+		assertFalse(registry.contains("test_invert"));
+	}
+
+	@Test
+	public void sourcesWithTheSameClassNameHaveDifferentNamespaces() {
+		TransformationSpec invert = TransformationSpec.fromSource("invert", "Invert", SOURCE,
+				new String[] {"tensor_name"}, new String[] {"tensor_name"});
+		TransformationSpec other = TransformationSpec.fromSource("other_invert", "Invert", SOURCE.replace("-tensor", "1 - tensor"),
+				new String[] {"tensor_name"}, new String[] {"tensor_name"});
+		TransformationSpec same = TransformationSpec.fromSource("same_invert", "Invert", SOURCE,
+				new String[] {"tensor_name"}, new String[] {"tensor_name"});
+		assertEquals(32, invert.getSourceHash().length());
+		assertNotEquals(invert.getSourceHash(), other.getSourceHash());
+		assertEquals(invert.getSourceHash(), same.getSourceHash());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void compulsoryArgumentsHaveToBeArguments() {
+		TransformationSpec.fromModule("broken", "module", "Broken", new String[] {"tensor_name"},
+				new String[] {"tensor_name", "gain"});
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void customTransformationsNeedSource() {
+		TransformationSpec.fromSource("broken", "Broken", null, new String[] {"tensor_name"}, new String[] {"tensor_name"});
+	}
+}